@@ -0,0 +1,61 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the configuration-time cost of {@link DatabaseProfilePlugin} locating the profiles of a synthetic
+ * {@code databases} tree (the {@code processProfiles} walk).  Profiles are built lazily, so this is the cost every
+ * build pays regardless of the nodes it runs.
+ * <p/>
+ * The profile index is disabled so that each invocation walks the tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProfileDiscoveryBenchmark {
+	@Param({ "10", "100", "1000" })
+	public int profileCount;
+
+	private File projectDirectory;
+	private Project project;
+
+	@Setup
+	public void setUp() throws Exception {
+		System.setProperty( DatabaseProfilePlugin.PROFILE_INDEX_KEY, "false" );
+		projectDirectory = SyntheticProfiles.createProjectDirectory( profileCount, 10 );
+		project = ProjectBuilder.builder().withProjectDir( projectDirectory ).build();
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.clearProperty( DatabaseProfilePlugin.PROFILE_INDEX_KEY );
+		SyntheticProfiles.delete( projectDirectory );
+	}
+
+	@Benchmark
+	public Iterable<DatabaseProfile> discoverProfiles() {
+		final DatabaseProfilePlugin plugin = new DatabaseProfilePlugin();
+		plugin.apply( project );
+		return plugin.getDatabaseProfiles();
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures loading the {@code hibernate.properties} of a profile
+ * ({@link AbstractDatabaseProfileImpl#loadHibernateProperties}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProfilePropertiesBenchmark {
+	@Param({ "10", "100" })
+	public int propertyCount;
+
+	private File profileDirectory;
+
+	@Setup
+	public void setUp() throws Exception {
+		profileDirectory = new File( Files.createTempDirectory( "hibernate-matrix-jmh" ).toFile(), "profile" );
+		SyntheticProfiles.createProfile( profileDirectory, propertyCount );
+	}
+
+	@TearDown
+	public void tearDown() {
+		SyntheticProfiles.delete( profileDirectory.getParentFile() );
+	}
+
+	@Benchmark
+	public Map<String,Object> loadHibernateProperties() {
+		return AbstractDatabaseProfileImpl.loadHibernateProperties( profileDirectory );
+	}
+}
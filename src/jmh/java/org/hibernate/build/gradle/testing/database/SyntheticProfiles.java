@@ -0,0 +1,83 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Builds synthetic database profile trees for the benchmarks : {@code databases/group-{n}/profile-{n}}, each profile
+ * defined through an (empty) {@code jdbc} directory along with a {@code resources/hibernate.properties} file.
+ */
+public final class SyntheticProfiles {
+	private static final int PROFILES_PER_GROUP = 10;
+
+	private SyntheticProfiles() {
+	}
+
+	/**
+	 * Create a project directory holding the given number of profiles under its standard {@code databases} directory.
+	 *
+	 * @param profileCount The number of profiles
+	 * @param propertyCount The number of Hibernate properties of each profile
+	 *
+	 * @return The project directory
+	 */
+	public static File createProjectDirectory(int profileCount, int propertyCount) throws IOException {
+		final File projectDirectory = Files.createTempDirectory( "hibernate-matrix-jmh" ).toFile();
+		final File databases = new File( projectDirectory, DatabaseProfilePlugin.STANDARD_DATABASES_DIRECTORY );
+		for ( int i = 0; i < profileCount; i++ ) {
+			final File group = new File( databases, "group-" + ( i / PROFILES_PER_GROUP ) );
+			createProfile( new File( group, "profile-" + i ), propertyCount );
+		}
+		return projectDirectory;
+	}
+
+	/**
+	 * Create a single profile directory.
+	 *
+	 * @param profileDirectory The profile directory
+	 * @param propertyCount The number of Hibernate properties of the profile
+	 */
+	public static void createProfile(File profileDirectory, int propertyCount) throws IOException {
+		new File( profileDirectory, "jdbc" ).mkdirs();
+		final File propertiesFile = AbstractDatabaseProfileImpl.hibernatePropertiesFile( profileDirectory );
+		propertiesFile.getParentFile().mkdirs();
+		final Properties properties = new Properties();
+		properties.setProperty( "hibernate.dialect", "org.hibernate.dialect.H2Dialect" );
+		properties.setProperty( "hibernate.connection.url", "jdbc:h2:mem:" + profileDirectory.getName() );
+		for ( int i = 2; i < propertyCount; i++ ) {
+			properties.setProperty( "hibernate.synthetic.property" + i, "value-" + i );
+		}
+		final OutputStream stream = new FileOutputStream( propertiesFile );
+		try {
+			properties.store( stream, null );
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Delete a directory created by this helper.
+	 *
+	 * @param directory The directory
+	 */
+	public static void delete(File directory) {
+		final File[] children = directory.listFiles();
+		if ( children != null ) {
+			for ( File child : children ) {
+				delete( child );
+			}
+		}
+		directory.delete();
+	}
+}
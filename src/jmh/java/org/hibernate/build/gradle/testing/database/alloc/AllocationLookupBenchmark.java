@@ -0,0 +1,80 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.testing.database.DatabaseProfilePlugin;
+import org.hibernate.build.gradle.testing.database.SyntheticProfiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures {@link DatabaseAllocator#getAllocation} as called from the test listeners of concurrently running
+ * nodes and forks (before each test class, when each fork starts) : many threads looking up already obtained
+ * allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class AllocationLookupBenchmark {
+	private static final int PROFILE_COUNT = 8;
+
+	private File projectDirectory;
+	private DatabaseAllocator allocator;
+	private DatabaseProfile[] profiles;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int next;
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		projectDirectory = SyntheticProfiles.createProjectDirectory( PROFILE_COUNT, 10 );
+		final Project project = ProjectBuilder.builder().withProjectDir( projectDirectory ).build();
+		project.getPlugins().apply( DatabaseProfilePlugin.class );
+
+		final List<DatabaseProfile> located = new ArrayList<DatabaseProfile>();
+		for ( DatabaseProfile profile : project.getPlugins().getPlugin( DatabaseProfilePlugin.class ).getDatabaseProfiles() ) {
+			located.add( profile );
+		}
+		profiles = located.toArray( new DatabaseProfile[0] );
+
+		allocator = DatabaseAllocator.locate( project );
+		for ( DatabaseProfile profile : profiles ) {
+			allocator.getAllocation( profile );
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		SyntheticProfiles.delete( projectDirectory );
+	}
+
+	@Benchmark
+	@Threads(8)
+	public DatabaseAllocation getAllocation(Cursor cursor) {
+		cursor.next = ( cursor.next + 1 ) % profiles.length;
+		return allocator.getAllocation( profiles[cursor.next] );
+	}
+}
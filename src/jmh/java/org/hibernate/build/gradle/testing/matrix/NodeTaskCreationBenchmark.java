@@ -0,0 +1,81 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gradle.api.Project;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.testfixtures.ProjectBuilder;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfilePlugin;
+import org.hibernate.build.gradle.testing.database.SyntheticProfiles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the configuration-time cost of {@link MatrixTestingPlugin} creating the matrix node tasks of a project,
+ * both when they are only registered (what a build not running the matrix pays) and when they are all realized.
+ * <p/>
+ * Each invocation needs a fresh project, so these are single shot measurements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+public class NodeTaskCreationBenchmark {
+	@Param({ "1", "10", "50" })
+	public int profileCount;
+
+	private File projectDirectory;
+	private Project project;
+
+	@Setup(Level.Trial)
+	public void createProfiles() throws Exception {
+		System.setProperty( DatabaseProfilePlugin.PROFILE_INDEX_KEY, "false" );
+		projectDirectory = SyntheticProfiles.createProjectDirectory( profileCount, 10 );
+	}
+
+	@Setup(Level.Iteration)
+	public void createProject() {
+		project = ProjectBuilder.builder().withProjectDir( projectDirectory ).build();
+		project.getPlugins().apply( JavaPlugin.class );
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteProfiles() {
+		System.clearProperty( DatabaseProfilePlugin.PROFILE_INDEX_KEY );
+		SyntheticProfiles.delete( projectDirectory );
+	}
+
+	@Benchmark
+	public Project registerNodeTasks() {
+		project.getPlugins().apply( MatrixTestingPlugin.class );
+		return project;
+	}
+
+	@Benchmark
+	public List<MatrixNodeTest> realizeNodeTasks() {
+		project.getPlugins().apply( MatrixTestingPlugin.class );
+		return new ArrayList<MatrixNodeTest>( project.getTasks().withType( MatrixNodeTest.class ) );
+	}
+}
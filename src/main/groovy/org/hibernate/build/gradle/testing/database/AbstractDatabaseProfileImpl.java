@@ -49,17 +49,38 @@ public abstract class AbstractDatabaseProfileImpl implements DatabaseProfile {
 	private final Project project;
 	private final Map<String,Object> hibernateProperties;
 
-	@SuppressWarnings( {"unchecked"})
 	protected AbstractDatabaseProfileImpl(File profileDirectory, Project project) {
+		this( profileDirectory, project, loadHibernateProperties( profileDirectory ) );
+	}
+
+	protected AbstractDatabaseProfileImpl(File profileDirectory, Project project, Map<String,Object> hibernateProperties) {
 		this.profileDirectory = profileDirectory;
 		this.name = profileDirectory.getName();
 		this.project = project;
+		this.hibernateProperties = hibernateProperties;
+	}
 
-		this.hibernateProperties = new HashMap<String, Object>();
-		final File hibernatePropertiesFile = new File(
-				new File( profileDirectory, "resources" ),
-				"hibernate.properties"
-		);
+	/**
+	 * Locate the {@code hibernate.properties} file of the profile defined in the given directory.
+	 *
+	 * @param profileDirectory The profile directory
+	 *
+	 * @return The (possibly non-existent) {@code hibernate.properties} file
+	 */
+	public static File hibernatePropertiesFile(File profileDirectory) {
+		return new File( new File( profileDirectory, "resources" ), "hibernate.properties" );
+	}
+
+	/**
+	 * Load the Hibernate properties of the profile defined in the given directory.
+	 *
+	 * @param profileDirectory The profile directory
+	 *
+	 * @return The Hibernate properties; empty if the profile does not define a {@code hibernate.properties} file
+	 */
+	public static Map<String,Object> loadHibernateProperties(File profileDirectory) {
+		final Map<String,Object> hibernateProperties = new HashMap<String, Object>();
+		final File hibernatePropertiesFile = hibernatePropertiesFile( profileDirectory );
 		if ( hibernatePropertiesFile.exists() ) {
 			Properties props = new Properties();
 			try {
@@ -76,12 +97,13 @@ public abstract class AbstractDatabaseProfileImpl implements DatabaseProfile {
 				}
 			}
 			catch (IOException e) {
-				log.warn( "Unable to read Hibernate properties for database profile [" + name + "]", e );
+				log.warn( "Unable to read Hibernate properties for database profile [" + profileDirectory.getName() + "]", e );
 			}
 			for ( String propName : props.stringPropertyNames() ) {
 				hibernateProperties.put( propName, props.getProperty( propName ) );
 			}
 		}
+		return hibernateProperties;
 	}
 
 	@Override
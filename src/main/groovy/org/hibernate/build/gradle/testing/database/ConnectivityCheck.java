@@ -0,0 +1,167 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocation;
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * Pre-flight check of a profile's database : opens (and validates) a connection with the profile's own driver
+ * classpath and connection settings, under a short timeout, so that a matrix node whose database is down or
+ * misconfigured can be skipped or failed up front rather than have every test class fail on connection timeouts.
+ * <p/>
+ * Profiles with a database of their own are checked once the task graph is ready; databases obtained from an
+ * allocation provider are checked once allocated, with the connection settings of the allocation.  URLs naming a
+ * database per test worker ({@link DatabaseAllocation#WORKER_PLACEHOLDER}) cannot be checked, as those databases need
+ * not exist before the workers do.
+ */
+public final class ConnectivityCheck {
+	private static final Logger log = Logging.getLogger( ConnectivityCheck.class );
+
+	/**
+	 * Names a system setting for what to do with the nodes of profiles whose database is unreachable : {@code fail}
+	 * them (the default), {@code skip} them (leaving the build green, the nodes only being reported as skipped), or
+	 * {@code off} to not check at all.
+	 */
+	public static final String PREFLIGHT_KEY = "hibernate-matrix-preflight";
+	/**
+	 * Names a system setting for how long (in seconds) connecting may take.  Defaults to 10.
+	 */
+	public static final String PREFLIGHT_TIMEOUT_KEY = "hibernate-matrix-preflight-timeout";
+
+	public enum Mode {
+		SKIP,
+		FAIL,
+		OFF;
+
+		/**
+		 * The mode selected by the {@link #PREFLIGHT_KEY} setting.
+		 *
+		 * @return The mode
+		 */
+		public static Mode fromSettings() {
+			final String value = SettingsHelper.getString( PREFLIGHT_KEY, "fail" );
+			try {
+				return valueOf( value.toUpperCase( Locale.ROOT ) );
+			}
+			catch (IllegalArgumentException e) {
+				throw new BuildException( "Invalid value for setting [" + PREFLIGHT_KEY + "] : " + value, e );
+			}
+		}
+	}
+
+	private ConnectivityCheck() {
+	}
+
+	/**
+	 * Check that the profile's database can be connected to, with the profile's own connection settings.
+	 *
+	 * @param profile The profile
+	 * @param driverClassLoader See {@link #check(String, Map, ClassLoader, int)}
+	 * @param timeoutSeconds How long connecting may take
+	 *
+	 * @return {@code null} if the database is reachable, otherwise a description of the problem
+	 */
+	public static String check(DatabaseProfile profile, ClassLoader driverClassLoader, int timeoutSeconds) {
+		return check( profile.getName(), profile.getHibernateProperties(), driverClassLoader, timeoutSeconds );
+	}
+
+	/**
+	 * Check that a database can be connected to.  Blocks for at most the given timeout (plus loading the driver); a
+	 * connection attempt still hanging by then is interrupted and abandoned, and closes its connection should it
+	 * eventually get one.
+	 *
+	 * @param profileName The name of the profile, for messages
+	 * @param connectionProperties The {@code hibernate.connection.*} settings to connect with
+	 * @param driverClassLoader The ClassLoader containing the profile's JDBC driver, see
+	 * {@link JdbcConnector#buildDriverClassLoader}.  Built beforehand, as it involves resolving the profile's
+	 * dependencies (which must happen on a build thread).  Closed by the check once the connection attempt is over,
+	 * abandoned or not.
+	 * @param timeoutSeconds How long connecting may take
+	 *
+	 * @return {@code null} if the database is reachable (or cannot be checked), otherwise a description of the problem
+	 */
+	public static String check(
+			String profileName,
+			Map<String,?> connectionProperties,
+			ClassLoader driverClassLoader,
+			int timeoutSeconds) {
+		final JdbcConnector connector;
+		try {
+			connector = new JdbcConnector( profileName, driverClassLoader, connectionProperties );
+		}
+		catch (BuildException e) {
+			JdbcConnector.closeDriverClassLoader( driverClassLoader );
+			return e.getMessage();
+		}
+		if ( connector.getUrl().contains( DatabaseAllocation.WORKER_PLACEHOLDER ) ) {
+			JdbcConnector.closeDriverClassLoader( driverClassLoader );
+			log.lifecycle(
+					"Not checking the database of profile [{}] : its URL names a database per test worker",
+					profileName
+			);
+			return null;
+		}
+
+		final FutureTask<Void> attempt = new FutureTask<Void>(
+				() -> {
+					try ( Connection connection = connector.connect() ) {
+						if ( !connection.isValid( timeoutSeconds ) ) {
+							throw new SQLException( "Connection reported as not valid" );
+						}
+					}
+					finally {
+						JdbcConnector.closeDriverClassLoader( driverClassLoader );
+					}
+					return null;
+				}
+		);
+		final Thread thread = new Thread( attempt, "hibernate-matrix-preflight-" + profileName );
+		thread.setDaemon( true );
+		thread.start();
+		try {
+			attempt.get( timeoutSeconds, TimeUnit.SECONDS );
+			return null;
+		}
+		catch (TimeoutException e) {
+			attempt.cancel( true );
+			return "no connection to [" + connector.getUrl() + "] within " + timeoutSeconds + "s";
+		}
+		catch (ExecutionException e) {
+			return "unable to connect to [" + connector.getUrl() + "] : " + describe( e.getCause() );
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			attempt.cancel( true );
+			return "interrupted connecting to [" + connector.getUrl() + "]";
+		}
+	}
+
+	private static String describe(Throwable failure) {
+		final StringBuilder description = new StringBuilder( String.valueOf( failure.getMessage() ) );
+		Throwable cause = failure.getCause();
+		while ( cause != null && cause != failure ) {
+			description.append( " (" ).append( cause.getMessage() ).append( ')' );
+			failure = cause;
+			cause = cause.getCause();
+		}
+		return description.toString();
+	}
+}
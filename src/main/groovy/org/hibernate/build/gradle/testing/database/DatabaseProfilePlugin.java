@@ -26,6 +26,7 @@ package org.hibernate.build.gradle.testing.database;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -38,6 +39,10 @@ import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 
+import org.hibernate.build.gradle.testing.database.alloc.ReclaimAllocationsTask;
+import org.hibernate.build.gradle.util.MatrixStateDirectory;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
 /**
  * Plugin used to apply notion of database profiles, which are consumed by the matrix testing plugin.
  *
@@ -55,22 +60,58 @@ public class DatabaseProfilePlugin implements Plugin<Project> {
 	 */
 	public static final String CUSTOM_DATABASES_DIRECTORY_KEY = "hibernate-matrix-databases";
 	public static final String HIBERNATE_MATRIX_IGNORE = "hibernate-matrix-ignore";
+	/**
+	 * Value of the {@link #HIBERNATE_MATRIX_IGNORE} setting which ignores all profiles.
+	 */
+	public static final String IGNORE_ALL = "all";
+
+	/**
+	 * Names a system setting which can be set to {@code false} to disable the {@link ProfileIndex}, forcing the
+	 * profile directories to be walked and every profile to be read again.  Defaults to {@code true}.
+	 */
+	public static final String PROFILE_INDEX_KEY = "hibernate-matrix-profile-index";
+
+	/**
+	 * The name of the task reclaiming database allocations left behind by earlier builds.
+	 */
+	public static final String RECLAIM_TASK_NAME = "matrixReclaim";
 
 	private static final String MATRIX_BUILD_FILE = "matrix.gradle";
 	private static final String JDBC_DIR = "jdbc";
+	private static final String PROFILE_INDEX_FILE = "profile-index.properties";
 
 	private static final Logger log = Logging.getLogger( DatabaseProfilePlugin.class );
 
     private Project project;
+	private ProfileIndex index;
 	private List<DatabaseProfile> profiles;
 
     public void apply(Project project) {
         this.project = project;
+		if ( SettingsHelper.getBoolean( PROFILE_INDEX_KEY, true ) ) {
+			this.index = ProfileIndex.load( MatrixStateDirectory.resolve( project, PROFILE_INDEX_FILE ) );
+		}
 
 		final LinkedHashMap<String, DatabaseProfile> profileMap = new LinkedHashMap<>();
 		processStandardProfiles( profileMap );
 		processCustomProfiles( profileMap );
 		this.profiles = new ArrayList<>( profileMap.values() );
+
+		if ( index != null ) {
+			// profiles are built on demand, so the index is only complete once the build is done
+			project.getGradle().buildFinished( result -> index.store() );
+		}
+
+		if ( !project.getTasks().getNames().contains( RECLAIM_TASK_NAME ) ) {
+			project.getTasks().register(
+					RECLAIM_TASK_NAME,
+					ReclaimAllocationsTask.class,
+					task -> {
+						task.setGroup( "matrix" );
+						task.setDescription( "Reclaims database allocations left behind by earlier builds" );
+					}
+			);
+		}
     }
 
 	private void processStandardProfiles(Map<String, DatabaseProfile> profileMap) {
@@ -88,37 +129,68 @@ public class DatabaseProfilePlugin implements Plugin<Project> {
 		processProfiles( standardDatabasesDirectory, profileMap );
 	}
 
-	private void processProfiles(File directory, Map<String, DatabaseProfile> profileMap) {
+	private void processProfiles(File root, Map<String, DatabaseProfile> profileMap) {
+		List<File> profileDirectories = index == null ? null : index.findProfileDirectories( root );
+		if ( profileDirectories == null ) {
+			final List<File> visitedDirectories = new ArrayList<File>();
+			profileDirectories = new ArrayList<File>();
+			locateProfileDirectories( root, visitedDirectories, profileDirectories );
+			if ( index != null ) {
+				index.recordProfileDirectories( root, visitedDirectories, profileDirectories );
+			}
+		}
+		else {
+			log.debug( "Using indexed database profile directories under [{}]", root );
+		}
+
+		for ( File profileDirectory : profileDirectories ) {
+			processProfile( profileDirectory, profileMap );
+		}
+	}
+
+	private void locateProfileDirectories(File directory, List<File> visitedDirectories, List<File> profileDirectories) {
+		visitedDirectories.add( directory );
+
 		// the directory itself is a "database directory" if it contains either:
 		//		1) a file named 'matrix.gradle'
 		//		2) a directory named 'jdbc'
-		DatabaseProfile databaseProfile = null;
-		final File matrixDotGradleFile = new File( directory, MATRIX_BUILD_FILE );
-		if ( matrixDotGradleFile.exists() && matrixDotGradleFile.isFile() ) {
-			log.debug( "Found matrix.gradle file : " + matrixDotGradleFile );
-			databaseProfile = new MatrixDotGradleProfile( matrixDotGradleFile, project );
-		}
-		final File jdbcDirectory = new File( directory, JDBC_DIR );
-		if ( jdbcDirectory.exists() && jdbcDirectory.isDirectory() ) {
-			databaseProfile = new JdbcDirectoryProfile( jdbcDirectory, project );
+		if ( new File( directory, MATRIX_BUILD_FILE ).isFile() || new File( directory, JDBC_DIR ).isDirectory() ) {
+			profileDirectories.add( directory );
+			return;
 		}
 
-		if ( databaseProfile == null ) {
-			// we determined this directory is not a database directory, check its sub-directories
-			for ( File subDirectory : directory.listFiles() ) {
-				if ( subDirectory.isDirectory() ) {
-					processProfiles( subDirectory, profileMap );
-				}
+		// we determined this directory is not a database directory, check its sub-directories
+		final File[] subDirectories = directory.listFiles();
+		if ( subDirectories == null ) {
+			return;
+		}
+		Arrays.sort( subDirectories );
+		for ( File subDirectory : subDirectories ) {
+			if ( subDirectory.isDirectory() ) {
+				locateProfileDirectories( subDirectory, visitedDirectories, profileDirectories );
 			}
-			return; // EARLY EXIT!!!
 		}
+	}
 
-		final String profileName = databaseProfile.getName();
-		if ( ignored().contains( profileName ) ) {
+	private void processProfile(File directory, Map<String, DatabaseProfile> profileMap) {
+		// filter before anything about the profile is read or evaluated
+		final String profileName = directory.getName();
+		if ( ignored().contains( IGNORE_ALL ) || ignored().contains( profileName ) ) {
 			log.debug( "Skipping ignored database profile [{}]", profileName );
 			return;
 		}
 
+		if ( ! new File( directory, JDBC_DIR ).isDirectory() && ! new File( directory, MATRIX_BUILD_FILE ).isFile() ) {
+			// the index was stale; the directory no longer defines a profile
+			return;
+		}
+
+		if ( index != null ) {
+			// keep what the index knows about the profile even if it does not get built during this build
+			index.retainProfile( directory );
+		}
+		final DatabaseProfile databaseProfile = new LazyDatabaseProfile( directory, () -> buildProfile( directory ) );
+
 		DatabaseProfile previousEntry = profileMap.put( profileName, databaseProfile );
 		if ( previousEntry != null ) {
 			log.lifecycle(
@@ -130,6 +202,51 @@ public class DatabaseProfilePlugin implements Plugin<Project> {
 		}
 	}
 
+	private DatabaseProfile buildProfile(File directory) {
+		// a 'jdbc' directory takes precedence over a 'matrix.gradle' file
+		final File jdbcDirectory = new File( directory, JDBC_DIR );
+		if ( jdbcDirectory.isDirectory() ) {
+			return new JdbcDirectoryProfile( jdbcDirectory, project, hibernateProperties( directory ) );
+		}
+
+		final File matrixDotGradleFile = new File( directory, MATRIX_BUILD_FILE );
+		log.debug( "Found matrix.gradle file : " + matrixDotGradleFile );
+		return matrixDotGradleProfile( matrixDotGradleFile );
+	}
+
+	private Map<String,Object> hibernateProperties(File profileDirectory) {
+		if ( index == null ) {
+			return AbstractDatabaseProfileImpl.loadHibernateProperties( profileDirectory );
+		}
+
+		final File propertiesFile = AbstractDatabaseProfileImpl.hibernatePropertiesFile( profileDirectory );
+		Map<String,Object> properties = index.findHibernateProperties( profileDirectory, propertiesFile );
+		if ( properties == null ) {
+			properties = AbstractDatabaseProfileImpl.loadHibernateProperties( profileDirectory );
+			index.recordHibernateProperties( profileDirectory, propertiesFile, properties );
+		}
+		return properties;
+	}
+
+	private DatabaseProfile matrixDotGradleProfile(File matrixDotGradleFile) {
+		final Map<String,Object> properties = hibernateProperties( matrixDotGradleFile.getParentFile() );
+		if ( index == null ) {
+			return new MatrixDotGradleProfile( matrixDotGradleFile, project, properties, null );
+		}
+
+		final List<String> knownJdbcDependencies = index.findJdbcDependencies( matrixDotGradleFile );
+		final MatrixDotGradleProfile profile = new MatrixDotGradleProfile(
+				matrixDotGradleFile,
+				project,
+				properties,
+				knownJdbcDependencies
+		);
+		if ( knownJdbcDependencies == null ) {
+			index.recordJdbcDependencies( matrixDotGradleFile, profile.getRecordedJdbcDependencies() );
+		}
+		return profile;
+	}
+
 	private Set<String> ignored;
 
 	private Set<String> ignored() {
@@ -0,0 +1,224 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.ServiceLoader;
+
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocation;
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Opens JDBC connections to a profile's database from within the build (as opposed to the test JVMs), loading
+ * the driver from the profile's testing runtime classpath.
+ * <p/>
+ * Closing the connector closes the driver ClassLoader it built itself (one passed in stays owned by the caller).
+ */
+public class JdbcConnector implements Closeable {
+	public static final String DRIVER_KEY = "hibernate.connection.driver_class";
+	public static final String URL_KEY = "hibernate.connection.url";
+	public static final String USER_KEY = "hibernate.connection.username";
+	public static final String PASSWORD_KEY = "hibernate.connection.password";
+
+	private final String profileName;
+	private final ClassLoader driverClassLoader;
+	private final boolean ownsDriverClassLoader;
+	private final String driverClassName;
+	private final String url;
+	private final String user;
+	private final String password;
+
+	private Driver driver;
+
+	/**
+	 * Constructs a connector.
+	 *
+	 * @param profile The profile whose driver to use
+	 * @param connectionProperties The {@code hibernate.connection.*} settings to connect with
+	 */
+	public JdbcConnector(DatabaseProfile profile, Map<String,?> connectionProperties) {
+		this( profile.getName(), buildDriverClassLoader( profile ), true, connectionProperties );
+	}
+
+	/**
+	 * Constructs a connector.
+	 *
+	 * @param profileName The name of the profile, for messages
+	 * @param driverClassLoader The ClassLoader containing the JDBC driver
+	 * @param connectionProperties The {@code hibernate.connection.*} settings to connect with
+	 */
+	public JdbcConnector(String profileName, ClassLoader driverClassLoader, Map<String,?> connectionProperties) {
+		this( profileName, driverClassLoader, false, connectionProperties );
+	}
+
+	private JdbcConnector(
+			String profileName,
+			ClassLoader driverClassLoader,
+			boolean ownsDriverClassLoader,
+			Map<String,?> connectionProperties) {
+		this.profileName = profileName;
+		this.driverClassLoader = driverClassLoader;
+		this.ownsDriverClassLoader = ownsDriverClassLoader;
+		this.driverClassName = asString( connectionProperties.get( DRIVER_KEY ) );
+		this.url = asString( connectionProperties.get( URL_KEY ) );
+		this.user = asString( connectionProperties.get( USER_KEY ) );
+		this.password = asString( connectionProperties.get( PASSWORD_KEY ) );
+		if ( url == null ) {
+			closeDriverClassLoader();
+			throw new BuildException( "Database profile [" + profileName + "] does not define " + URL_KEY );
+		}
+	}
+
+	private static String asString(Object value) {
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Build a ClassLoader over the profile's testing runtime classpath (which contains the JDBC driver).
+	 *
+	 * @param profile The database profile
+	 *
+	 * @return The ClassLoader
+	 */
+	public static ClassLoader buildDriverClassLoader(DatabaseProfile profile) {
+		final List<URL> urls = new ArrayList<URL>();
+		for ( File file : profile.getTestingRuntimeConfiguration().getFiles() ) {
+			try {
+				urls.add( file.toURI().toURL() );
+			}
+			catch (MalformedURLException e) {
+				throw new BuildException( "Unable to build driver classpath for profile [" + profile.getName() + "]", e );
+			}
+		}
+		return new URLClassLoader( urls.toArray( new URL[urls.size()] ), JdbcConnector.class.getClassLoader() );
+	}
+
+	/**
+	 * Close a ClassLoader built by {@link #buildDriverClassLoader}.
+	 *
+	 * @param driverClassLoader The ClassLoader, may be {@code null}
+	 */
+	public static void closeDriverClassLoader(ClassLoader driverClassLoader) {
+		if ( driverClassLoader instanceof URLClassLoader ) {
+			try {
+				( (URLClassLoader) driverClassLoader ).close();
+			}
+			catch (IOException ignore) {
+			}
+		}
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * Open a connection to the database.
+	 *
+	 * @return The connection
+	 *
+	 * @throws SQLException Indicates a problem connecting
+	 */
+	public Connection connect() throws SQLException {
+		return connect( url );
+	}
+
+	/**
+	 * Open a connection to the database of the given test worker, substituting the worker id for the
+	 * {@code ${org.gradle.test.worker}} placeholder in the URL.
+	 *
+	 * @param workerId The test worker id, or {@code null}
+	 *
+	 * @return The connection
+	 *
+	 * @throws SQLException Indicates a problem connecting
+	 */
+	public Connection connectForWorker(String workerId) throws SQLException {
+		return connect( resolveWorker( url, workerId ) );
+	}
+
+	/**
+	 * Substitute the worker id for the {@code ${org.gradle.test.worker}} placeholder.
+	 *
+	 * @param value The value (URL, schema name, etc)
+	 * @param workerId The test worker id, or {@code null}
+	 *
+	 * @return The resolved value
+	 */
+	public static String resolveWorker(String value, String workerId) {
+		if ( value == null || workerId == null ) {
+			return value;
+		}
+		return value.replace( DatabaseAllocation.WORKER_PLACEHOLDER, workerId );
+	}
+
+	private Connection connect(String url) throws SQLException {
+		final Properties info = new Properties();
+		if ( user != null ) {
+			info.setProperty( "user", user );
+		}
+		if ( password != null ) {
+			info.setProperty( "password", password );
+		}
+		final Connection connection = driver().connect( url, info );
+		if ( connection == null ) {
+			throw new SQLException( "JDBC driver for profile [" + profileName + "] does not accept URL [" + url + "]" );
+		}
+		return connection;
+	}
+
+	private synchronized Driver driver() throws SQLException {
+		if ( driver == null ) {
+			driver = loadDriver();
+		}
+		return driver;
+	}
+
+	private Driver loadDriver() throws SQLException {
+		if ( driverClassName != null ) {
+			try {
+				return (Driver) Class.forName( driverClassName, true, driverClassLoader )
+						.getDeclaredConstructor()
+						.newInstance();
+			}
+			catch (Exception e) {
+				throw new SQLException( "Unable to load JDBC driver [" + driverClassName + "] for profile [" + profileName + "]", e );
+			}
+		}
+
+		for ( Driver candidate : ServiceLoader.load( Driver.class, driverClassLoader ) ) {
+			if ( candidate.acceptsURL( url ) ) {
+				return candidate;
+			}
+		}
+		throw new SQLException( "No JDBC driver found for profile [" + profileName + "] accepting URL [" + url + "]" );
+	}
+
+	@Override
+	public synchronized void close() {
+		driver = null;
+		closeDriverClassLoader();
+	}
+
+	private void closeDriverClassLoader() {
+		if ( ownsDriverClassLoader ) {
+			closeDriverClassLoader( driverClassLoader );
+		}
+	}
+}
@@ -36,7 +36,11 @@ public class JdbcDirectoryProfile extends AbstractDatabaseProfileImpl {
     private final Configuration jdbcDependencies;
 
     public JdbcDirectoryProfile(File jdbcDirectory, Project project) {
-        super( jdbcDirectory.getParentFile(), project );
+        this( jdbcDirectory, project, loadHibernateProperties( jdbcDirectory.getParentFile() ) );
+    }
+
+    public JdbcDirectoryProfile(File jdbcDirectory, Project project, Map<String,Object> hibernateProperties) {
+        super( jdbcDirectory.getParentFile(), project, hibernateProperties );
         jdbcDependencies = prepareConfiguration( getName() );
         project.dependencies.add(getName(), project.files(jdbcDirectory.listFiles()));
     }
@@ -0,0 +1,78 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.File;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * A discovered database profile which is only built (its {@code hibernate.properties} read, its {@code matrix.gradle}
+ * evaluated and its {@link Configuration} created) the first time its properties or configuration are accessed.
+ * The name and directory are known from discovery alone.
+ */
+public class LazyDatabaseProfile implements DatabaseProfile {
+	private static final Logger log = Logging.getLogger( LazyDatabaseProfile.class );
+
+	private final String name;
+	private final File directory;
+	private final Supplier<DatabaseProfile> factory;
+
+	private volatile DatabaseProfile profile;
+
+	public LazyDatabaseProfile(File directory, Supplier<DatabaseProfile> factory) {
+		this.name = directory.getName();
+		this.directory = directory;
+		this.factory = factory;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public File getDirectory() {
+		return directory;
+	}
+
+	@Override
+	public Map<String, Object> getHibernateProperties() {
+		return materialize().getHibernateProperties();
+	}
+
+	@Override
+	public Configuration getTestingRuntimeConfiguration() {
+		return materialize().getTestingRuntimeConfiguration();
+	}
+
+	/**
+	 * Has the profile been built yet?
+	 *
+	 * @return {@code true} if the profile was built
+	 */
+	public boolean isMaterialized() {
+		return profile != null;
+	}
+
+	/**
+	 * Build the profile, if not done already.
+	 *
+	 * @return The built profile
+	 */
+	public synchronized DatabaseProfile materialize() {
+		if ( profile == null ) {
+			log.debug( "Materializing database profile [{}]", name );
+			profile = factory.get();
+		}
+		return profile;
+	}
+}
@@ -24,7 +24,10 @@
 package org.hibernate.build.gradle.testing.database;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import groovy.lang.Closure;
 import org.gradle.api.Project;
@@ -40,10 +43,42 @@ public class MatrixDotGradleProfile extends AbstractDatabaseProfileImpl {
 	private static final String MATRIX_NODE_CONVENTION_KEY = "matrixNode";
 
 	private final Configuration jdbcDependencies;
+	private final List<String> recordedJdbcDependencies;
 
 	protected MatrixDotGradleProfile(File matrixDotGradleFile, Project project) {
-		super( matrixDotGradleFile.getParentFile(), project );
+		this(
+				matrixDotGradleFile,
+				project,
+				loadHibernateProperties( matrixDotGradleFile.getParentFile() ),
+				null
+		);
+	}
+
+	/**
+	 * Constructs the profile, either evaluating the {@code matrix.gradle} file or, when available, replaying the
+	 * JDBC dependencies an earlier evaluation declared.
+	 *
+	 * @param matrixDotGradleFile The {@code matrix.gradle} file
+	 * @param project The project
+	 * @param hibernateProperties The profile's Hibernate properties
+	 * @param knownJdbcDependencies The JDBC dependency notations declared by the file, if known; {@code null}
+	 * indicates the file needs to be evaluated
+	 */
+	protected MatrixDotGradleProfile(
+			File matrixDotGradleFile,
+			Project project,
+			Map<String,Object> hibernateProperties,
+			List<String> knownJdbcDependencies) {
+		super( matrixDotGradleFile.getParentFile(), project, hibernateProperties );
 		jdbcDependencies = prepareConfiguration( getName() );
+		if ( knownJdbcDependencies != null ) {
+			for ( String dependencyNotation : knownJdbcDependencies ) {
+				project.getDependencies().add( jdbcDependencies.getName(), dependencyNotation );
+			}
+			recordedJdbcDependencies = knownJdbcDependencies;
+			return;
+		}
+
         final ConventionImpl convention = new ConventionImpl( jdbcDependencies, project );
         project.getConvention().getPlugins().put( MATRIX_NODE_CONVENTION_KEY, convention );
         try {
@@ -52,6 +87,18 @@ public class MatrixDotGradleProfile extends AbstractDatabaseProfileImpl {
         finally {
             project.getConvention().getPlugins().remove( MATRIX_NODE_CONVENTION_KEY );
         }
+		recordedJdbcDependencies = convention.replayable ? convention.dependencyNotations : null;
+	}
+
+	/**
+	 * The JDBC dependency notations declared by the {@code matrix.gradle} file, suitable for replaying in later
+	 * builds without evaluating the file.
+	 *
+	 * @return The notations, or {@code null} if the file declared dependencies in a way which cannot be replayed
+	 * (using a configuration closure or a non-String notation)
+	 */
+	public List<String> getRecordedJdbcDependencies() {
+		return recordedJdbcDependencies;
 	}
 
 	@Override
@@ -62,6 +109,8 @@ public class MatrixDotGradleProfile extends AbstractDatabaseProfileImpl {
 	private class ConventionImpl {
         private final Configuration jdbcDependencies;
 		private final Project project;
+		private final List<String> dependencyNotations = new ArrayList<String>();
+		private boolean replayable = true;
 
         private ConventionImpl(Configuration jdbcDependencies, Project project) {
             this.jdbcDependencies = jdbcDependencies;
@@ -70,11 +119,18 @@ public class MatrixDotGradleProfile extends AbstractDatabaseProfileImpl {
 
 		@SuppressWarnings( {"UnusedDeclaration"})
         public void jdbcDependency(Object dependencyNotation, Closure closure) {
+            replayable = false;
             project.getDependencies().add( jdbcDependencies.getName(), dependencyNotation, closure );
         }
 
 		@SuppressWarnings( {"UnusedDeclaration"})
         public void jdbcDependency(Object dependencyNotation) {
+            if ( dependencyNotation instanceof CharSequence ) {
+                dependencyNotations.add( dependencyNotation.toString() );
+            }
+            else {
+                replayable = false;
+            }
             project.getDependencies().add( jdbcDependencies.getName(), dependencyNotation );
         }
 	}
@@ -0,0 +1,361 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Persistent index of the database profiles found by {@link DatabaseProfilePlugin}, allowing later builds to skip
+ * the directory walks, the reading of {@code hibernate.properties} files and the evaluation of {@code matrix.gradle}
+ * files when nothing changed.
+ * <p/>
+ * Directory walks are keyed by the modification time of every directory visited, which changes whenever entries are
+ * added to or removed from it.  Profile files are keyed by modification time and length : a file whose modification
+ * time and length are unchanged is taken as unchanged without reading it.  Only when those differ is its content
+ * hash compared, so that a file touched without being changed (e.g. by a checkout) still counts as unchanged.
+ * <p/>
+ * Only what is confirmed or recorded during a build is written back, so entries for profiles which went away are
+ * dropped.
+ */
+public class ProfileIndex {
+	private static final Logger log = Logging.getLogger( ProfileIndex.class );
+
+	private static final String VERSION_KEY = "version";
+	private static final String VERSION = "1";
+	private static final String SEPARATOR = "|";
+	private static final String LINE_SEPARATOR = "\n";
+	private static final String FIELD_SEPARATOR = "\t";
+
+	private final File file;
+	private final Properties previous;
+	private final Properties current = new Properties();
+	private boolean changed;
+
+	private ProfileIndex(File file, Properties previous) {
+		this.file = file;
+		this.previous = previous;
+		current.setProperty( VERSION_KEY, VERSION );
+	}
+
+	/**
+	 * Load the index from the given file.
+	 *
+	 * @param file The index file; need not exist
+	 *
+	 * @return The index
+	 */
+	public static ProfileIndex load(File file) {
+		final Properties previous = new Properties();
+		if ( file.exists() ) {
+			try {
+				final InputStream stream = new FileInputStream( file );
+				try {
+					previous.load( stream );
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (IOException e) {
+				log.debug( "Unable to read database profile index [{}]; ignoring it", file );
+				previous.clear();
+			}
+			if ( !VERSION.equals( previous.getProperty( VERSION_KEY ) ) ) {
+				previous.clear();
+			}
+		}
+		return new ProfileIndex( file, previous );
+	}
+
+	/**
+	 * Access the profile directories found when the given root was last walked, provided none of the directories
+	 * visited by that walk changed since.
+	 *
+	 * @param root The root directory of the walk
+	 *
+	 * @return The profile directories, or {@code null} if the root needs to be walked again
+	 */
+	public synchronized List<File> findProfileDirectories(File root) {
+		final String visitedKey = key( "walk", root.getAbsolutePath(), "visited" );
+		final String profilesKey = key( "walk", root.getAbsolutePath(), "profiles" );
+		final String visited = previous.getProperty( visitedKey );
+		final String profiles = previous.getProperty( profilesKey );
+		if ( visited == null || profiles == null ) {
+			return null;
+		}
+
+		for ( String line : lines( visited ) ) {
+			final String[] fields = line.split( FIELD_SEPARATOR );
+			if ( fields.length != 2 || !Long.toString( new File( fields[0] ).lastModified() ).equals( fields[1] ) ) {
+				// changed, or a corrupt entry : walk again
+				return null;
+			}
+		}
+
+		current.setProperty( visitedKey, visited );
+		current.setProperty( profilesKey, profiles );
+
+		final List<File> profileDirectories = new ArrayList<File>();
+		for ( String line : lines( profiles ) ) {
+			profileDirectories.add( new File( line ) );
+		}
+		return profileDirectories;
+	}
+
+	/**
+	 * Record the result of walking the given root.
+	 *
+	 * @param root The root directory of the walk
+	 * @param visitedDirectories All directories visited by the walk
+	 * @param profileDirectories The profile directories found
+	 */
+	public synchronized void recordProfileDirectories(File root, List<File> visitedDirectories, List<File> profileDirectories) {
+		final StringBuilder visited = new StringBuilder();
+		for ( File directory : visitedDirectories ) {
+			appendLine( visited, directory.getAbsolutePath() + FIELD_SEPARATOR + directory.lastModified() );
+		}
+		final StringBuilder profiles = new StringBuilder();
+		for ( File directory : profileDirectories ) {
+			appendLine( profiles, directory.getAbsolutePath() );
+		}
+		current.setProperty( key( "walk", root.getAbsolutePath(), "visited" ), visited.toString() );
+		current.setProperty( key( "walk", root.getAbsolutePath(), "profiles" ), profiles.toString() );
+		changed = true;
+	}
+
+	/**
+	 * Carry the entries recorded for the given profile over to this build, for profiles which are discovered but not
+	 * built.  Entries confirmed or recorded later in the build replace them.
+	 *
+	 * @param profileDirectory The profile directory
+	 */
+	public synchronized void retainProfile(File profileDirectory) {
+		final List<String> prefixes = Arrays.asList(
+				key( "profile", profileDirectory.getAbsolutePath(), "" ),
+				key( "script", new File( profileDirectory, "matrix.gradle" ).getAbsolutePath(), "" )
+		);
+		for ( String name : previous.stringPropertyNames() ) {
+			for ( String prefix : prefixes ) {
+				if ( name.startsWith( prefix ) ) {
+					current.setProperty( name, previous.getProperty( name ) );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Access the Hibernate properties of the given profile, as read by an earlier build, provided its
+	 * {@code hibernate.properties} file did not change since.
+	 *
+	 * @param profileDirectory The profile directory
+	 * @param propertiesFile The profile's {@code hibernate.properties} file
+	 *
+	 * @return The properties, or {@code null} if they need to be read again
+	 */
+	public synchronized Map<String,Object> findHibernateProperties(File profileDirectory, File propertiesFile) {
+		final String stampKey = key( "profile", profileDirectory.getAbsolutePath(), "properties" );
+		final String stamp = previous.getProperty( stampKey );
+		if ( stamp == null || !stamp.equals( stamp( propertiesFile, false ) ) ) {
+			return null;
+		}
+
+		current.setProperty( stampKey, stamp );
+		final String prefix = key( "profile", profileDirectory.getAbsolutePath(), "property", "" );
+		final Map<String,Object> properties = new HashMap<String, Object>();
+		for ( String name : previous.stringPropertyNames() ) {
+			if ( name.startsWith( prefix ) ) {
+				properties.put( name.substring( prefix.length() ), previous.getProperty( name ) );
+				current.setProperty( name, previous.getProperty( name ) );
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Record the Hibernate properties read for the given profile.
+	 *
+	 * @param profileDirectory The profile directory
+	 * @param propertiesFile The profile's {@code hibernate.properties} file
+	 * @param properties The properties read
+	 */
+	public synchronized void recordHibernateProperties(File profileDirectory, File propertiesFile, Map<String,Object> properties) {
+		final String prefix = key( "profile", profileDirectory.getAbsolutePath(), "property", "" );
+		for ( String name : current.stringPropertyNames() ) {
+			if ( name.startsWith( prefix ) ) {
+				current.remove( name );
+			}
+		}
+		current.setProperty( key( "profile", profileDirectory.getAbsolutePath(), "properties" ), stamp( propertiesFile, false ) );
+		for ( Map.Entry<String,Object> entry : properties.entrySet() ) {
+			current.setProperty(
+					key( "profile", profileDirectory.getAbsolutePath(), "property", entry.getKey() ),
+					String.valueOf( entry.getValue() )
+			);
+		}
+		changed = true;
+	}
+
+	/**
+	 * Access the JDBC dependencies declared by the given {@code matrix.gradle} file, as recorded by an earlier
+	 * evaluation, provided the file did not change since.
+	 *
+	 * @param matrixDotGradleFile The {@code matrix.gradle} file
+	 *
+	 * @return The dependency notations, or {@code null} if the file needs to be evaluated
+	 */
+	public synchronized List<String> findJdbcDependencies(File matrixDotGradleFile) {
+		final String stampKey = key( "script", matrixDotGradleFile.getAbsolutePath(), "stamp" );
+		final String dependenciesKey = key( "script", matrixDotGradleFile.getAbsolutePath(), "dependencies" );
+		final String stamp = previous.getProperty( stampKey );
+		final String dependencies = previous.getProperty( dependenciesKey );
+		if ( stamp == null || dependencies == null ) {
+			return null;
+		}
+		final String currentStamp = restamp( stamp, matrixDotGradleFile );
+		if ( currentStamp == null ) {
+			return null;
+		}
+
+		current.setProperty( stampKey, currentStamp );
+		current.setProperty( dependenciesKey, dependencies );
+		return lines( dependencies );
+	}
+
+	/**
+	 * Record the JDBC dependencies declared by evaluating the given {@code matrix.gradle} file.
+	 *
+	 * @param matrixDotGradleFile The {@code matrix.gradle} file
+	 * @param dependencies The declared dependency notations, or {@code null} if the script did something which
+	 * cannot be replayed from the index
+	 */
+	public synchronized void recordJdbcDependencies(File matrixDotGradleFile, List<String> dependencies) {
+		if ( dependencies == null ) {
+			return;
+		}
+		final StringBuilder buffer = new StringBuilder();
+		for ( String dependency : dependencies ) {
+			appendLine( buffer, dependency );
+		}
+		current.setProperty( key( "script", matrixDotGradleFile.getAbsolutePath(), "stamp" ), stamp( matrixDotGradleFile, true ) );
+		current.setProperty( key( "script", matrixDotGradleFile.getAbsolutePath(), "dependencies" ), buffer.toString() );
+		changed = true;
+	}
+
+	/**
+	 * Write the index back, if anything was recorded during this build.
+	 */
+	public synchronized void store() {
+		if ( !changed && current.size() == previous.size() ) {
+			return;
+		}
+		try {
+			file.getParentFile().mkdirs();
+			final OutputStream stream = new FileOutputStream( file );
+			try {
+				current.store( stream, "Hibernate matrix database profile index" );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn( "Unable to write database profile index [" + file + "]", e );
+		}
+	}
+
+	private static String key(String... parts) {
+		final StringBuilder buffer = new StringBuilder();
+		for ( String part : parts ) {
+			if ( buffer.length() > 0 ) {
+				buffer.append( SEPARATOR );
+			}
+			buffer.append( part );
+		}
+		return buffer.toString();
+	}
+
+	private static List<String> lines(String value) {
+		if ( value.length() == 0 ) {
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>( Arrays.asList( value.split( LINE_SEPARATOR ) ) );
+	}
+
+	private static void appendLine(StringBuilder buffer, String line) {
+		if ( buffer.length() > 0 ) {
+			buffer.append( LINE_SEPARATOR );
+		}
+		buffer.append( line );
+	}
+
+	/**
+	 * Check the stamp still describes the file, comparing modification time and length first and the content hash
+	 * only when those differ.
+	 *
+	 * @return The stamp to record for the file, or {@code null} if its content changed
+	 */
+	private static String restamp(String stamp, File file) {
+		final String[] fields = stamp.split( FIELD_SEPARATOR );
+		if ( fields.length != 3 || !file.exists() ) {
+			return null;
+		}
+		if ( fields[0].equals( Long.toString( file.lastModified() ) ) && fields[1].equals( Long.toString( file.length() ) ) ) {
+			return stamp;
+		}
+		final String currentStamp = stamp( file, true );
+		return currentStamp.endsWith( FIELD_SEPARATOR + fields[2] ) ? currentStamp : null;
+	}
+
+	private static String stamp(File file, boolean includeHash) {
+		if ( !file.exists() ) {
+			return "-";
+		}
+		final String stamp = file.lastModified() + FIELD_SEPARATOR + file.length();
+		return includeHash ? stamp + FIELD_SEPARATOR + hash( file ) : stamp;
+	}
+
+	private static String hash(File file) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			final InputStream stream = new FileInputStream( file );
+			try {
+				final byte[] buffer = new byte[8192];
+				int read;
+				while ( ( read = stream.read( buffer ) ) != -1 ) {
+					digest.update( buffer, 0, read );
+				}
+			}
+			finally {
+				stream.close();
+			}
+			final StringBuilder hex = new StringBuilder();
+			for ( byte b : digest.digest() ) {
+				hex.append( String.format( "%02x", b ) );
+			}
+			return hex.toString();
+		}
+		catch (IOException | NoSuchAlgorithmException e) {
+			return "";
+		}
+	}
+}
@@ -34,6 +34,13 @@ import org.gradle.api.tasks.testing.Test;
  * @author Brett Meyer
  */
 public interface DatabaseAllocation {
+	/**
+	 * Placeholder for the id of the Gradle test worker (fork) executing the tests.  Hibernate resolves
+	 * {@code ${...}} system property placeholders in its settings, so fork-isolated allocations can use this in the
+	 * {@code hibernate.connection.*} properties they set to point each fork at its own schema/catalog/database.
+	 */
+	public static final String WORKER_PLACEHOLDER = "${org.gradle.test.worker}";
+
 	public void prepareForExecution(Test testTask);
 	
 	/**
@@ -44,4 +51,75 @@ public interface DatabaseAllocation {
 	public void beforeTestClass();
 
 	public void release();
+
+	/**
+	 * Does this allocation give each test worker (fork) its own schema/catalog/database?  Only fork-isolated
+	 * allocations allow a matrix node to run with more than one fork.
+	 * <p/>
+	 * Fork-isolated allocations are expected to reference {@link #WORKER_PLACEHOLDER} in the connection properties
+	 * applied in {@link #prepareForExecution}.
+	 *
+	 * @return {@code true} if each fork is isolated; {@code false} (the default) otherwise.
+	 */
+	public default boolean isForkIsolated() {
+		return false;
+	}
+
+	/**
+	 * Called when a test worker (fork) starts, allowing fork-isolated allocations to create its database.
+	 *
+	 * @param workerId The Gradle test worker id, as substituted for {@link #WORKER_PLACEHOLDER}
+	 */
+	public default void prepareFork(String workerId) {
+	}
+
+	/**
+	 * Called once a test worker (fork) has run all of its test classes, allowing fork-isolated allocations to free its
+	 * database early rather than when released.
+	 *
+	 * @param workerId The Gradle test worker id, as substituted for {@link #WORKER_PLACEHOLDER}
+	 */
+	public default void forkFinished(String workerId) {
+	}
+
+	/**
+	 * Fork-aware form of {@link #beforeTestClass()}, erasing just the database of the given test worker.  By default
+	 * simply delegates to {@link #beforeTestClass()}.
+	 *
+	 * @param workerId The Gradle test worker id, as substituted for {@link #WORKER_PLACEHOLDER}
+	 */
+	public default void beforeTestClass(String workerId) {
+		beforeTestClass();
+	}
+
+	/**
+	 * Form of {@link #beforeTestClass(String)} called by runners starting each test class themselves, once the
+	 * previous one has finished (such as the warm node task), rather than as the build learns of a test class a fork
+	 * has already started.  No test uses the database meanwhile, so it can be restored to a baseline (see
+	 * {@link ResettingDatabaseAllocation}).  By default simply delegates to {@link #beforeTestClass(String)}.
+	 *
+	 * @param workerId The Gradle test worker id, as substituted for {@link #WORKER_PLACEHOLDER}
+	 */
+	public default void beforeTestClassStarts(String workerId) {
+		beforeTestClass( workerId );
+	}
+
+	/**
+	 * Extend the lifetime of the allocation with the service that allocated it, for allocations that otherwise
+	 * expire.  Called periodically while the allocation is held in the {@link DatabaseAllocationPool}; a no-op by
+	 * default.
+	 */
+	public default void renew() {
+	}
+
+	/**
+	 * A key identifying this allocation to its provider, allowing the provider to reclaim the allocation in a later
+	 * build should its release not succeed, see {@link DatabaseAllocationProvider#reclaim}.  {@code null} (the
+	 * default) for allocations which cannot outlive the build, or which are not (yet) allocated.
+	 *
+	 * @return The reclaim key, or {@code null}
+	 */
+	public default String getReclaimKey() {
+		return null;
+	}
 }
@@ -23,29 +23,333 @@
  */
 package org.hibernate.build.gradle.testing.database.alloc;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gradle.BuildAdapter;
 import org.gradle.BuildResult;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import org.hibernate.build.gradle.util.SettingsHelper;
 
 /**
- * A Gradle {@link org.gradle.BuildListener} used to release all databases allocated when the build is finished.
+ * Releases the databases allocated during the build : each as soon as it is known to be no longer needed
+ * ({@link #releaseNow}), and all others once the build is finished ({@link #releaseAll}, which is also what this does
+ * as a Gradle {@link org.gradle.BuildListener}).  Allocations registered as poolable are offered to the
+ * {@link DatabaseAllocationPool} (if given) first, and only released if the pool does not take them.
+ * <p/>
+ * Each allocation is released along with the allocations decorating it (decorators first), and these chains are
+ * released concurrently in the background.  The end of the build waits at most {@link #RELEASE_TIMEOUT_KEY} for
+ * them; releases still in progress then carry on in the background.  A failed release is retried a few times before
+ * being given up.
+ * <p/>
+ * Allocations with a {@link DatabaseAllocation#getReclaimKey() reclaim key} are recorded in the
+ * {@link LeakedAllocations} (if any) as soon as acquired - when added here, or once their key becomes known (see
+ * {@link #acquired}) - until successfully released, so that those left behind by a crashed or killed build, or by a
+ * release which did not succeed, can be reclaimed later on.
+ * <p/>
+ * Allocations may be added concurrently, as they are obtained in the background.
  *
  * @author Steve Ebersole
  */
 public class DatabaseAllocationCleanUp extends BuildAdapter {
-	private Set<DatabaseAllocation> databaseAllocations = new HashSet<DatabaseAllocation>();
+	private static final Logger log = Logging.getLogger( DatabaseAllocationCleanUp.class );
+
+	/**
+	 * Names a system setting for how long (in seconds) the end of the build waits for allocations to be released.
+	 * Defaults to 120.
+	 */
+	public static final String RELEASE_TIMEOUT_KEY = "hibernate-matrix-release-timeout";
+
+	private static final int MAX_RELEASE_THREADS = 8;
+	private static final int RELEASE_ATTEMPTS = 3;
+	private static final long RELEASE_RETRY_MILLIS = 1000;
+
+	private final LeakedAllocations leakedAllocations;
+	private final DatabaseAllocationPool pool;
+
+	private Set<DatabaseAllocation> databaseAllocations = new LinkedHashSet<DatabaseAllocation>();
+	private Map<DatabaseAllocation,String> poolableAllocations = new HashMap<DatabaseAllocation, String>();
+	private Map<DatabaseAllocation,DatabaseAllocation> decoratedAllocations = new HashMap<DatabaseAllocation, DatabaseAllocation>();
+	private final Set<DatabaseAllocation> recordedAllocations = new HashSet<DatabaseAllocation>();
+	private final Set<DatabaseAllocation> releasedAllocations = new HashSet<DatabaseAllocation>();
+	private final List<CompletableFuture<Void>> releases = new ArrayList<CompletableFuture<Void>>();
+	private ExecutorService releaseExecutor;
+
+	public DatabaseAllocationCleanUp() {
+		this( null, null );
+	}
+
+	public DatabaseAllocationCleanUp(LeakedAllocations leakedAllocations) {
+		this( leakedAllocations, null );
+	}
+
+	public DatabaseAllocationCleanUp(LeakedAllocations leakedAllocations, DatabaseAllocationPool pool) {
+		this.leakedAllocations = leakedAllocations;
+		this.pool = pool;
+	}
+
+	public synchronized void addDatabaseAllocation(DatabaseAllocation databaseAllocation) {
+		databaseAllocations.add( databaseAllocation );
+		acquired( databaseAllocation );
+	}
 
-	public void addDatabaseAllocation(DatabaseAllocation databaseAllocation) {
+	/**
+	 * Add an allocation to be offered to the pool (if any) rather than released.
+	 *
+	 * @param fingerprint The {@link DatabaseAllocationPool#fingerprint fingerprint} of the allocated profile
+	 * @param databaseAllocation The allocation
+	 */
+	public synchronized void addPoolableAllocation(String fingerprint, DatabaseAllocation databaseAllocation) {
 		databaseAllocations.add( databaseAllocation );
+		poolableAllocations.put( databaseAllocation, fingerprint );
+		acquired( databaseAllocation );
+	}
+
+	/**
+	 * Add an allocation decorating another one, which is to be released first.
+	 *
+	 * @param decorating The decorating allocation
+	 * @param decorated The decorated allocation
+	 */
+	public synchronized void addDecoratingAllocation(DatabaseAllocation decorating, DatabaseAllocation decorated) {
+		databaseAllocations.add( decorating );
+		decoratedAllocations.put( decorating, decorated );
+		acquired( decorating );
+	}
+
+	/**
+	 * Record an allocation as acquired, so that it can be reclaimed should the build never get to release it.  Called
+	 * when the allocation is added, and again by whoever learns of the allocation's
+	 * {@link DatabaseAllocation#getReclaimKey() reclaim key} only later (e.g. once the allocator service answered).
+	 * Allocations without a reclaim key (yet), already recorded or already released are ignored.
+	 *
+	 * @param allocation The allocation
+	 */
+	public synchronized void acquired(DatabaseAllocation allocation) {
+		if ( leakedAllocations == null || releasedAllocations.contains( allocation ) ) {
+			return;
+		}
+		final String reclaimKey = allocation.getReclaimKey();
+		if ( reclaimKey != null && recordedAllocations.add( allocation ) ) {
+			// written under the lock, so that a concurrent release cannot remove the record before it is written
+			leakedAllocations.add( Collections.singletonMap( reclaimKey, Instant.now().toString() ) );
+		}
+	}
+
+	/**
+	 * Release an allocation no longer needed, along with the allocations it decorates, right away (in the background)
+	 * rather than once the build is finished.  Allocations not added to this clean-up (or already released) are
+	 * ignored.
+	 *
+	 * @param allocation The (outermost) allocation to release
+	 */
+	public void releaseNow(DatabaseAllocation allocation) {
+		final List<DatabaseAllocation> chain = new ArrayList<DatabaseAllocation>();
+		synchronized ( this ) {
+			if ( !databaseAllocations.contains( allocation ) ) {
+				return;
+			}
+			DatabaseAllocation link = allocation;
+			while ( link != null && !chain.contains( link ) ) {
+				chain.add( link );
+				link = decoratedAllocations.remove( link );
+			}
+			databaseAllocations.removeAll( chain );
+		}
+		startReleases( Collections.singletonList( chain ) );
 	}
 
 	@Override
 	public void buildFinished(BuildResult result) {
 		super.buildFinished( result );
-		for ( DatabaseAllocation databaseAllocation : databaseAllocations ) {
-			databaseAllocation.release();
+		releaseAll();
+	}
+
+	/**
+	 * Release all allocations not yet released, waiting at most {@link #RELEASE_TIMEOUT_KEY} for these and for the
+	 * releases already in progress.
+	 */
+	public void releaseAll() {
+		final List<List<DatabaseAllocation>> chains;
+		synchronized ( this ) {
+			chains = releaseChains();
+			databaseAllocations.clear();
+			decoratedAllocations.clear();
+		}
+		startReleases( chains );
+
+		final List<CompletableFuture<Void>> pendingReleases;
+		synchronized ( this ) {
+			pendingReleases = new ArrayList<CompletableFuture<Void>>( releases );
+			releases.clear();
+			if ( releaseExecutor != null ) {
+				// lets the releases in progress complete, then the threads go away
+				releaseExecutor.shutdown();
+				releaseExecutor = null;
+			}
 		}
+		if ( pendingReleases.isEmpty() ) {
+			return;
+		}
+
+		final int timeoutSeconds = SettingsHelper.getInt( RELEASE_TIMEOUT_KEY, 120 );
+		try {
+			CompletableFuture.allOf( pendingReleases.toArray( new CompletableFuture[0] ) ).get( timeoutSeconds, TimeUnit.SECONDS );
+		}
+		catch (TimeoutException e) {
+			int pending = 0;
+			for ( CompletableFuture<Void> release : pendingReleases ) {
+				if ( !release.isDone() ) {
+					pending++;
+				}
+			}
+			log.warn(
+					"{} database allocation release(s) still in progress after {}s; continuing in the background "
+							+ "(allocations left behind can be reclaimed through the matrixReclaim task)",
+					pending,
+					timeoutSeconds
+			);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			// releaseChain handles its own failures
+			log.warn( "Unexpected failure releasing database allocations", e.getCause() );
+		}
+	}
+
+	private void startReleases(List<List<DatabaseAllocation>> chains) {
+		if ( chains.isEmpty() ) {
+			return;
+		}
+		synchronized ( this ) {
+			// allocations whose reclaim key became known without anyone telling
+			for ( List<DatabaseAllocation> chain : chains ) {
+				for ( DatabaseAllocation allocation : chain ) {
+					acquired( allocation );
+				}
+			}
+			final ExecutorService executor = releaseExecutor();
+			for ( final List<DatabaseAllocation> chain : chains ) {
+				releases.add( CompletableFuture.runAsync( () -> releaseChain( chain ), executor ) );
+			}
+		}
+	}
+
+	private ExecutorService releaseExecutor() {
+		if ( releaseExecutor == null ) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+					MAX_RELEASE_THREADS,
+					MAX_RELEASE_THREADS,
+					30,
+					TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					runnable -> {
+						final Thread thread = new Thread( runnable, "hibernate-matrix-release-" + threadCount.incrementAndGet() );
+						thread.setDaemon( true );
+						return thread;
+					}
+			);
+			executor.allowCoreThreadTimeOut( true );
+			releaseExecutor = executor;
+		}
+		return releaseExecutor;
+	}
+
+	/**
+	 * Group the allocations into chains of an allocation preceded by those decorating it, in release order.
+	 */
+	private synchronized List<List<DatabaseAllocation>> releaseChains() {
+		final Set<DatabaseAllocation> decorated = new HashSet<DatabaseAllocation>( decoratedAllocations.values() );
+		final List<List<DatabaseAllocation>> chains = new ArrayList<List<DatabaseAllocation>>();
+		final List<DatabaseAllocation> outermostFirst = new ArrayList<DatabaseAllocation>( databaseAllocations );
+		Collections.reverse( outermostFirst );
+		for ( DatabaseAllocation allocation : outermostFirst ) {
+			if ( decorated.contains( allocation ) ) {
+				continue;
+			}
+			final List<DatabaseAllocation> chain = new ArrayList<DatabaseAllocation>();
+			DatabaseAllocation link = allocation;
+			while ( link != null && !chain.contains( link ) ) {
+				chain.add( link );
+				link = decoratedAllocations.get( link );
+			}
+			chains.add( chain );
+		}
+		return chains;
+	}
+
+	private void releaseChain(List<DatabaseAllocation> chain) {
+		for ( DatabaseAllocation allocation : chain ) {
+			final String fingerprint;
+			synchronized ( this ) {
+				fingerprint = poolableAllocations.get( allocation );
+			}
+			if ( fingerprint != null && pool != null && pool.offer( fingerprint, allocation ) ) {
+				released( allocation );
+				continue;
+			}
+			release( allocation );
+		}
+	}
+
+	private void release(DatabaseAllocation allocation) {
+		for ( int attempt = 1; ; attempt++ ) {
+			try {
+				allocation.release();
+				released( allocation );
+				return;
+			}
+			catch (RuntimeException e) {
+				if ( attempt >= RELEASE_ATTEMPTS ) {
+					log.warn(
+							"Unable to release database allocation " + describe( allocation ) + " after " + attempt + " attempts",
+							e
+					);
+					return;
+				}
+				log.info( "Release of database allocation {} failed ({}); retrying", describe( allocation ), e.getMessage() );
+				try {
+					Thread.sleep( RELEASE_RETRY_MILLIS * attempt );
+				}
+				catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private synchronized void released(DatabaseAllocation allocation) {
+		releasedAllocations.add( allocation );
+		recordedAllocations.remove( allocation );
+		final String reclaimKey = allocation.getReclaimKey();
+		if ( leakedAllocations != null && reclaimKey != null ) {
+			leakedAllocations.remove( Collections.singleton( reclaimKey ) );
+		}
+	}
+
+	private static String describe(DatabaseAllocation allocation) {
+		final String reclaimKey = allocation.getReclaimKey();
+		return reclaimKey == null ? allocation.getClass().getSimpleName() : "[" + reclaimKey + "]";
 	}
 }
@@ -0,0 +1,414 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * Pool of warm, already clean database allocations kept between builds run by the same Gradle daemon.
+ * <p/>
+ * Rather than being released at the end of a build, pooled allocations are erased and held idle under a
+ * time-limited lease, ready to be handed straight to the next build.  While idle they are periodically
+ * {@link DatabaseAllocation#renew() renewed}; once their lease runs out they are recycled (released).  The pool
+ * also provisions additional allocations in the background so that it holds up to the configured number of
+ * allocations per profile.
+ * <p/>
+ * The pool itself is a build service, configured by plain values for each build.  Only the idle allocations outlive
+ * the build (in a store shared by the builds of the daemon), keyed by the {@link #fingerprint fingerprint} of what
+ * they were allocated for, so that a profile whose definition changed in between builds never gets a stale
+ * allocation.  Nothing of a build's model (project, profiles) is kept.
+ * <p/>
+ * Pooling is disabled unless the {@link #POOL_SIZE_KEY} setting is greater than 0.
+ */
+public abstract class DatabaseAllocationPool implements BuildService<DatabaseAllocationPool.Params> {
+	private static final Logger log = Logging.getLogger( DatabaseAllocationPool.class );
+
+	public static final String SERVICE_NAME = "hibernateMatrixDatabaseAllocationPool";
+
+	/**
+	 * Names a system setting for the number of allocations to keep per profile.  Defaults to 0 (no pooling).
+	 */
+	public static final String POOL_SIZE_KEY = "hibernate-matrix-pool-size";
+	/**
+	 * Names a system setting for how long (in minutes) an idle pooled allocation is kept before being released.
+	 * Defaults to 60.
+	 */
+	public static final String POOL_LEASE_KEY = "hibernate-matrix-pool-lease";
+
+	private static final long MAINTENANCE_INTERVAL_SECONDS = 60;
+
+	private static final IdleAllocations IDLE_ALLOCATIONS = new IdleAllocations();
+
+	public interface Params extends BuildServiceParameters {
+		Property<Integer> getSize();
+
+		Property<Integer> getLeaseMinutes();
+	}
+
+	private volatile int minimumSize;
+
+	/**
+	 * Register (once per build) the pool service, configured from the {@link #POOL_SIZE_KEY} and
+	 * {@link #POOL_LEASE_KEY} settings.
+	 *
+	 * @param project Any project of the build
+	 *
+	 * @return The pool service reference
+	 */
+	public static Provider<DatabaseAllocationPool> registerService(Project project) {
+		final int size = Math.max( 0, SettingsHelper.getInt( POOL_SIZE_KEY, 0 ) );
+		final int leaseMinutes = Math.max( 1, SettingsHelper.getInt( POOL_LEASE_KEY, 60 ) );
+		return project.getGradle().getSharedServices().registerIfAbsent(
+				SERVICE_NAME,
+				DatabaseAllocationPool.class,
+				spec -> {
+					spec.getParameters().getSize().set( size );
+					spec.getParameters().getLeaseMinutes().set( leaseMinutes );
+				}
+		);
+	}
+
+	/**
+	 * The key identifying what an allocation is for : the profile's name and Hibernate properties, along with the
+	 * providers (their class names and {@link DatabaseAllocationProvider#getPoolKey() pool keys}) which could have
+	 * allocated it.  Pooled allocations are only handed to a profile
+	 * with the same fingerprint.
+	 *
+	 * @param profile The profile
+	 * @param providers The registered allocation providers, in order
+	 *
+	 * @return The fingerprint
+	 */
+	public static String fingerprint(DatabaseProfile profile, List<DatabaseAllocationProvider> providers) {
+		final StringBuilder buffer = new StringBuilder( profile.getName() );
+		buffer.append( '|' ).append( new TreeMap<Object, Object>( profile.getHibernateProperties() ) );
+		for ( DatabaseAllocationProvider provider : providers ) {
+			buffer.append( '|' ).append( provider.getClass().getName() );
+			buffer.append( '(' ).append( provider.getPoolKey() ).append( ')' );
+		}
+		return profile.getName() + "#" + UUID.nameUUIDFromBytes( buffer.toString().getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	private int size() {
+		return Math.max( getParameters().getSize().get(), minimumSize );
+	}
+
+	private long leaseMillis() {
+		return TimeUnit.MINUTES.toMillis( getParameters().getLeaseMinutes().get() );
+	}
+
+	/**
+	 * Make the pool keep at least the given number of allocations per profile for the rest of this build, whatever
+	 * {@link #POOL_SIZE_KEY} says.  Used when allocations are expected to be held between builds (see
+	 * {@code WarmMatrixNodeTask}); must be called before the allocations are obtained.
+	 *
+	 * @param minimumSize The minimum number of allocations to keep per profile
+	 */
+	public void keepAtLeast(int minimumSize) {
+		if ( this.minimumSize < minimumSize ) {
+			this.minimumSize = minimumSize;
+		}
+	}
+
+	public boolean isEnabled() {
+		return size() > 0;
+	}
+
+	/**
+	 * Take an idle allocation from the pool.
+	 *
+	 * @param fingerprint The {@link #fingerprint} of the profile to allocate
+	 *
+	 * @return The allocation, or {@code null} if none is available
+	 */
+	public DatabaseAllocation acquire(String fingerprint) {
+		return IDLE_ALLOCATIONS.acquire( fingerprint );
+	}
+
+	/**
+	 * Offer an allocation no longer used by the build back to the pool.  Accepted allocations are erased in the
+	 * background before becoming available again.
+	 *
+	 * @param fingerprint The {@link #fingerprint} of the profile the allocation was obtained for
+	 * @param allocation The allocation
+	 *
+	 * @return {@code true} if the pool took ownership of the allocation; {@code false} if the caller should release
+	 * it.
+	 */
+	public boolean offer(final String fingerprint, final DatabaseAllocation allocation) {
+		if ( !isEnabled() ) {
+			return false;
+		}
+		return IDLE_ALLOCATIONS.offer( fingerprint, allocation, size(), leaseMillis() );
+	}
+
+	/**
+	 * Provision allocations in the background so that, counting the one currently in use, the pool will hold its
+	 * configured number once the build finishes.
+	 * <p/>
+	 * Each missing allocation is prepared on the calling thread, where the build model may be accessed; the
+	 * prepared work then runs on a pool thread and must not touch the model.
+	 *
+	 * @param fingerprint The {@link #fingerprint} of the profile
+	 * @param preparation Prepares the work obtaining a new allocation; the work may return {@code null}
+	 */
+	public void replenish(final String fingerprint, final Supplier<Callable<DatabaseAllocation>> preparation) {
+		final int missing = IDLE_ALLOCATIONS.reserve( fingerprint, size() - 1 );
+		for ( int i = 0; i < missing; i++ ) {
+			final Callable<DatabaseAllocation> work;
+			try {
+				work = preparation.get();
+			}
+			catch (RuntimeException e) {
+				log.warn( "Unable to provision pooled database allocation [" + fingerprint + "]", e );
+				IDLE_ALLOCATIONS.cancel( fingerprint );
+				continue;
+			}
+			IDLE_ALLOCATIONS.provision( fingerprint, work, leaseMillis() );
+		}
+	}
+
+	/**
+	 * The idle allocations of the daemon, along with the thread maintaining them.
+	 */
+	private static class IdleAllocations {
+		private final Map<String,Deque<Lease>> idleLeases = new HashMap<String, Deque<Lease>>();
+		private final Map<String,Integer> pendingCounts = new HashMap<String, Integer>();
+		private ScheduledExecutorService executor;
+
+		private synchronized ScheduledExecutorService executor() {
+			if ( executor == null ) {
+				executor = Executors.newScheduledThreadPool(
+						2,
+						runnable -> {
+							final Thread thread = new Thread( runnable, "hibernate-matrix-allocation-pool" );
+							thread.setDaemon( true );
+							return thread;
+						}
+				);
+				executor.scheduleWithFixedDelay(
+						this::maintain,
+						MAINTENANCE_INTERVAL_SECONDS,
+						MAINTENANCE_INTERVAL_SECONDS,
+						TimeUnit.SECONDS
+				);
+				Runtime.getRuntime().addShutdownHook(
+						new Thread( this::releaseAll, "hibernate-matrix-allocation-pool-shutdown" )
+				);
+			}
+			return executor;
+		}
+
+		private synchronized DatabaseAllocation acquire(String fingerprint) {
+			final Deque<Lease> leases = idleLeases.get( fingerprint );
+			while ( leases != null && !leases.isEmpty() ) {
+				final Lease lease = leases.poll();
+				if ( !lease.isExpired() ) {
+					return lease.allocation;
+				}
+				recycle( fingerprint, lease );
+			}
+			return null;
+		}
+
+		private synchronized boolean offer(
+				final String fingerprint,
+				final DatabaseAllocation allocation,
+				int size,
+				final long leaseMillis) {
+			if ( countAvailable( fingerprint ) >= size ) {
+				return false;
+			}
+
+			incrementPending( fingerprint );
+			executor().execute(
+					() -> {
+						try {
+							allocation.beforeTestClass();
+							makeAvailable( fingerprint, allocation, leaseMillis );
+						}
+						catch (RuntimeException e) {
+							log.warn( "Unable to clean database allocation for pooling [" + fingerprint + "]", e );
+							decrementPending( fingerprint );
+							release( allocation );
+						}
+					}
+			);
+			return true;
+		}
+
+		/**
+		 * Reserve the allocations missing for the given number to be available.
+		 *
+		 * @return The number of allocations reserved, each to be either provisioned or cancelled
+		 */
+		private synchronized int reserve(String fingerprint, int target) {
+			final int missing = Math.max( 0, target - countAvailable( fingerprint ) );
+			for ( int i = 0; i < missing; i++ ) {
+				incrementPending( fingerprint );
+			}
+			return missing;
+		}
+
+		private synchronized void cancel(String fingerprint) {
+			decrementPending( fingerprint );
+		}
+
+		private void provision(final String fingerprint, final Callable<DatabaseAllocation> work, final long leaseMillis) {
+			if ( work == null ) {
+				cancel( fingerprint );
+				return;
+			}
+			executor().execute(
+					() -> {
+						try {
+							final DatabaseAllocation allocation = work.call();
+							if ( allocation == null ) {
+								cancel( fingerprint );
+							}
+							else {
+								makeAvailable( fingerprint, allocation, leaseMillis );
+							}
+						}
+						catch (Exception e) {
+							log.warn( "Unable to provision pooled database allocation [" + fingerprint + "]", e );
+							cancel( fingerprint );
+						}
+					}
+			);
+		}
+
+		private synchronized void makeAvailable(String fingerprint, DatabaseAllocation allocation, long leaseMillis) {
+			decrementPending( fingerprint );
+			Deque<Lease> leases = idleLeases.get( fingerprint );
+			if ( leases == null ) {
+				leases = new ArrayDeque<Lease>();
+				idleLeases.put( fingerprint, leases );
+			}
+			leases.add( new Lease( allocation, System.currentTimeMillis() + leaseMillis ) );
+			log.debug( "Pooled database allocation [{}] is available", fingerprint );
+		}
+
+		private int countAvailable(String fingerprint) {
+			final Deque<Lease> leases = idleLeases.get( fingerprint );
+			final Integer pending = pendingCounts.get( fingerprint );
+			return ( leases == null ? 0 : leases.size() ) + ( pending == null ? 0 : pending );
+		}
+
+		private void incrementPending(String fingerprint) {
+			final Integer pending = pendingCounts.get( fingerprint );
+			pendingCounts.put( fingerprint, pending == null ? 1 : pending + 1 );
+		}
+
+		private synchronized void decrementPending(String fingerprint) {
+			final Integer pending = pendingCounts.get( fingerprint );
+			if ( pending != null && pending > 1 ) {
+				pendingCounts.put( fingerprint, pending - 1 );
+			}
+			else {
+				pendingCounts.remove( fingerprint );
+			}
+		}
+
+		/**
+		 * Renew the idle allocations whose lease is still running and recycle the others.
+		 */
+		private void maintain() {
+			final List<Lease> toRenew = new ArrayList<Lease>();
+			synchronized ( this ) {
+				for ( Map.Entry<String,Deque<Lease>> entry : idleLeases.entrySet() ) {
+					final Iterator<Lease> leases = entry.getValue().iterator();
+					while ( leases.hasNext() ) {
+						final Lease lease = leases.next();
+						if ( lease.isExpired() ) {
+							leases.remove();
+							recycle( entry.getKey(), lease );
+						}
+						else {
+							toRenew.add( lease );
+						}
+					}
+				}
+			}
+
+			for ( Lease lease : toRenew ) {
+				try {
+					lease.allocation.renew();
+				}
+				catch (RuntimeException e) {
+					log.warn( "Unable to renew pooled database allocation", e );
+				}
+			}
+		}
+
+		private void recycle(final String fingerprint, final Lease lease) {
+			log.debug( "Lease expired on pooled database allocation [{}]; releasing", fingerprint );
+			executor().execute( () -> release( lease.allocation ) );
+		}
+
+		private void releaseAll() {
+			final List<Lease> leases = new ArrayList<Lease>();
+			synchronized ( this ) {
+				for ( Deque<Lease> fingerprintLeases : idleLeases.values() ) {
+					leases.addAll( fingerprintLeases );
+				}
+				idleLeases.clear();
+			}
+			for ( Lease lease : leases ) {
+				release( lease.allocation );
+			}
+		}
+	}
+
+	private static void release(DatabaseAllocation allocation) {
+		try {
+			allocation.release();
+		}
+		catch (RuntimeException e) {
+			log.warn( "Unable to release pooled database allocation", e );
+		}
+	}
+
+	private static class Lease {
+		private final DatabaseAllocation allocation;
+		private final long expiresAt;
+
+		private Lease(DatabaseAllocation allocation, long expiresAt) {
+			this.allocation = allocation;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package org.hibernate.build.gradle.testing.database.alloc;
 
+import java.util.concurrent.Callable;
+
 import org.gradle.api.Project;
 
 import org.hibernate.build.gradle.testing.database.DatabaseProfile;
@@ -9,4 +11,82 @@ import org.hibernate.build.gradle.testing.database.DatabaseProfile;
  */
 public interface DatabaseAllocationProvider {
 	DatabaseAllocation buildAllocation(Project rootProject, DatabaseProfile profile, DatabaseAllocationCleanUp cleanUp);
+
+	/**
+	 * Prepare the allocation for the given profile, so that it can be obtained off the build thread (in the
+	 * background, or by the {@link DatabaseAllocationPool}).  Everything needing the project or the profile is
+	 * resolved here, on a build thread; the returned work then obtains the allocation from these values alone, and
+	 * may be called on any thread.
+	 * <p/>
+	 * By default the allocation is built right away through {@link #buildAllocation}, so that providers only
+	 * implementing that method are only ever called on a build thread.  Providers overriding this method should
+	 * leave obtaining the allocation to the returned work, which is only called once the allocation is needed.
+	 *
+	 * @param rootProject The root project
+	 * @param profile The profile
+	 * @param cleanUp The clean-up the allocation is to be registered with
+	 *
+	 * @return The work obtaining the allocation, or {@code null} if this provider does not allocate the profile
+	 */
+	default Callable<DatabaseAllocation> prepareAllocation(
+			Project rootProject,
+			DatabaseProfile profile,
+			DatabaseAllocationCleanUp cleanUp) {
+		final DatabaseAllocation allocation = buildAllocation( rootProject, profile, cleanUp );
+		return allocation == null ? null : () -> allocation;
+	}
+
+	/**
+	 * Does this provider allocate the given profile?  Must neither allocate anything nor touch the project.
+	 * Defaults to {@code true}, as a provider only implementing {@link #buildAllocation} cannot tell without
+	 * allocating.
+	 *
+	 * @param profile The profile
+	 *
+	 * @return {@code false} if the provider certainly does not allocate the profile
+	 */
+	default boolean allocates(DatabaseProfile profile) {
+		return true;
+	}
+
+	/**
+	 * Hint that an allocation for the given profile will be needed in this build (its node is scheduled).  Providers
+	 * able to allocate asynchronously can start doing so, so that allocations for all scheduled profiles proceed in
+	 * parallel rather than one at a time as nodes start.  A no-op by default.
+	 * <p/>
+	 * Only called when allocations are started speculatively (see {@link DatabaseAllocator#PREALLOCATE_KEY}) or as
+	 * the node starts executing.  A speculatively started allocation may end up unused (e.g. the node's result comes
+	 * from the build cache), so anything allocated here must be registered with the clean-up.
+	 *
+	 * @param rootProject The root project
+	 * @param profile The profile
+	 * @param cleanUp The clean-up releasing allocations at the end of the build
+	 */
+	default void prefetch(Project rootProject, DatabaseProfile profile, DatabaseAllocationCleanUp cleanUp) {
+	}
+
+	/**
+	 * Identify the settings of this provider which determine what it allocates (such as the service it allocates
+	 * from), for {@link DatabaseAllocationPool pooled} allocations to only be handed to later builds using the same
+	 * providers.  Along with the provider's class name, it keys the pool, so it must be the same from one build to
+	 * the next for providers set up the same way.  Defaults to an empty string : any two instances of the provider
+	 * class are interchangeable.
+	 *
+	 * @return The pool key
+	 */
+	default String getPoolKey() {
+		return "";
+	}
+
+	/**
+	 * Reclaim an allocation left behind by an earlier build whose release did not succeed.
+	 *
+	 * @param rootProject The root project
+	 * @param reclaimKey The allocation's {@link DatabaseAllocation#getReclaimKey() reclaim key}
+	 *
+	 * @return {@code true} if the allocation was this provider's and is now released; {@code false} otherwise
+	 */
+	default boolean reclaim(Project rootProject, String reclaimKey) {
+		return false;
+	}
 }
@@ -23,10 +23,35 @@
  */
 package org.hibernate.build.gradle.testing.database.alloc
 
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.BiConsumer
+import java.util.function.Supplier
+
+import org.gradle.api.Action
 import org.gradle.api.Project
 import org.gradle.api.logging.Logger
 import org.gradle.api.logging.Logging
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.services.BuildService
+import org.gradle.api.services.BuildServiceParameters
+import org.gradle.api.services.BuildServiceSpec
+import org.hibernate.build.gradle.testing.database.ConnectivityCheck
 import org.hibernate.build.gradle.testing.database.DatabaseProfile
+import org.hibernate.build.gradle.testing.database.JdbcConnector
+import org.hibernate.build.gradle.util.MatrixStateDirectory
+import org.hibernate.build.gradle.util.SettingsHelper
 
 /**
  * Delegate for managing dynamic database instance allocation as part of the testing lifecycle.
@@ -41,41 +66,136 @@ import org.hibernate.build.gradle.testing.database.DatabaseProfile
  *     <li><b>profile1{,profile2,...}</b> - allocate only the named profiles, provided the name is also one of the supported names</li>
  * </ul>
  *
+ * Profiles targeting an embedded engine (H2, HSQLDB, Derby) can be allocated without any external service through
+ * the {@link EmbeddedDatabaseAllocationProvider}, see {@link EmbeddedDatabaseAllocationProvider#EMBEDDED_KEY}.
+ *
+ * A node task starts its allocation in the background as soon as it starts executing (see {@link #preallocate}), and
+ * only waits for it once done with its other preparations.  Allocations can also be started speculatively for all
+ * scheduled nodes once the task graph is ready (see {@link #PREALLOCATE_KEY}).
+ * <p/>
+ * Providers are only ever called on build threads : what they need of the project and profile is resolved there
+ * (see {@link DatabaseAllocationProvider#prepareAllocation}), and only the work obtaining the allocation from those
+ * values runs in the background.
+ *
+ * Allocations can be kept warm between builds run by the same Gradle daemon through the
+ * {@link DatabaseAllocationPool}, see {@link DatabaseAllocationPool#POOL_SIZE_KEY}.
+ *
+ * The allocator is a build service shared by all projects of the build, so that each profile is allocated once (by
+ * whichever caller asks first; the others wait for that allocation) even with node tasks of several projects running
+ * in parallel.  Each scheduled node task holds a reference to the allocation of its profile (see {@link #retain}),
+ * and the allocation is released as soon as the last of these node tasks has finished (see {@link #releaseReference})
+ * rather than once the build is finished.
+ * <p/>
+ * The service holds no reference to the build model : the methods calling providers take the project from their
+ * (build thread) callers, and the state directory is a parameter of the service.
+ * <p/>
+ * The {@link #DB_ALLOCATOR_KEY dbAllocator} root project property of earlier versions still exposes
+ * {@link #registerProvider} and {@code getAllocation(profile)}, see {@link DatabaseAllocatorDelegate}.
+ *
  * @author mvecera
  * @author Strong Liu
  * @author Steve Ebersole
  */
-class DatabaseAllocator {
+abstract class DatabaseAllocator implements BuildService<Params>, AutoCloseable {
     private static final Logger log = Logging.getLogger( DatabaseAllocator.class );
 
+    public static final String SERVICE_NAME = "hibernateMatrixDatabaseAllocator";
+
+    /**
+     * Names the root project property through which earlier versions exposed the allocator.
+     *
+     * @deprecated Use {@link #locate} instead; the property is only kept for one more release, see
+     * {@link DatabaseAllocatorDelegate}
+     */
+    @Deprecated
     public static final String DB_ALLOCATOR_KEY = "dbAllocator";
 
-    private final Project rootProject;
+    private static final String LEAKED_ALLOCATIONS_FILE = "leaked-allocations.properties"
 
-    private final DatabaseAllocationCleanUp cleanUpListener;
-    private List<DatabaseAllocationProvider> providers;
-    private Map<String,DatabaseAllocation> databaseAllocationMap = new HashMap<String, DatabaseAllocation>();
+    /**
+     * Names a system setting controlling whether the allocations of scheduled nodes are started in the background as
+     * soon as the task graph is ready, rather than by each node task as it starts executing.  This is speculative : a
+     * node which then turns out up-to-date, cached or skipped will have been allocated for nothing.  Defaults to
+     * {@code false}.
+     */
+    public static final String PREALLOCATE_KEY = "hibernate-matrix-preallocate";
+    /**
+     * Names a system setting for the maximum number of allocations obtained concurrently in the background.
+     * Defaults to 4.
+     */
+    public static final String PREALLOCATE_CONCURRENCY_KEY = "hibernate-matrix-preallocate-concurrency";
+
+    interface Params extends BuildServiceParameters {
+        /**
+         * The file recording the allocations not released yet, see {@link LeakedAllocations}.
+         */
+        Property<File> getLeakedAllocationsFile();
+    }
+
+    private DatabaseAllocationCleanUp cleanUpListener;
+    private DatabaseAllocationPool pool;
+    private final List<DatabaseAllocationProvider> providers = new CopyOnWriteArrayList<>();
+    // one (possibly still in progress) allocation per profile; whoever puts the future in obtains the allocation
+    private final Map<String,CompletableFuture<DatabaseAllocation>> databaseAllocationMap = new ConcurrentHashMap<>();
+    // the number of scheduled node tasks yet to finish, per profile
+    private final Map<String,Integer> referenceCounts = new HashMap<>();
+    // the profiles no provider allocates, which are thus used with their own connection settings
+    private final Set<String> unallocatedProfiles = ConcurrentHashMap.newKeySet();
+    // the outcome of the pre-flight connectivity check per profile : null if reachable, otherwise the problem
+    private final Map<String,CompletableFuture<String>> preflightChecks = new ConcurrentHashMap<>();
+    private ExecutorService preflightExecutor;
+    private ExecutorService preallocationExecutor;
 
 
     /**
-     * Get the allocator delegate for this project
+     * Register (once per build) the allocator service.  Tasks using the allocator should declare the returned
+     * reference (as {@code MatrixNodeTest} does), so that the service outlives them.
      *
      * @param project The project
      *
-     * @return The allocator delegate
+     * @return The allocator service reference
+     */
+    public static Provider<DatabaseAllocator> registerService(Project project) {
+        return project.gradle.sharedServices.registerIfAbsent(
+                SERVICE_NAME,
+                DatabaseAllocator,
+                { BuildServiceSpec<Params> spec ->
+                    spec.parameters.leakedAllocationsFile.set(
+                            MatrixStateDirectory.resolve( project, LEAKED_ALLOCATIONS_FILE )
+                    )
+                } as Action
+        )
+    }
+
+    /**
+     * Get the allocator shared by all projects of the build
+     *
+     * @param project The project
+     *
+     * @return The allocator
      */
     public static DatabaseAllocator locate(Project project) {
-        if ( ! project.rootProject.hasProperty( DB_ALLOCATOR_KEY ) ) {
-            project.rootProject.ext.setProperty( DB_ALLOCATOR_KEY, new DatabaseAllocator( project.rootProject ) );
-        }
-        return (DatabaseAllocator) project.rootProject.properties[ DB_ALLOCATOR_KEY ];
+        final DatabaseAllocator allocator = registerService( project ).get()
+        allocator.initialize( DatabaseAllocationPool.registerService( project ).get() )
+        return allocator
     }
 
-    private DatabaseAllocator(Project rootProject) {
-        this.rootProject = rootProject
+    private synchronized void initialize(DatabaseAllocationPool pool) {
+        if ( this.pool != null ) {
+            return
+        }
+        this.pool = pool
+
+        // released by close(), once all tasks using the service are done
+        cleanUpListener = new DatabaseAllocationCleanUp( leakedAllocations(), pool );
 
-        cleanUpListener = new DatabaseAllocationCleanUp();
-        rootProject.getGradle().addBuildListener( cleanUpListener );
+        // embedded allocations take precedence over those of any provider registered later
+        registerProvider( EmbeddedDatabaseAllocationProvider.fromSettings() )
+        registerProvider( RestDatabaseAllocationProvider.fromSettings() )
+    }
+
+    private LeakedAllocations leakedAllocations() {
+        return new LeakedAllocations( parameters.leakedAllocationsFile.get() )
     }
 
     @SuppressWarnings("GroovyUnusedDeclaration")
@@ -85,29 +205,363 @@ class DatabaseAllocator {
         }
 
         log.lifecycle( "Registering DatabaseAllocationProvider : ${provider}" )
+        providers.add( provider );
+    }
+
+    /**
+     * Take a reference to the allocation of a profile on behalf of a scheduled node task, which is to give it back
+     * through {@link #releaseReference} once finished (whatever its outcome).
+     *
+     * @param profile The profile of the scheduled node
+     */
+    public synchronized void retain(DatabaseProfile profile) {
+        final Integer count = referenceCounts.get( profile.name )
+        referenceCounts.put( profile.name, count == null ? 1 : count + 1 )
+    }
+
+    /**
+     * Give back a reference taken through {@link #retain}.  Once no scheduled node task holds a reference anymore,
+     * the profile's allocation is released right away (in the background, once obtained if still in progress); a
+     * later request for the profile obtains a new allocation.
+     *
+     * @param profileName The name of the profile of the finished node
+     */
+    public void releaseReference(String profileName) {
+        final CompletableFuture<DatabaseAllocation> allocation
+        synchronized ( this ) {
+            final Integer count = referenceCounts.get( profileName )
+            if ( count == null ) {
+                return
+            }
+            if ( count > 1 ) {
+                referenceCounts.put( profileName, count - 1 )
+                return
+            }
+            referenceCounts.remove( profileName )
+            allocation = databaseAllocationMap.remove( profileName )
+        }
+        if ( allocation == null ) {
+            return
+        }
+        allocation.whenComplete( { DatabaseAllocation allocated, Throwable failure ->
+            if ( allocated != null ) {
+                log.lifecycle( "Releasing database allocation for ${profileName}; no scheduled node needs it anymore" )
+                cleanUpListener.releaseNow( allocated )
+            }
+        } as BiConsumer )
+    }
+
+    /**
+     * Release whatever is still allocated, once all tasks using the service are done.
+     */
+    @Override
+    public void close() {
+        final DatabaseAllocationCleanUp cleanUp
+        final ExecutorService executor
+        final ExecutorService checkExecutor
+        synchronized ( this ) {
+            cleanUp = cleanUpListener
+            executor = preallocationExecutor
+            checkExecutor = preflightExecutor
+        }
+        executor?.shutdown()
+        checkExecutor?.shutdown()
+        cleanUp?.releaseAll()
+    }
+
+    /**
+     * Whether the allocations of scheduled nodes are to be started as soon as the task graph is ready, see
+     * {@link #PREALLOCATE_KEY}.
+     *
+     * @return {@code true} to start allocations speculatively
+     */
+    public static boolean isSpeculativePreallocation() {
+        return SettingsHelper.getBoolean( PREALLOCATE_KEY, false )
+    }
+
+    /**
+     * Start obtaining the allocation for the profile in the background, unless already started.  Providers are first
+     * given the chance to start allocating asynchronously themselves, see {@link DatabaseAllocationProvider#prefetch}.
+     * <p/>
+     * Must be called on a build thread : the providers prepare the allocation here, and only the work they return
+     * runs in the background.
+     *
+     * @param project The project of the calling node
+     * @param profile The profile of a scheduled node
+     */
+    public void preallocate(Project project, DatabaseProfile profile) {
+        if ( databaseAllocationMap.containsKey( profile.name ) ) {
+            return
+        }
+        final CompletableFuture<DatabaseAllocation> allocation = new CompletableFuture<>()
+        synchronized ( this ) {
+            if ( databaseAllocationMap.putIfAbsent( profile.name, allocation ) != null ) {
+                return
+            }
+            for ( DatabaseAllocationProvider provider : providers ) {
+                provider.prefetch( project.rootProject, profile, cleanUpListener )
+            }
+        }
+
+        Callable<DatabaseAllocation> creation
+        try {
+            creation = prepareCreation( project.rootProject, profile )
+        }
+        catch (Throwable t) {
+            fail( profile, allocation, t )
+            return
+        }
+        preallocationExecutor().execute( { allocate( profile, allocation, creation ) } as Runnable )
+    }
+
+    /**
+     * Start the pre-flight connectivity check of a scheduled node's profile in the background (once per profile),
+     * see {@link ConnectivityCheck}.  Only the profiles no provider allocates (see {@link #isProviderAllocated}) are
+     * connected to here, with their own connection settings; the database of the others does not exist yet, and is
+     * to be checked once allocated.
+     * <p/>
+     * Must be called on a build thread, as the profile's driver classpath gets resolved.
+     *
+     * @param profile The profile of a scheduled node
+     * @param timeoutSeconds How long connecting may take
+     */
+    public synchronized void preflight(DatabaseProfile profile, int timeoutSeconds) {
+        if ( preflightChecks.containsKey( profile.name ) ) {
+            return
+        }
+        final CompletableFuture<String> check = new CompletableFuture<>()
+        preflightChecks.put( profile.name, check )
+        if ( isProviderAllocated( profile ) ) {
+            check.complete( null )
+            return
+        }
+
+        final ClassLoader driverClassLoader = JdbcConnector.buildDriverClassLoader( profile )
+        preflightExecutor().execute( {
+            try {
+                check.complete( ConnectivityCheck.check( profile, driverClassLoader, timeoutSeconds ) )
+            }
+            catch (Throwable t) {
+                check.complete( "connectivity check failed : " + t.message )
+            }
+            if ( check.join() != null ) {
+                log.lifecycle( "Pre-flight check of database profile [${profile.name}] failed : ${check.join()}" )
+            }
+        } as Runnable )
+    }
+
+    /**
+     * Is the profile's database obtained from one of the providers (rather than used with the profile's own
+     * connection settings)?
+     *
+     * @param profile The profile
+     *
+     * @return {@code true} if a provider allocates the profile
+     */
+    public boolean isProviderAllocated(DatabaseProfile profile) {
+        return providers.any { DatabaseAllocationProvider provider -> provider.allocates( profile ) }
+    }
+
+    /**
+     * Wait for the outcome of the pre-flight check of a profile, if one was started.
+     *
+     * @param profile The profile
+     *
+     * @return {@code null} if the profile's database is reachable (or was not checked), otherwise the problem
+     */
+    public String awaitPreflight(DatabaseProfile profile) {
+        final CompletableFuture<String> check = preflightChecks.get( profile.name )
+        return check == null ? null : check.join()
+    }
+
+    /**
+     * Get the allocation for the profile, obtaining it if not already started (see {@link #preallocate}), otherwise
+     * waiting for it.  Must be called on a build thread.
+     *
+     * @param project The project of the calling node
+     * @param profile The profile
+     *
+     * @return The allocation
+     */
+    public DatabaseAllocation getAllocation(Project project, DatabaseProfile profile) {
+        CompletableFuture<DatabaseAllocation> allocation = databaseAllocationMap.get( profile.name )
+        if ( allocation == null ) {
+            final CompletableFuture<DatabaseAllocation> created = new CompletableFuture<>()
+            allocation = databaseAllocationMap.putIfAbsent( profile.name, created )
+            if ( allocation == null ) {
+                allocation = created
+                try {
+                    allocate( profile, allocation, prepareCreation( project.rootProject, profile ) )
+                }
+                catch (Throwable t) {
+                    fail( profile, allocation, t )
+                }
+            }
+        }
+        else if ( !allocation.isDone() ) {
+            log.lifecycle( "Waiting for database allocation for ${profile.name}" )
+        }
+
+        try {
+            return allocation.join()
+        }
+        catch (CompletionException e) {
+            throw e.cause
+        }
+    }
+
+    /**
+     * Reclaim the allocations left behind by earlier builds (whose release failed or did not complete), through the
+     * registered providers.
+     *
+     * @param project The project of the calling task
+     *
+     * @return The reclaim keys of the allocations still left behind
+     */
+    public Set<String> reclaimLeaked(Project project) {
+        final Project rootProject = project.rootProject
+        final LeakedAllocations leaked = leakedAllocations()
+        final Set<String> remaining = new TreeSet<String>()
+        final List<String> reclaimed = new ArrayList<String>()
+        leaked.list().each { String reclaimKey, String recordedAt ->
+            final DatabaseAllocationProvider reclaimer = providers.find { it.reclaim( rootProject, reclaimKey ) }
+            if ( reclaimer != null ) {
+                log.lifecycle( "Reclaimed database allocation [${reclaimKey}] (left behind ${recordedAt})" )
+                reclaimed << reclaimKey
+            }
+            else {
+                remaining << reclaimKey
+            }
+        }
+        leaked.remove( reclaimed )
+        return remaining
+    }
+
+    /**
+     * Run the prepared work obtaining the allocation; may run on any thread.
+     */
+    private void allocate(
+            DatabaseProfile profile,
+            CompletableFuture<DatabaseAllocation> allocation,
+            Callable<DatabaseAllocation> creation) {
+        try {
+            allocation.complete( decorate( profile, creation.call() ) )
+        }
+        catch (Throwable t) {
+            fail( profile, allocation, t )
+        }
+    }
 
-        if ( providers == null ) {
-            providers = new ArrayList<>();
+    private void fail(DatabaseProfile profile, CompletableFuture<DatabaseAllocation> allocation, Throwable failure) {
+        // forget the failure, so that the next request for the profile tries again
+        databaseAllocationMap.remove( profile.name, allocation )
+        allocation.completeExceptionally( failure )
+    }
+
+    private synchronized ExecutorService preflightExecutor() {
+        if ( preflightExecutor == null ) {
+            // a thread per profile : checks wait on allocations and connections, not on the CPU
+            final AtomicInteger threadCount = new AtomicInteger()
+            preflightExecutor = Executors.newCachedThreadPool(
+                    { Runnable runnable ->
+                        final Thread thread = new Thread( runnable, "hibernate-matrix-preflight-check-" + threadCount.incrementAndGet() )
+                        thread.daemon = true
+                        return thread
+                    } as ThreadFactory
+            )
         }
-        providers += provider;
+        return preflightExecutor
     }
 
-    public DatabaseAllocation getAllocation(DatabaseProfile profile) {
-		DatabaseAllocation databaseAllocation = databaseAllocationMap.get( profile.name );
-		if ( databaseAllocation == null ) {
-			databaseAllocation = createAllocation( profile );
-			databaseAllocationMap.put( profile.name, databaseAllocation );
-		}
-		return databaseAllocation;
-	}
+    private synchronized ExecutorService preallocationExecutor() {
+        if ( preallocationExecutor == null ) {
+            final int concurrency = Math.max( 1, SettingsHelper.getInt( PREALLOCATE_CONCURRENCY_KEY, 4 ) )
+            final AtomicInteger threadCount = new AtomicInteger()
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    concurrency,
+                    concurrency,
+                    30,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    { Runnable runnable ->
+                        final Thread thread = new Thread( runnable, "hibernate-matrix-preallocation-" + threadCount.incrementAndGet() )
+                        thread.daemon = true
+                        return thread
+                    } as ThreadFactory
+            )
+            executor.allowCoreThreadTimeOut( true )
+            preallocationExecutor = executor
+        }
+        return preallocationExecutor
+    }
 
-	private DatabaseAllocation createAllocation(DatabaseProfile profile) {
+    /**
+     * Prepare, on a build thread, the work obtaining the allocation for the profile : from the pool, from the first
+     * provider allocating the profile, or none at all.
+     */
+    private Callable<DatabaseAllocation> prepareCreation(Project rootProject, DatabaseProfile profile) {
+        final String fingerprint = pool.enabled ? DatabaseAllocationPool.fingerprint( profile, providers ) : null
+        if ( fingerprint != null ) {
+            final DatabaseAllocation pooled = pool.acquire( fingerprint )
+            if ( pooled != null ) {
+                log.lifecycle( "Using pooled database allocation for ${profile.name}" )
+                cleanUpListener.addPoolableAllocation( fingerprint, pooled )
+                replenishPool( rootProject, profile, fingerprint )
+                return { pooled } as Callable<DatabaseAllocation>
+            }
+        }
+
+        final Callable<DatabaseAllocation> creation = prepareAllocation( rootProject, profile, cleanUpListener )
+        if ( creation == null ) {
+            unallocatedProfiles.add( profile.name )
+            return { new NoAllocation() } as Callable<DatabaseAllocation>
+        }
+        if ( fingerprint == null ) {
+            return creation
+        }
+
+        replenishPool( rootProject, profile, fingerprint )
+        return {
+            final DatabaseAllocation allocation = creation.call()
+            cleanUpListener.addPoolableAllocation( fingerprint, allocation )
+            return allocation
+        } as Callable<DatabaseAllocation>
+    }
+
+    private DatabaseAllocation decorate(DatabaseProfile profile, DatabaseAllocation allocation) {
+        return register( ResettingDatabaseAllocation.decorateIfConfigured( profile, allocation ), allocation )
+    }
+
+    private DatabaseAllocation register(DatabaseAllocation decorated, DatabaseAllocation allocation) {
+        if ( decorated != allocation ) {
+            // decorators are registered after what they decorate, and so are released before it
+            cleanUpListener.addDecoratingAllocation( decorated, allocation )
+        }
+        return decorated
+    }
+
+    /**
+     * The work obtaining an allocation for the profile from the first provider handling it, see
+     * {@link DatabaseAllocationProvider#prepareAllocation}.
+     */
+    private Callable<DatabaseAllocation> prepareAllocation(
+            Project rootProject,
+            DatabaseProfile profile,
+            DatabaseAllocationCleanUp cleanUp) {
         for ( DatabaseAllocationProvider provider : providers ) {
-            final DatabaseAllocation allocation = provider.buildAllocation( rootProject, profile, cleanUpListener )
+            final Callable<DatabaseAllocation> allocation = provider.prepareAllocation( rootProject, profile, cleanUp )
             if ( allocation != null ) {
                 return allocation;
             }
         }
-        return new NoAllocation();
-	}
+        return null;
+    }
+
+    private void replenishPool(Project rootProject, DatabaseProfile profile, String fingerprint) {
+        // allocations provisioned for the pool are owned by the pool, not released by this build's clean-up
+        pool.replenish(
+                fingerprint,
+                { prepareAllocation( rootProject, profile, new DatabaseAllocationCleanUp() ) } as Supplier<Callable<DatabaseAllocation>>
+        )
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+
+/**
+ * What the {@link DatabaseAllocator#DB_ALLOCATOR_KEY dbAllocator} root project property holds, for build scripts
+ * written against earlier versions (where the property held the allocator itself) : forwards to the
+ * {@link DatabaseAllocator} build service.
+ *
+ * @deprecated Use {@link DatabaseAllocator#locate} instead; to be removed in the next release
+ */
+@Deprecated
+public class DatabaseAllocatorDelegate {
+	private static final Logger log = Logging.getLogger( DatabaseAllocatorDelegate.class );
+
+	private final Project rootProject;
+	private final AtomicBoolean warned = new AtomicBoolean();
+
+	public DatabaseAllocatorDelegate(Project rootProject) {
+		this.rootProject = rootProject;
+	}
+
+	/**
+	 * Expose the delegate as the {@link DatabaseAllocator#DB_ALLOCATOR_KEY dbAllocator} property of the root
+	 * project, unless already there.
+	 *
+	 * @param project Any project of the build
+	 */
+	public static void expose(Project project) {
+		final Project rootProject = project.getRootProject();
+		if ( !rootProject.getExtensions().getExtraProperties().has( DatabaseAllocator.DB_ALLOCATOR_KEY ) ) {
+			rootProject.getExtensions().getExtraProperties().set(
+					DatabaseAllocator.DB_ALLOCATOR_KEY,
+					new DatabaseAllocatorDelegate( rootProject )
+			);
+		}
+	}
+
+	public void registerProvider(DatabaseAllocationProvider provider) {
+		allocator().registerProvider( provider );
+	}
+
+	public DatabaseAllocation getAllocation(DatabaseProfile profile) {
+		return allocator().getAllocation( rootProject, profile );
+	}
+
+	private DatabaseAllocator allocator() {
+		if ( warned.compareAndSet( false, true ) ) {
+			log.warn(
+					"The '{}' root project property is deprecated and will be removed in the next release; use "
+							+ "DatabaseAllocator.locate(project) instead",
+					DatabaseAllocator.DB_ALLOCATOR_KEY
+			);
+		}
+		return DatabaseAllocator.locate( rootProject );
+	}
+}
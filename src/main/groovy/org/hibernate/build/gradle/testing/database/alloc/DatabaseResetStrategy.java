@@ -0,0 +1,38 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Strategy for resetting a database to a clean state before each test class, used in place of the allocation's
+ * own {@link DatabaseAllocation#beforeTestClass()} erase.  See {@link ResettingDatabaseAllocation}.
+ * <p/>
+ * A strategy instance is used for a single database: {@link #captureBaseline} is called once, against the clean
+ * database, and {@link #reset} then restores that baseline before each test class.  Implementations need a public
+ * no-arg constructor.
+ */
+public interface DatabaseResetStrategy {
+	/**
+	 * Capture the clean state of the database.
+	 *
+	 * @param connection A connection to the (clean) database
+	 *
+	 * @throws SQLException Indicates a problem capturing the baseline
+	 */
+	void captureBaseline(Connection connection) throws SQLException;
+
+	/**
+	 * Restore the database to the captured baseline.
+	 *
+	 * @param connection A connection to the database
+	 *
+	 * @throws SQLException Indicates a problem resetting the database
+	 */
+	void reset(Connection connection) throws SQLException;
+}
@@ -0,0 +1,190 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.testing.Test;
+
+import org.hibernate.build.gradle.testing.database.JdbcConnector;
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Allocation of embedded (H2, HSQLDB, Derby) databases, one per test worker (fork), needing no external service.
+ * <ul>
+ *     <li>
+ *         <b>memory</b> - each fork uses an in-memory database living in the fork itself.  H2 and HSQLDB drop such a
+ *         database as soon as its last connection closes, so a test class starts against a fresh database provided
+ *         the classes before it closed all of their connections.
+ *     </li>
+ *     <li>
+ *         <b>file</b> - each fork uses a database stored in its own directory, on tmpfs ({@code /dev/shm}) where
+ *         available.  A fork's database files are deleted once the fork has finished, and releasing the allocation
+ *         deletes them all, freeing the memory they used.
+ *     </li>
+ * </ul>
+ * Either way the database of a fork lives as long as the fork, and is never touched by the build while the fork
+ * runs : the build only hears of a test class starting after the fork started running it, so erasing it from the
+ * build would happen under a live connection.  Test classes are thus expected to drop what they create (as with
+ * {@code hbm2ddl.auto=create-drop}).  Derby keeps a database open until the JVM ends, in both modes.
+ */
+public class EmbeddedDatabaseAllocation implements DatabaseAllocation {
+	private static final Logger log = Logging.getLogger( EmbeddedDatabaseAllocation.class );
+
+	public enum Mode {
+		MEMORY,
+		FILE
+	}
+
+	private static final File TMPFS = new File( "/dev/shm" );
+	private static final String RECLAIM_KEY_PREFIX = "embedded:";
+
+	private final String profileName;
+	private final EmbeddedDatabaseEngine engine;
+	private final Mode mode;
+
+	private File baseDirectory;
+
+	public EmbeddedDatabaseAllocation(String profileName, EmbeddedDatabaseEngine engine, Mode mode) {
+		this.profileName = profileName;
+		this.engine = engine;
+		this.mode = mode;
+	}
+
+	@Override
+	public void prepareForExecution(Test testTask) {
+		final String url;
+		if ( mode == Mode.MEMORY ) {
+			url = engine.memoryUrl( profileName + "_" + WORKER_PLACEHOLDER );
+		}
+		else {
+			url = engine.fileUrl( new File( baseDirectory(), WORKER_PLACEHOLDER ) );
+		}
+
+		final Map<String,Object> systemProperties = testTask.getSystemProperties();
+		systemProperties.put( JdbcConnector.URL_KEY, url );
+		if ( !systemProperties.containsKey( JdbcConnector.DRIVER_KEY ) ) {
+			systemProperties.put( JdbcConnector.DRIVER_KEY, engine.getDriverClassName() );
+		}
+		if ( engine.getDefaultUser() != null && !systemProperties.containsKey( JdbcConnector.USER_KEY ) ) {
+			systemProperties.put( JdbcConnector.USER_KEY, engine.getDefaultUser() );
+			systemProperties.put( JdbcConnector.PASSWORD_KEY, "" );
+		}
+		testTask.setSystemProperties( systemProperties );
+		log.lifecycle(
+				"Using embedded {} databases ({}) for profile [{}]",
+				engine,
+				mode.name().toLowerCase( Locale.ROOT ),
+				profileName
+		);
+	}
+
+	/**
+	 * Acquire the allocation's resources : the directory holding the fork databases, in file mode.
+	 */
+	void acquire() {
+		if ( mode == Mode.FILE ) {
+			baseDirectory();
+		}
+	}
+
+	private synchronized File baseDirectory() {
+		if ( baseDirectory == null ) {
+			final File root = TMPFS.isDirectory() && TMPFS.canWrite()
+					? TMPFS
+					: new File( System.getProperty( "java.io.tmpdir" ) );
+			try {
+				baseDirectory = Files.createTempDirectory( root.toPath(), "hibernate-matrix-" + profileName + "-" )
+						.toFile();
+			}
+			catch (IOException e) {
+				throw new BuildException( "Unable to create embedded database directory for profile [" + profileName + "]", e );
+			}
+		}
+		return baseDirectory;
+	}
+
+	@Override
+	public boolean isForkIsolated() {
+		return true;
+	}
+
+	@Override
+	public void beforeTestClass() {
+		beforeTestClass( null );
+	}
+
+	@Override
+	public void beforeTestClass(String workerId) {
+		// the fork already runs the class; see the class comment
+	}
+
+	@Override
+	public void forkFinished(String workerId) {
+		if ( mode != Mode.FILE || workerId == null ) {
+			return;
+		}
+		final File directory;
+		synchronized ( this ) {
+			directory = baseDirectory;
+		}
+		if ( directory != null ) {
+			delete( new File( directory, workerId ) );
+		}
+	}
+
+	@Override
+	public synchronized String getReclaimKey() {
+		return baseDirectory == null ? null : RECLAIM_KEY_PREFIX + baseDirectory.getAbsolutePath();
+	}
+
+	/**
+	 * Reclaim the files of an allocation left behind.
+	 *
+	 * @param reclaimKey The allocation's reclaim key
+	 *
+	 * @return {@code true} if the key was that of an embedded allocation, whose files are now deleted
+	 */
+	static boolean reclaim(String reclaimKey) {
+		if ( !reclaimKey.startsWith( RECLAIM_KEY_PREFIX ) ) {
+			return false;
+		}
+		final File directory = new File( reclaimKey.substring( RECLAIM_KEY_PREFIX.length() ) );
+		delete( directory );
+		return !directory.exists();
+	}
+
+	@Override
+	public synchronized void release() {
+		if ( baseDirectory != null ) {
+			delete( baseDirectory );
+			baseDirectory = null;
+		}
+	}
+
+	private static void deleteContents(File directory) {
+		final File[] children = directory.listFiles();
+		if ( children != null ) {
+			for ( File child : children ) {
+				delete( child );
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		deleteContents( file );
+		if ( file.exists() && !file.delete() ) {
+			log.debug( "Unable to delete embedded database file [{}]", file );
+		}
+	}
+}
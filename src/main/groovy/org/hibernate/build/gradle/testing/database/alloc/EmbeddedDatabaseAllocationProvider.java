@@ -0,0 +1,108 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import org.gradle.api.Project;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * {@link DatabaseAllocationProvider} for profiles targeting an embedded engine (H2, HSQLDB, Derby), giving each test
+ * worker its own database, see {@link EmbeddedDatabaseAllocation}.  Enabled through the {@link #EMBEDDED_KEY}
+ * setting; profiles targeting other databases are left to the other providers.
+ */
+public class EmbeddedDatabaseAllocationProvider implements DatabaseAllocationProvider {
+	/**
+	 * Names a system setting enabling embedded allocations, as either {@code memory} or {@code file} (see
+	 * {@link EmbeddedDatabaseAllocation}).  Disabled by default.
+	 */
+	public static final String EMBEDDED_KEY = "hibernate-matrix-embedded";
+
+	private final EmbeddedDatabaseAllocation.Mode mode;
+
+	public EmbeddedDatabaseAllocationProvider(EmbeddedDatabaseAllocation.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Build the provider if enabled by the {@link #EMBEDDED_KEY} setting.
+	 *
+	 * @return The provider, or {@code null}
+	 */
+	public static EmbeddedDatabaseAllocationProvider fromSettings() {
+		final String value = SettingsHelper.getString( EMBEDDED_KEY, null );
+		if ( value == null ) {
+			return null;
+		}
+		try {
+			return new EmbeddedDatabaseAllocationProvider(
+					EmbeddedDatabaseAllocation.Mode.valueOf( value.toUpperCase( Locale.ROOT ) )
+			);
+		}
+		catch (IllegalArgumentException e) {
+			throw new BuildException( "Invalid value for setting [" + EMBEDDED_KEY + "] : " + value, e );
+		}
+	}
+
+	@Override
+	public DatabaseAllocation buildAllocation(
+			Project rootProject,
+			DatabaseProfile profile,
+			DatabaseAllocationCleanUp cleanUp) {
+		final EmbeddedDatabaseEngine engine = EmbeddedDatabaseEngine.resolve( profile.getHibernateProperties() );
+		return engine == null ? null : newAllocation( profile.getName(), engine, cleanUp );
+	}
+
+	@Override
+	public boolean allocates(DatabaseProfile profile) {
+		return EmbeddedDatabaseEngine.resolve( profile.getHibernateProperties() ) != null;
+	}
+
+	@Override
+	public Callable<DatabaseAllocation> prepareAllocation(
+			Project rootProject,
+			DatabaseProfile profile,
+			DatabaseAllocationCleanUp cleanUp) {
+		final EmbeddedDatabaseEngine engine = EmbeddedDatabaseEngine.resolve( profile.getHibernateProperties() );
+		if ( engine == null ) {
+			return null;
+		}
+		final String profileName = profile.getName();
+		return () -> newAllocation( profileName, engine, cleanUp );
+	}
+
+	private DatabaseAllocation newAllocation(
+			String profileName,
+			EmbeddedDatabaseEngine engine,
+			DatabaseAllocationCleanUp cleanUp) {
+		final EmbeddedDatabaseAllocation allocation = new EmbeddedDatabaseAllocation( profileName, engine, mode );
+		// creates the database directory up front, so that it is recorded (and reclaimable) from the start
+		allocation.acquire();
+		cleanUp.addDatabaseAllocation( allocation );
+		return allocation;
+	}
+
+	@Override
+	public boolean reclaim(Project rootProject, String reclaimKey) {
+		return EmbeddedDatabaseAllocation.reclaim( reclaimKey );
+	}
+
+	@Override
+	public String getPoolKey() {
+		return mode.name();
+	}
+
+	@Override
+	public String toString() {
+		return "EmbeddedDatabaseAllocationProvider(" + mode.name().toLowerCase( Locale.ROOT ) + ")";
+	}
+}
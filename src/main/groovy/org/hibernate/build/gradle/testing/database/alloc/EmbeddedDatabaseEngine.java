@@ -0,0 +1,110 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.File;
+import java.util.Map;
+
+import org.hibernate.build.gradle.testing.database.JdbcConnector;
+
+/**
+ * The embedded database engines supported by {@link EmbeddedDatabaseAllocation}, and how to address their databases.
+ */
+public enum EmbeddedDatabaseEngine {
+	H2( "org.h2.Driver", "jdbc:h2:", "sa" ) {
+		@Override
+		public String memoryUrl(String name) {
+			// without DB_CLOSE_DELAY the database is dropped when its last connection closes
+			return "jdbc:h2:mem:" + name;
+		}
+
+		@Override
+		public String fileUrl(File directory) {
+			return "jdbc:h2:" + new File( directory, "db" ).getAbsolutePath();
+		}
+	},
+	HSQLDB( "org.hsqldb.jdbc.JDBCDriver", "jdbc:hsqldb:", "sa" ) {
+		@Override
+		public String memoryUrl(String name) {
+			// shutdown=true closes (and so, for mem: databases, drops) the database with its last connection
+			return "jdbc:hsqldb:mem:" + name + ";shutdown=true";
+		}
+
+		@Override
+		public String fileUrl(File directory) {
+			return "jdbc:hsqldb:file:" + new File( directory, "db" ).getAbsolutePath() + ";shutdown=true";
+		}
+	},
+	DERBY( "org.apache.derby.jdbc.EmbeddedDriver", "jdbc:derby:", null ) {
+		@Override
+		public String memoryUrl(String name) {
+			return "jdbc:derby:memory:" + name + ";create=true";
+		}
+
+		@Override
+		public String fileUrl(File directory) {
+			return "jdbc:derby:" + new File( directory, "db" ).getAbsolutePath() + ";create=true";
+		}
+	};
+
+	private final String driverClassName;
+	private final String urlPrefix;
+	private final String defaultUser;
+
+	EmbeddedDatabaseEngine(String driverClassName, String urlPrefix, String defaultUser) {
+		this.driverClassName = driverClassName;
+		this.urlPrefix = urlPrefix;
+		this.defaultUser = defaultUser;
+	}
+
+	public String getDriverClassName() {
+		return driverClassName;
+	}
+
+	public String getDefaultUser() {
+		return defaultUser;
+	}
+
+	/**
+	 * The URL of an in-memory database, living in the (test) JVM connecting to it.
+	 *
+	 * @param name The database name
+	 *
+	 * @return The URL
+	 */
+	public abstract String memoryUrl(String name);
+
+	/**
+	 * The URL of a database stored in the given directory.
+	 *
+	 * @param directory The directory
+	 *
+	 * @return The URL
+	 */
+	public abstract String fileUrl(File directory);
+
+	/**
+	 * Resolve the engine a profile targets, from its connection settings.
+	 *
+	 * @param hibernateProperties The profile's Hibernate properties
+	 *
+	 * @return The engine, or {@code null} if the profile does not target an embedded engine
+	 */
+	public static EmbeddedDatabaseEngine resolve(Map<String,?> hibernateProperties) {
+		final Object driver = hibernateProperties.get( JdbcConnector.DRIVER_KEY );
+		final Object url = hibernateProperties.get( JdbcConnector.URL_KEY );
+		for ( EmbeddedDatabaseEngine engine : values() ) {
+			if ( driver != null && engine.driverClassName.equals( driver.toString() ) ) {
+				return engine;
+			}
+			if ( url != null && url.toString().startsWith( engine.urlPrefix ) ) {
+				return engine;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * {@link DatabaseResetStrategy} for H2 restoring a snapshot of the clean database.  The baseline is captured with
+ * H2's {@code SCRIPT} command; a reset drops everything and replays that script with {@code RUNSCRIPT}, which is
+ * much cheaper than erasing and re-creating the database.
+ */
+public class H2SnapshotResetStrategy implements DatabaseResetStrategy {
+	private File snapshotFile;
+
+	@Override
+	public void captureBaseline(Connection connection) throws SQLException {
+		try {
+			snapshotFile = File.createTempFile( "hibernate-matrix-h2-", ".sql" );
+			snapshotFile.deleteOnExit();
+		}
+		catch (IOException e) {
+			throw new SQLException( "Unable to create H2 snapshot file", e );
+		}
+		execute( connection, "SCRIPT TO '" + path() + "'" );
+	}
+
+	@Override
+	public void reset(Connection connection) throws SQLException {
+		execute( connection, "DROP ALL OBJECTS" );
+		execute( connection, "RUNSCRIPT FROM '" + path() + "'" );
+	}
+
+	private String path() {
+		return snapshotFile.getAbsolutePath().replace( "'", "''" );
+	}
+
+	private static void execute(Connection connection, String sql) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.execute( sql );
+		}
+		finally {
+			statement.close();
+		}
+	}
+}
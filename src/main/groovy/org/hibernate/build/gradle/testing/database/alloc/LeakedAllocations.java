@@ -0,0 +1,132 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Records of allocations whose release has not (yet) succeeded, keyed by their
+ * {@link DatabaseAllocation#getReclaimKey() reclaim key}, with when they were recorded.  Records are written as soon
+ * as the allocations are acquired and removed once successfully released, so that allocations left behind by a
+ * failed, timed-out or interrupted release, or by a build which died holding them, can later be reclaimed (see
+ * {@link ReclaimAllocationsTask}).
+ */
+public class LeakedAllocations {
+	private static final Logger log = Logging.getLogger( LeakedAllocations.class );
+
+	private static final Object LOCK = new Object();
+
+	private final File file;
+
+	public LeakedAllocations(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Record acquired allocations.
+	 *
+	 * @param records The reclaim keys of the allocations, with when they were recorded
+	 */
+	public void add(Map<String,String> records) {
+		if ( records.isEmpty() ) {
+			return;
+		}
+		synchronized ( LOCK ) {
+			final Properties properties = load();
+			properties.putAll( records );
+			store( properties );
+		}
+	}
+
+	/**
+	 * Remove the records of released allocations.
+	 *
+	 * @param reclaimKeys The reclaim keys of the released allocations
+	 */
+	public void remove(Collection<String> reclaimKeys) {
+		if ( reclaimKeys.isEmpty() ) {
+			return;
+		}
+		synchronized ( LOCK ) {
+			final Properties properties = load();
+			boolean changed = false;
+			for ( String reclaimKey : reclaimKeys ) {
+				changed |= properties.remove( reclaimKey ) != null;
+			}
+			if ( changed ) {
+				store( properties );
+			}
+		}
+	}
+
+	/**
+	 * The recorded allocations.
+	 *
+	 * @return The reclaim keys of the recorded allocations, with when they were recorded
+	 */
+	public Map<String,String> list() {
+		final Map<String,String> records = new TreeMap<String, String>();
+		final Properties properties = load();
+		for ( String reclaimKey : properties.stringPropertyNames() ) {
+			records.put( reclaimKey, properties.getProperty( reclaimKey ) );
+		}
+		return records;
+	}
+
+	private Properties load() {
+		final Properties properties = new Properties();
+		synchronized ( LOCK ) {
+			if ( file.exists() ) {
+				try {
+					final InputStream stream = new FileInputStream( file );
+					try {
+						properties.load( stream );
+					}
+					finally {
+						stream.close();
+					}
+				}
+				catch (IOException e) {
+					log.warn( "Unable to read leaked allocation records [" + file + "]", e );
+				}
+			}
+		}
+		return properties;
+	}
+
+	private void store(Properties properties) {
+		try {
+			if ( properties.isEmpty() ) {
+				file.delete();
+				return;
+			}
+			file.getParentFile().mkdirs();
+			final OutputStream stream = new FileOutputStream( file );
+			try {
+				properties.store( stream, "Hibernate matrix database allocations not released (reclaim key = time recorded)" );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn( "Unable to write leaked allocation records [" + file + "]", e );
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.Set;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.TaskAction;
+
+/**
+ * Reclaims the database allocations earlier builds left behind, because their release failed or did not complete
+ * before the build ended (see {@link LeakedAllocations}).  Allocations are reclaimed through the providers enabled for
+ * this build, so it should be run with the same allocation settings as the builds which left them behind.
+ */
+public class ReclaimAllocationsTask extends DefaultTask {
+	@TaskAction
+	public void reclaim() {
+		final Set<String> remaining = DatabaseAllocator.locate( getProject() ).reclaimLeaked( getProject() );
+		if ( remaining.isEmpty() ) {
+			getLogger().lifecycle( "No database allocations left to reclaim" );
+		}
+		else {
+			getLogger().warn(
+					"{} database allocation(s) could not be reclaimed by the enabled providers : {}",
+					remaining.size(),
+					remaining
+			);
+		}
+	}
+}
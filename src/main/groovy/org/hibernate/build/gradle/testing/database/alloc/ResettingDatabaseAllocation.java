@@ -0,0 +1,302 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.testing.Test;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.testing.database.JdbcConnector;
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * Decorates a {@link DatabaseAllocation}, replacing its per test class erase with a {@link DatabaseResetStrategy}.
+ * Resets connect from the build, so the baseline is captured eagerly when the allocation is prepared for a node
+ * task, right after erasing the database through the decorated allocation and before any test fork starts.  Should
+ * capturing the baseline or a reset fail, the decorated allocation's own erase is used instead.
+ * <p/>
+ * A reset restores the whole database, dropping whatever a running test class created, so it only replaces the
+ * erase where nothing uses the database meanwhile : in {@link #beforeTestClassStarts}, called by runners starting
+ * the test classes themselves one after the other.  The test events of forked test tasks reach the build once the
+ * fork already runs the class, so {@link #beforeTestClass(String)} keeps the decorated allocation's erase.
+ * <p/>
+ * Only databases the build can share with the test forks are reset this way.  Fork-isolated allocations (whose
+ * databases are created per fork as the forks start) and URLs of databases embedded in the process opening them
+ * (such as {@code jdbc:h2:mem:}, where the build would open a different, empty database) keep the decorated
+ * allocation's erase.
+ * <p/>
+ * The strategy is chosen with the {@link #RESET_STRATEGY_KEY} setting.  The time taken by each reset is recorded
+ * and summarized when the allocation is released.
+ * <p/>
+ * Releasing the decorator only closes its own connection and driver; the decorated allocation stays owned by
+ * whatever registered it for clean-up (its provider, or the pool).
+ */
+public class ResettingDatabaseAllocation implements DatabaseAllocation {
+	private static final Logger log = Logging.getLogger( ResettingDatabaseAllocation.class );
+
+	/**
+	 * Names a system setting for the reset strategy to use before each test class.  Accepts {@code truncate}
+	 * ({@link TruncatingResetStrategy}), {@code h2-snapshot} ({@link H2SnapshotResetStrategy}) or the name of a
+	 * {@link DatabaseResetStrategy} implementation class.  By default the allocation's own erase is used.
+	 */
+	public static final String RESET_STRATEGY_KEY = "hibernate-matrix-reset-strategy";
+
+	private static final Map<String,Class<? extends DatabaseResetStrategy>> SHORT_NAMES;
+
+	static {
+		SHORT_NAMES = new HashMap<String, Class<? extends DatabaseResetStrategy>>();
+		SHORT_NAMES.put( "truncate", TruncatingResetStrategy.class );
+		SHORT_NAMES.put( "h2-snapshot", H2SnapshotResetStrategy.class );
+	}
+
+	private final DatabaseProfile profile;
+	private final DatabaseAllocation delegate;
+	private final Class<? extends DatabaseResetStrategy> strategyClass;
+
+	private final AtomicLong resetCount = new AtomicLong();
+	private final AtomicLong resetNanos = new AtomicLong();
+	private final AtomicLong maxResetNanos = new AtomicLong();
+
+	// guarded by this
+	private boolean prepared;
+	private JdbcConnector connector;
+	private DatabaseResetStrategy strategy;
+	private Connection connection;
+
+	public ResettingDatabaseAllocation(
+			DatabaseProfile profile,
+			DatabaseAllocation delegate,
+			Class<? extends DatabaseResetStrategy> strategyClass) {
+		this.profile = profile;
+		this.delegate = delegate;
+		this.strategyClass = strategyClass;
+	}
+
+	/**
+	 * Decorate the allocation if a reset strategy is configured.
+	 *
+	 * @param profile The profile being allocated
+	 * @param allocation The allocation
+	 *
+	 * @return The decorated allocation, or the given one if no strategy is configured
+	 */
+	public static DatabaseAllocation decorateIfConfigured(DatabaseProfile profile, DatabaseAllocation allocation) {
+		final String strategyName = SettingsHelper.getString( RESET_STRATEGY_KEY, null );
+		if ( strategyName == null ) {
+			return allocation;
+		}
+		return new ResettingDatabaseAllocation( profile, allocation, resolveStrategyClass( strategyName ) );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends DatabaseResetStrategy> resolveStrategyClass(String strategyName) {
+		final Class<? extends DatabaseResetStrategy> strategyClass = SHORT_NAMES.get( strategyName );
+		if ( strategyClass != null ) {
+			return strategyClass;
+		}
+		try {
+			return (Class<? extends DatabaseResetStrategy>) Class.forName( strategyName )
+					.asSubclass( DatabaseResetStrategy.class );
+		}
+		catch (ClassNotFoundException | ClassCastException e) {
+			throw new BuildException( "Unknown database reset strategy [" + strategyName + "]", e );
+		}
+	}
+
+	@Override
+	public void prepareForExecution(Test testTask) {
+		delegate.prepareForExecution( testTask );
+		// the connection settings are known once the decorated allocation has applied them
+		prepare( testTask.getSystemProperties() );
+	}
+
+	/**
+	 * Capture the baseline, once, on the build thread preparing the first node task using the allocation.
+	 */
+	private synchronized void prepare(Map<String,Object> connectionProperties) {
+		if ( prepared ) {
+			return;
+		}
+		prepared = true;
+
+		if ( delegate.isForkIsolated() ) {
+			log.warn(
+					"Database allocation for profile [{}] creates a database per test fork; not using reset strategy {}",
+					profile.getName(),
+					strategyClass.getSimpleName()
+			);
+			return;
+		}
+		final Object url = connectionProperties.get( JdbcConnector.URL_KEY );
+		if ( url != null && !isSharedUrl( url.toString() ) ) {
+			log.warn(
+					"Database URL [{}] of profile [{}] is not shared with the test forks; not using reset strategy {}",
+					url,
+					profile.getName(),
+					strategyClass.getSimpleName()
+			);
+			return;
+		}
+
+		try {
+			connector = new JdbcConnector( profile, connectionProperties );
+			// erase through the allocation, then snapshot the clean state
+			delegate.beforeTestClass();
+			final DatabaseResetStrategy baseline = strategyClass.getDeclaredConstructor().newInstance();
+			baseline.captureBaseline( connection() );
+			strategy = baseline;
+		}
+		catch (SQLException | ReflectiveOperationException | BuildException e) {
+			log.warn(
+					"Unable to capture baseline of database for profile [" + profile.getName() + "] using "
+							+ strategyClass.getSimpleName() + "; falling back to the allocation's erase",
+					e
+			);
+			closeConnector();
+		}
+	}
+
+	/**
+	 * Is the database behind the URL reachable from another process?  Databases embedded in the process opening
+	 * them are not : an in-memory URL opens a new, empty database, and an embedded H2 file database is locked by
+	 * the process which opened it first.
+	 */
+	private static boolean isSharedUrl(String url) {
+		final String lowerCaseUrl = url.toLowerCase( Locale.ROOT );
+		if ( lowerCaseUrl.startsWith( "jdbc:h2:" ) ) {
+			return lowerCaseUrl.startsWith( "jdbc:h2:tcp:" )
+					|| lowerCaseUrl.startsWith( "jdbc:h2:ssl:" )
+					|| lowerCaseUrl.contains( ";auto_server=true" );
+		}
+		if ( lowerCaseUrl.startsWith( "jdbc:hsqldb:" ) ) {
+			return !lowerCaseUrl.startsWith( "jdbc:hsqldb:mem:" )
+					&& !lowerCaseUrl.startsWith( "jdbc:hsqldb:file:" )
+					&& !lowerCaseUrl.startsWith( "jdbc:hsqldb:res:" );
+		}
+		if ( lowerCaseUrl.startsWith( "jdbc:derby:" ) ) {
+			return lowerCaseUrl.startsWith( "jdbc:derby://" );
+		}
+		return true;
+	}
+
+	@Override
+	public void beforeTestClass() {
+		delegate.beforeTestClass();
+	}
+
+	@Override
+	public void beforeTestClass(String workerId) {
+		delegate.beforeTestClass( workerId );
+	}
+
+	@Override
+	public void beforeTestClassStarts(String workerId) {
+		synchronized ( this ) {
+			if ( strategy != null ) {
+				final long start = System.nanoTime();
+				try {
+					strategy.reset( connection() );
+					recordReset( System.nanoTime() - start );
+					return;
+				}
+				catch (SQLException e) {
+					log.warn(
+							"Unable to reset database for profile [" + profile.getName() + "] using "
+									+ strategyClass.getSimpleName() + "; falling back to the allocation's erase",
+							e
+					);
+					closeConnector();
+				}
+			}
+		}
+
+		delegate.beforeTestClassStarts( workerId );
+	}
+
+	private Connection connection() throws SQLException {
+		if ( connection == null || connection.isClosed() ) {
+			connection = connector.connect();
+		}
+		return connection;
+	}
+
+	private void recordReset(long nanos) {
+		resetCount.incrementAndGet();
+		resetNanos.addAndGet( nanos );
+		long max = maxResetNanos.get();
+		while ( nanos > max && !maxResetNanos.compareAndSet( max, nanos ) ) {
+			max = maxResetNanos.get();
+		}
+		log.debug( "Reset database for profile [{}] in {}ms", profile.getName(), TimeUnit.NANOSECONDS.toMillis( nanos ) );
+	}
+
+	@Override
+	public boolean isForkIsolated() {
+		return delegate.isForkIsolated();
+	}
+
+	@Override
+	public void prepareFork(String workerId) {
+		delegate.prepareFork( workerId );
+	}
+
+	@Override
+	public void forkFinished(String workerId) {
+		delegate.forkFinished( workerId );
+	}
+
+	@Override
+	public void renew() {
+		delegate.renew();
+	}
+
+	@Override
+	public void release() {
+		synchronized ( this ) {
+			closeConnector();
+		}
+
+		final long count = resetCount.get();
+		if ( count > 0 ) {
+			log.lifecycle(
+					"Database resets for profile [{}] using {} : {} resets, {}ms total, {}ms average, {}ms max",
+					profile.getName(),
+					strategyClass.getSimpleName(),
+					count,
+					TimeUnit.NANOSECONDS.toMillis( resetNanos.get() ),
+					TimeUnit.NANOSECONDS.toMillis( resetNanos.get() / count ),
+					TimeUnit.NANOSECONDS.toMillis( maxResetNanos.get() )
+			);
+		}
+	}
+
+	private void closeConnector() {
+		strategy = null;
+		if ( connection != null ) {
+			try {
+				connection.close();
+			}
+			catch (SQLException ignore) {
+			}
+			connection = null;
+		}
+		if ( connector != null ) {
+			connector.close();
+			connector = null;
+		}
+	}
+}
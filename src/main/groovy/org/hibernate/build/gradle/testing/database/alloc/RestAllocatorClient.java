@@ -0,0 +1,369 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Asynchronous client of a REST database allocator service.  Requests are executed on a bounded number of threads
+ * (bounding the concurrent requests made to the service), over HTTP keep-alive connections reused across requests,
+ * with connect and read timeouts.  Each request blocks one of these threads until its response is read.  Requests
+ * failing with an I/O error, a {@code 429} or a {@code 5xx} response are retried with exponential backoff (and
+ * jitter); the backoff is waited out on a timer, so the request threads keep serving other requests meanwhile.
+ * <p/>
+ * The protocol :
+ * <ul>
+ *     <li>
+ *         {@code POST {base}/allocations} with the form parameters {@code profile}, {@code requester} and
+ *         {@code expiry} (in minutes) allocates a database.  The response body is in properties format, holding
+ *         the allocation {@code id}, optionally when it {@code expires} (epoch millis), and the
+ *         {@code hibernate.*} settings to connect to the database.  The request carries an {@code Idempotency-Key}
+ *         header ({@code requester}, followed by a UUID) which stays the same when the request is retried : a service
+ *         receiving a key it already allocated for must answer with that allocation rather than allocate another
+ *         database, since a retried request may well have been processed already.
+ *     </li>
+ *     <li>{@code POST {base}/allocations/{id}/erase} erases the database.</li>
+ *     <li>
+ *         {@code POST {base}/allocations/{id}/renew} with the form parameter {@code expiry} extends the allocation;
+ *         the response may hold the new {@code expires}.
+ *     </li>
+ *     <li>{@code DELETE {base}/allocations/{id}} releases the allocation ({@code 404} is taken as released).</li>
+ * </ul>
+ */
+public class RestAllocatorClient {
+	private static final Logger log = Logging.getLogger( RestAllocatorClient.class );
+
+	private static final long INITIAL_BACKOFF_MILLIS = 500;
+	private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+	private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	private static final Map<String,String> NO_HEADERS = Collections.emptyMap();
+
+	/**
+	 * An allocated database.
+	 */
+	public static class Lease {
+		private final String id;
+		private final Map<String,String> hibernateProperties;
+		private final long expiresAt;
+
+		private Lease(String id, Map<String,String> hibernateProperties, long expiresAt) {
+			this.id = id;
+			this.hibernateProperties = hibernateProperties;
+			this.expiresAt = expiresAt;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Map<String,String> getHibernateProperties() {
+			return hibernateProperties;
+		}
+
+		/**
+		 * @return When the allocation expires (epoch millis), or {@code 0} if unknown
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+	}
+
+	private static class ResponseException extends IOException {
+		private final int status;
+
+		private ResponseException(String message, int status) {
+			super( message );
+			this.status = status;
+		}
+
+		private boolean isRetryable() {
+			return status == 429 || status >= 500;
+		}
+	}
+
+	private final String baseUrl;
+	private final String requester;
+	private final int timeoutMillis;
+	private final int maxRetries;
+	private final ExecutorService requestExecutor;
+	private final ScheduledExecutorService scheduler;
+
+	public RestAllocatorClient(String baseUrl, String requester, int concurrency, int timeoutMillis, int maxRetries) {
+		this.baseUrl = baseUrl.endsWith( "/" ) ? baseUrl.substring( 0, baseUrl.length() - 1 ) : baseUrl;
+		this.requester = requester;
+		this.timeoutMillis = timeoutMillis;
+		this.maxRetries = maxRetries;
+		this.requestExecutor = new ThreadPoolExecutor(
+				concurrency,
+				concurrency,
+				30,
+				TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				daemonThreads( "hibernate-matrix-allocator" )
+		);
+		( (ThreadPoolExecutor) requestExecutor ).allowCoreThreadTimeOut( true );
+		final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1,
+				daemonThreads( "hibernate-matrix-allocator-timer" )
+		);
+		scheduler.setRemoveOnCancelPolicy( true );
+		// neither executor keeps a thread alive in the daemon once idle
+		scheduler.setKeepAliveTime( 30, TimeUnit.SECONDS );
+		scheduler.allowCoreThreadTimeOut( true );
+		this.scheduler = scheduler;
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			final Thread thread = new Thread( runnable, name + "-" + count.incrementAndGet() );
+			thread.setDaemon( true );
+			return thread;
+		};
+	}
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Allocate a database for the given profile.
+	 *
+	 * @param profileName The profile name
+	 * @param expiryMinutes The requested lifetime of the allocation
+	 *
+	 * @return The allocation, once done
+	 */
+	public CompletableFuture<Lease> allocate(String profileName, int expiryMinutes) {
+		final Map<String,String> form = new LinkedHashMap<String, String>();
+		form.put( "profile", profileName );
+		form.put( "requester", requester );
+		form.put( "expiry", Integer.toString( expiryMinutes ) );
+		// the same key for every attempt, so that retrying does not allocate (and leak) more databases
+		final Map<String,String> headers = Collections.singletonMap(
+				IDEMPOTENCY_KEY_HEADER,
+				requester + "-" + UUID.randomUUID()
+		);
+		return execute( "POST", "/allocations", form, headers ).thenApply(
+				response -> {
+					final String id = response.getProperty( "id" );
+					if ( id == null ) {
+						throw new IllegalStateException( "Allocator response for profile [" + profileName + "] has no id" );
+					}
+					final Map<String,String> hibernateProperties = new LinkedHashMap<String, String>();
+					for ( String name : response.stringPropertyNames() ) {
+						if ( name.startsWith( "hibernate." ) ) {
+							hibernateProperties.put( name, response.getProperty( name ) );
+						}
+					}
+					return new Lease( id, hibernateProperties, expiresAt( response ) );
+				}
+		);
+	}
+
+	/**
+	 * Erase the database of an allocation.
+	 *
+	 * @param id The allocation id
+	 *
+	 * @return Completion of the erase
+	 */
+	public CompletableFuture<Void> erase(String id) {
+		return execute( "POST", "/allocations/" + encode( id ) + "/erase", null, NO_HEADERS ).thenApply( response -> null );
+	}
+
+	/**
+	 * Extend the lifetime of an allocation.
+	 *
+	 * @param id The allocation id
+	 * @param expiryMinutes The requested lifetime
+	 *
+	 * @return The new expiry (epoch millis, or {@code 0} if unknown), once done
+	 */
+	public CompletableFuture<Long> renew(String id, int expiryMinutes) {
+		return execute(
+				"POST",
+				"/allocations/" + encode( id ) + "/renew",
+				Collections.singletonMap( "expiry", Integer.toString( expiryMinutes ) ),
+				NO_HEADERS
+		).thenApply( RestAllocatorClient::expiresAt );
+	}
+
+	/**
+	 * Release an allocation.
+	 *
+	 * @param id The allocation id
+	 *
+	 * @return Completion of the release
+	 */
+	public CompletableFuture<Void> release(String id) {
+		return execute( "DELETE", "/allocations/" + encode( id ), null, NO_HEADERS ).thenApply( response -> null );
+	}
+
+	private static long expiresAt(Properties response) {
+		final String expires = response.getProperty( "expires" );
+		return expires == null ? 0 : Long.parseLong( expires.trim() );
+	}
+
+	private CompletableFuture<Properties> execute(
+			String method,
+			String path,
+			Map<String,String> form,
+			Map<String,String> headers) {
+		final CompletableFuture<Properties> result = new CompletableFuture<Properties>();
+		submit( method, path, form, headers, 0, result );
+		return result;
+	}
+
+	private void submit(
+			final String method,
+			final String path,
+			final Map<String,String> form,
+			final Map<String,String> headers,
+			final int attempt,
+			final CompletableFuture<Properties> result) {
+		requestExecutor.execute(
+				() -> {
+					try {
+						result.complete( send( method, path, form, headers ) );
+					}
+					catch (IOException e) {
+						final boolean retryable = !( e instanceof ResponseException ) || ( (ResponseException) e ).isRetryable();
+						if ( !retryable || attempt >= maxRetries ) {
+							result.completeExceptionally( e );
+							return;
+						}
+						final long backoff = backoffMillis( attempt );
+						log.info( "Allocator request {} {} failed ({}); retrying in {}ms", method, path, e.getMessage(), backoff );
+						scheduler.schedule( () -> submit( method, path, form, headers, attempt + 1, result ), backoff, TimeUnit.MILLISECONDS );
+					}
+					catch (RuntimeException e) {
+						result.completeExceptionally( e );
+					}
+				}
+		);
+	}
+
+	private static long backoffMillis(int attempt) {
+		final long backoff = Math.min( MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min( attempt, 16 ) );
+		return backoff / 2 + ThreadLocalRandom.current().nextLong( backoff / 2 + 1 );
+	}
+
+	private Properties send(String method, String path, Map<String,String> form, Map<String,String> headers)
+			throws IOException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL( baseUrl + path ).openConnection();
+		connection.setRequestMethod( method );
+		connection.setConnectTimeout( timeoutMillis );
+		connection.setReadTimeout( timeoutMillis );
+		connection.setRequestProperty( "Accept", "text/plain" );
+		for ( Map.Entry<String,String> header : headers.entrySet() ) {
+			connection.setRequestProperty( header.getKey(), header.getValue() );
+		}
+		if ( form != null ) {
+			final byte[] body = encodeForm( form ).getBytes( StandardCharsets.UTF_8 );
+			connection.setDoOutput( true );
+			connection.setRequestProperty( "Content-Type", "application/x-www-form-urlencoded" );
+			connection.setFixedLengthStreamingMode( body.length );
+			final OutputStream output = connection.getOutputStream();
+			try {
+				output.write( body );
+			}
+			finally {
+				output.close();
+			}
+		}
+
+		final int status = connection.getResponseCode();
+		// the body is always read to its end (and closed) so that the connection goes back to the keep-alive cache
+		final String body = readFully( status >= 400 ? connection.getErrorStream() : connection.getInputStream() );
+		if ( "DELETE".equals( method ) && status == 404 ) {
+			return new Properties();
+		}
+		if ( status < 200 || status >= 300 ) {
+			throw new ResponseException(
+					"Allocator request " + method + " " + path + " failed with status " + status + " : " + body.trim(),
+					status
+			);
+		}
+		final Properties response = new Properties();
+		response.load( new StringReader( body ) );
+		return response;
+	}
+
+	private static String readFully(InputStream stream) throws IOException {
+		if ( stream == null ) {
+			return "";
+		}
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int read;
+			while ( ( read = stream.read( buffer ) ) != -1 ) {
+				bytes.write( buffer, 0, read );
+			}
+			return new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	private static String encodeForm(Map<String,String> form) {
+		final StringBuilder encoded = new StringBuilder();
+		for ( Map.Entry<String,String> entry : form.entrySet() ) {
+			if ( entry.getValue() == null ) {
+				continue;
+			}
+			if ( encoded.length() > 0 ) {
+				encoded.append( '&' );
+			}
+			encoded.append( encode( entry.getKey() ) ).append( '=' ).append( encode( entry.getValue() ) );
+		}
+		return encoded.toString();
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode( value, "UTF-8" );
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+}
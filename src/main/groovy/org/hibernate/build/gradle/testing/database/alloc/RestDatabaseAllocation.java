@@ -0,0 +1,153 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.testing.Test;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Allocation obtained from a REST allocator service through a {@link RestAllocatorClient}.  The allocation request
+ * is already in flight when this is created; only {@link #prepareForExecution} waits for it.  While held, the
+ * allocation is renewed in the background ahead of its expiry.
+ */
+public class RestDatabaseAllocation implements DatabaseAllocation {
+	private static final Logger log = Logging.getLogger( RestDatabaseAllocation.class );
+
+	static final String RECLAIM_KEY_PREFIX = "rest:";
+
+	private final String profileName;
+	private final RestAllocatorClient client;
+	private final CompletableFuture<RestAllocatorClient.Lease> lease;
+	private final int expiryMinutes;
+	private final long timeoutMillis;
+
+	private ScheduledFuture<?> renewal;
+	private boolean released;
+
+	public RestDatabaseAllocation(
+			String profileName,
+			RestAllocatorClient client,
+			CompletableFuture<RestAllocatorClient.Lease> lease,
+			int expiryMinutes,
+			long timeoutMillis) {
+		this.profileName = profileName;
+		this.client = client;
+		this.lease = lease;
+		this.expiryMinutes = expiryMinutes;
+		this.timeoutMillis = timeoutMillis;
+		lease.thenAccept( this::scheduleRenewal );
+	}
+
+	private synchronized void scheduleRenewal(RestAllocatorClient.Lease allocated) {
+		if ( released ) {
+			return;
+		}
+		// renew at half the requested lifetime, so that one failed renewal still leaves time for the next
+		final long periodMillis = Math.max( 1, TimeUnit.MINUTES.toMillis( expiryMinutes ) / 2 );
+		renewal = client.getScheduler().scheduleAtFixedRate(
+				() -> client.renew( allocated.getId(), expiryMinutes ).whenComplete(
+						(expiresAt, failure) -> {
+							if ( failure != null ) {
+								log.warn( "Unable to renew database allocation for profile [{}] : {}", profileName, failure.getMessage() );
+							}
+						}
+				),
+				periodMillis,
+				periodMillis,
+				TimeUnit.MILLISECONDS
+		);
+	}
+
+	private RestAllocatorClient.Lease lease() {
+		return await( lease, "allocate database" );
+	}
+
+	private <T> T await(Future<T> future, String action) {
+		try {
+			return future.get( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BuildException( "Interrupted waiting to " + action + " for profile [" + profileName + "]", e );
+		}
+		catch (ExecutionException | TimeoutException e) {
+			throw new BuildException( "Unable to " + action + " for profile [" + profileName + "]", e );
+		}
+	}
+
+	@Override
+	public void prepareForExecution(Test testTask) {
+		final Map<String,Object> systemProperties = testTask.getSystemProperties();
+		systemProperties.putAll( lease().getHibernateProperties() );
+		testTask.setSystemProperties( systemProperties );
+	}
+
+	@Override
+	public void beforeTestClass() {
+		await( client.erase( lease().getId() ), "erase database" );
+	}
+
+	@Override
+	public void renew() {
+		await( client.renew( lease().getId(), expiryMinutes ), "renew database allocation" );
+	}
+
+	@Override
+	public String getReclaimKey() {
+		if ( !lease.isDone() || lease.isCompletedExceptionally() ) {
+			return null;
+		}
+		return reclaimKey( client.getBaseUrl(), lease.join().getId() );
+	}
+
+	/**
+	 * The reclaim key of the allocation with the given id.
+	 *
+	 * @param baseUrl The base URL of the allocator service
+	 * @param id The allocation id
+	 *
+	 * @return The reclaim key
+	 */
+	public static String reclaimKey(String baseUrl, String id) {
+		return RECLAIM_KEY_PREFIX + id + "@" + baseUrl;
+	}
+
+	@Override
+	public void release() {
+		synchronized ( this ) {
+			// stops renewal (and keeps it from being scheduled); a failed release may be attempted again
+			released = true;
+			if ( renewal != null ) {
+				renewal.cancel( false );
+			}
+		}
+		final RestAllocatorClient.Lease allocated;
+		try {
+			// an allocation still in flight is waited for, so that it does not leak
+			allocated = lease();
+		}
+		catch (BuildException e) {
+			if ( lease.isCompletedExceptionally() ) {
+				// nothing was allocated
+				return;
+			}
+			throw e;
+		}
+		await( client.release( allocated.getId() ), "release database allocation" );
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * {@link DatabaseAllocationProvider} obtaining databases from a REST allocator service (see
+ * {@link RestAllocatorClient} for the protocol).  Enabled by pointing the {@link #URL_KEY} setting at the service.
+ * <p/>
+ * Allocation requests are sent as soon as a node starts allocating ({@link #prefetch}), so the requests of nodes
+ * running in parallel (or of all scheduled nodes, when pre-allocating speculatively) are in flight concurrently,
+ * bounded by {@link #CONCURRENCY_KEY}.
+ */
+public class RestDatabaseAllocationProvider implements DatabaseAllocationProvider {
+	private static final Logger log = Logging.getLogger( RestDatabaseAllocationProvider.class );
+
+	/**
+	 * Names a system setting for the base URL of the allocator service.  The provider is disabled if not set.
+	 */
+	public static final String URL_KEY = "hibernate-matrix-rest-allocator";
+	/**
+	 * Names a system setting for the profiles to allocate : a comma-separated list of names, or {@code all} (the
+	 * default).
+	 */
+	public static final String PROFILES_KEY = "hibernate-matrix-rest-allocator-profiles";
+	/**
+	 * Names a system setting identifying who is requesting allocations.  Defaults to {@code hibernate}.
+	 */
+	public static final String REQUESTER_KEY = "hibernate-matrix-rest-allocator-requester";
+	/**
+	 * Names a system setting for the maximum number of concurrent requests to the service.  Defaults to 4.
+	 */
+	public static final String CONCURRENCY_KEY = "hibernate-matrix-rest-allocator-concurrency";
+	/**
+	 * Names a system setting for the connect and read timeout of each request, in seconds.  Defaults to 30.
+	 */
+	public static final String TIMEOUT_KEY = "hibernate-matrix-rest-allocator-timeout";
+	/**
+	 * Names a system setting for the number of times a failed request is retried.  Defaults to 3.
+	 */
+	public static final String RETRIES_KEY = "hibernate-matrix-rest-allocator-retries";
+	/**
+	 * Names a system setting for the lifetime requested for allocations, in minutes.  Allocations are renewed while
+	 * held.  Defaults to 60.
+	 */
+	public static final String EXPIRY_KEY = "hibernate-matrix-rest-allocator-expiry";
+
+	private final RestAllocatorClient client;
+	private final Set<String> profileNames;
+	private final int expiryMinutes;
+	private final long awaitMillis;
+	private final Map<String,RestDatabaseAllocation> prefetched = new ConcurrentHashMap<String, RestDatabaseAllocation>();
+
+	public RestDatabaseAllocationProvider(
+			RestAllocatorClient client,
+			Set<String> profileNames,
+			int expiryMinutes,
+			long awaitMillis) {
+		this.client = client;
+		this.profileNames = profileNames;
+		this.expiryMinutes = expiryMinutes;
+		this.awaitMillis = awaitMillis;
+	}
+
+	/**
+	 * Build the provider if enabled by the {@link #URL_KEY} setting.
+	 *
+	 * @return The provider, or {@code null}
+	 */
+	public static RestDatabaseAllocationProvider fromSettings() {
+		final String url = SettingsHelper.getString( URL_KEY, null );
+		if ( url == null ) {
+			return null;
+		}
+		final int timeoutSeconds = SettingsHelper.getInt( TIMEOUT_KEY, 30 );
+		final int retries = Math.max( 0, SettingsHelper.getInt( RETRIES_KEY, 3 ) );
+		final String profiles = SettingsHelper.getString( PROFILES_KEY, "all" );
+		return new RestDatabaseAllocationProvider(
+				new RestAllocatorClient(
+						url,
+						SettingsHelper.getString( REQUESTER_KEY, "hibernate" ),
+						Math.max( 1, SettingsHelper.getInt( CONCURRENCY_KEY, 4 ) ),
+						(int) TimeUnit.SECONDS.toMillis( timeoutSeconds ),
+						retries
+				),
+				"all".equals( profiles )
+						? Collections.<String>emptySet()
+						: new HashSet<String>( Arrays.asList( profiles.split( "\\s*,\\s*" ) ) ),
+				SettingsHelper.getInt( EXPIRY_KEY, 60 ),
+				// every attempt may take up to a connect and a read timeout, plus the backoff in between
+				( retries + 1 ) * TimeUnit.SECONDS.toMillis( 2L * timeoutSeconds + 30 )
+		);
+	}
+
+	@Override
+	public boolean allocates(DatabaseProfile profile) {
+		return profileNames.isEmpty() || profileNames.contains( profile.getName() );
+	}
+
+	@Override
+	public void prefetch(Project rootProject, DatabaseProfile profile, DatabaseAllocationCleanUp cleanUp) {
+		if ( allocates( profile ) ) {
+			prefetched.computeIfAbsent( profile.getName(), profileName -> allocate( profileName, cleanUp ) );
+		}
+	}
+
+	@Override
+	public DatabaseAllocation buildAllocation(
+			Project rootProject,
+			DatabaseProfile profile,
+			DatabaseAllocationCleanUp cleanUp) {
+		if ( !allocates( profile ) ) {
+			return null;
+		}
+		return obtain( profile.getName(), cleanUp );
+	}
+
+	@Override
+	public Callable<DatabaseAllocation> prepareAllocation(
+			Project rootProject,
+			DatabaseProfile profile,
+			DatabaseAllocationCleanUp cleanUp) {
+		if ( !allocates( profile ) ) {
+			return null;
+		}
+		final String profileName = profile.getName();
+		return () -> obtain( profileName, cleanUp );
+	}
+
+	private RestDatabaseAllocation obtain(String profileName, DatabaseAllocationCleanUp cleanUp) {
+		final RestDatabaseAllocation allocation = prefetched.remove( profileName );
+		return allocation != null ? allocation : allocate( profileName, cleanUp );
+	}
+
+	private RestDatabaseAllocation allocate(String profileName, DatabaseAllocationCleanUp cleanUp) {
+		log.lifecycle( "Requesting database allocation for profile [{}]", profileName );
+		final CompletableFuture<RestAllocatorClient.Lease> lease = client.allocate( profileName, expiryMinutes );
+		final RestDatabaseAllocation allocation = new RestDatabaseAllocation(
+				profileName,
+				client,
+				lease,
+				expiryMinutes,
+				awaitMillis
+		);
+		// registered right away, so that it gets released even if no node ends up using it, and recorded as leaked
+		// as soon as granted, so that it gets reclaimed even if the build dies before releasing it
+		cleanUp.addDatabaseAllocation( allocation );
+		lease.thenRun( () -> cleanUp.acquired( allocation ) );
+		return allocation;
+	}
+
+	@Override
+	public boolean reclaim(Project rootProject, String reclaimKey) {
+		final String suffix = "@" + client.getBaseUrl();
+		if ( !reclaimKey.startsWith( RestDatabaseAllocation.RECLAIM_KEY_PREFIX ) || !reclaimKey.endsWith( suffix ) ) {
+			return false;
+		}
+		final String id = reclaimKey.substring(
+				RestDatabaseAllocation.RECLAIM_KEY_PREFIX.length(),
+				reclaimKey.length() - suffix.length()
+		);
+		try {
+			client.release( id ).get( awaitMillis, TimeUnit.MILLISECONDS );
+			return true;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException | TimeoutException e) {
+			log.warn( "Unable to reclaim database allocation [{}] : {}", reclaimKey, e.getMessage() );
+			return false;
+		}
+	}
+
+	@Override
+	public String getPoolKey() {
+		return client.getBaseUrl() + " " + new TreeSet<String>( profileNames );
+	}
+
+	@Override
+	public String toString() {
+		return "RestDatabaseAllocationProvider(" + client.getBaseUrl() + ")";
+	}
+}
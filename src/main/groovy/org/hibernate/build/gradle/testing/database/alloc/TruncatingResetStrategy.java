@@ -0,0 +1,116 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generic {@link DatabaseResetStrategy} using only standard JDBC metadata and SQL.  The baseline is the set of
+ * tables existing in the clean database.  A reset empties those baseline tables which contain rows (leaving empty
+ * tables alone) and drops the tables created since the baseline.
+ * <p/>
+ * Foreign keys are handled by repeating the deletes/drops which failed for as long as each pass makes progress.
+ */
+public class TruncatingResetStrategy implements DatabaseResetStrategy {
+	private Set<String> baselineTables;
+
+	@Override
+	public void captureBaseline(Connection connection) throws SQLException {
+		baselineTables = new HashSet<String>( readTables( connection ) );
+	}
+
+	@Override
+	public void reset(Connection connection) throws SQLException {
+		final List<String> statements = new ArrayList<String>();
+		for ( String table : readTables( connection ) ) {
+			if ( !baselineTables.contains( table ) ) {
+				statements.add( "drop table " + table );
+			}
+			else if ( hasRows( connection, table ) ) {
+				statements.add( "delete from " + table );
+			}
+		}
+		executeUntilStable( connection, statements );
+	}
+
+	private static List<String> readTables(Connection connection) throws SQLException {
+		final DatabaseMetaData metaData = connection.getMetaData();
+		final String schema = connection.getSchema();
+		final List<String> tables = new ArrayList<String>();
+		final ResultSet resultSet = metaData.getTables( connection.getCatalog(), schema, "%", new String[] {"TABLE"} );
+		try {
+			while ( resultSet.next() ) {
+				tables.add( qualify( resultSet.getString( "TABLE_SCHEM" ), resultSet.getString( "TABLE_NAME" ) ) );
+			}
+		}
+		finally {
+			resultSet.close();
+		}
+		return tables;
+	}
+
+	private static String qualify(String schema, String table) {
+		return schema == null ? table : schema + '.' + table;
+	}
+
+	private static boolean hasRows(Connection connection, String table) throws SQLException {
+		final Statement statement = connection.createStatement();
+		try {
+			statement.setMaxRows( 1 );
+			final ResultSet resultSet = statement.executeQuery( "select 1 from " + table );
+			try {
+				return resultSet.next();
+			}
+			finally {
+				resultSet.close();
+			}
+		}
+		finally {
+			statement.close();
+		}
+	}
+
+	private static void executeUntilStable(Connection connection, List<String> statements) throws SQLException {
+		final List<String> remaining = new ArrayList<String>( statements );
+		SQLException lastFailure = null;
+		while ( !remaining.isEmpty() ) {
+			boolean progress = false;
+			final Iterator<String> iterator = remaining.iterator();
+			while ( iterator.hasNext() ) {
+				final String sql = iterator.next();
+				final Statement statement = connection.createStatement();
+				try {
+					statement.execute( sql );
+					iterator.remove();
+					progress = true;
+				}
+				catch (SQLException e) {
+					// most likely a foreign key; retry in the next pass
+					lastFailure = e;
+				}
+				finally {
+					statement.close();
+				}
+			}
+			if ( !progress ) {
+				throw lastFailure;
+			}
+		}
+		if ( !connection.getAutoCommit() ) {
+			connection.commit();
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The names a class file refers to, read from its constant pool : the classes it references (directly, or through
+ * field, method and generic signatures) and its String constants (which may name resources).
+ * <p/>
+ * This only sees static references; classes reached through reflection (or named in resources) are not found.
+ */
+public class ClassFileReferences {
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final Pattern DESCRIPTOR_TYPE = Pattern.compile( "L([^;<>()\\[]+)[;<]" );
+
+	private final Set<String> classNames = new HashSet<String>();
+	private final Set<String> stringConstants = new HashSet<String>();
+
+	private ClassFileReferences() {
+	}
+
+	/**
+	 * Read the references of a class file.
+	 *
+	 * @param classFile The class file bytes
+	 *
+	 * @return The references
+	 *
+	 * @throws IOException If the bytes are not a valid class file
+	 */
+	public static ClassFileReferences read(byte[] classFile) throws IOException {
+		final DataInputStream input = new DataInputStream( new ByteArrayInputStream( classFile ) );
+		if ( input.readInt() != MAGIC ) {
+			throw new IOException( "Not a class file" );
+		}
+		// minor and major version
+		input.readUnsignedShort();
+		input.readUnsignedShort();
+
+		final int count = input.readUnsignedShort();
+		final String[] utf8 = new String[count];
+		final int[] classIndexes = new int[count];
+		final int[] stringIndexes = new int[count];
+		for ( int i = 1; i < count; i++ ) {
+			final int tag = input.readUnsignedByte();
+			switch ( tag ) {
+				case 1:
+					utf8[i] = input.readUTF();
+					break;
+				case 7:
+					classIndexes[i] = input.readUnsignedShort();
+					break;
+				case 8:
+					stringIndexes[i] = input.readUnsignedShort();
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					input.skipBytes( 4 );
+					break;
+				case 5:
+				case 6:
+					// longs and doubles take two entries
+					input.skipBytes( 8 );
+					i++;
+					break;
+				case 15:
+					input.skipBytes( 3 );
+					break;
+				case 16:
+				case 19:
+				case 20:
+					input.skipBytes( 2 );
+					break;
+				default:
+					throw new IOException( "Unknown constant pool tag " + tag );
+			}
+		}
+
+		final ClassFileReferences references = new ClassFileReferences();
+		for ( int i = 1; i < count; i++ ) {
+			if ( classIndexes[i] > 0 ) {
+				references.addClassName( utf8[classIndexes[i]] );
+			}
+			else if ( stringIndexes[i] > 0 ) {
+				references.stringConstants.add( utf8[stringIndexes[i]] );
+			}
+			else if ( utf8[i] != null && utf8[i].indexOf( 'L' ) >= 0 ) {
+				// field, method and generic signatures
+				final Matcher matcher = DESCRIPTOR_TYPE.matcher( utf8[i] );
+				while ( matcher.find() ) {
+					references.classNames.add( matcher.group( 1 ) );
+				}
+			}
+		}
+		return references;
+	}
+
+	private void addClassName(String name) {
+		if ( name == null ) {
+			return;
+		}
+		if ( name.startsWith( "[" ) ) {
+			// array class
+			final Matcher matcher = DESCRIPTOR_TYPE.matcher( name );
+			while ( matcher.find() ) {
+				classNames.add( matcher.group( 1 ) );
+			}
+		}
+		else {
+			classNames.add( name );
+		}
+	}
+
+	/**
+	 * The referenced classes, as internal names ({@code org/hibernate/Session}).
+	 *
+	 * @return The referenced class names
+	 */
+	public Set<String> getClassNames() {
+		return classNames;
+	}
+
+	/**
+	 * The String constants.
+	 *
+	 * @return The String constants
+	 */
+	public Set<String> getStringConstants() {
+		return stringConstants;
+	}
+}
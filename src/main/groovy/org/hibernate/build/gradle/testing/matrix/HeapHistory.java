@@ -0,0 +1,265 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.gradle.api.JavaVersion;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Records the peak heap usage of previous runs of each matrix node, as found in the GC logs of its test forks, and
+ * recommends a heap size from it.
+ * <p/>
+ * The peak is taken as the largest heap occupancy seen right after a collection, i.e. the largest live set : the
+ * occupancy before a collection mostly reflects how much heap the fork was given, and sizing from it would only ever
+ * grow the heap.  The recommendation is the largest peak of the last {@value #RUNS_KEPT} runs plus
+ * {@value #HEADROOM_PERCENT}% headroom, rounded up to {@value #GRANULARITY_MEGABYTES}M and never below
+ * {@value #MINIMUM_MEGABYTES}M.  It grows by at most {@value #MAX_GROWTH_PERCENT}% over the heap of the last run per
+ * build; shrinking is not limited.
+ */
+public class HeapHistory {
+	private static final Logger log = Logging.getLogger( HeapHistory.class );
+
+	private static final int RUNS_KEPT = 5;
+	private static final int HEADROOM_PERCENT = 50;
+	private static final long GRANULARITY_MEGABYTES = 64;
+	private static final long MINIMUM_MEGABYTES = 256;
+	private static final int MAX_GROWTH_PERCENT = 25;
+	private static final long MEGABYTE = 1024 * 1024;
+
+	private static final String GC_LOG_PREFIX = "gc-";
+	private static final String GC_LOG_SUFFIX = ".log";
+
+	/**
+	 * Matches the {@code before->after(capacity)} part of both JDK 8 ({@code -Xloggc}) and unified ({@code -Xlog:gc})
+	 * GC log lines.
+	 */
+	private static final Pattern OCCUPANCY = Pattern.compile( "(\\d+)([KMG])->(\\d+)([KMG])\\((\\d+)([KMG])\\)" );
+
+	private static final Object LOCK = new Object();
+
+	private final File file;
+
+	public HeapHistory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * The JVM argument enabling GC logging into the given directory, one file per fork.
+	 *
+	 * @param gcLogDirectory The directory for the GC logs
+	 * @param javaVersion The version of the JVM running the tests
+	 *
+	 * @return The JVM argument
+	 */
+	public static String gcLogArgument(File gcLogDirectory, JavaVersion javaVersion) {
+		final String path = new File( gcLogDirectory, GC_LOG_PREFIX + "%p" + GC_LOG_SUFFIX ).getAbsolutePath();
+		return javaVersion.isJava9Compatible()
+				? "-Xlog:gc:file=" + path
+				: "-Xloggc:" + path;
+	}
+
+	/**
+	 * Determine the peak heap usage recorded in the GC logs of the given directory.
+	 *
+	 * @param gcLogDirectory The directory holding the GC logs
+	 *
+	 * @return The peak usage after a collection in bytes, or {@code 0} if the logs record no collection
+	 */
+	public static long peakUsage(File gcLogDirectory) {
+		long peak = 0;
+		final File[] logs = gcLogDirectory.listFiles();
+		if ( logs == null ) {
+			return 0;
+		}
+		for ( File gcLog : logs ) {
+			if ( !gcLog.getName().startsWith( GC_LOG_PREFIX ) || !gcLog.getName().endsWith( GC_LOG_SUFFIX ) ) {
+				continue;
+			}
+			try {
+				final BufferedReader reader = new BufferedReader( new FileReader( gcLog ) );
+				try {
+					String line;
+					while ( ( line = reader.readLine() ) != null ) {
+						final Matcher matcher = OCCUPANCY.matcher( line );
+						while ( matcher.find() ) {
+							peak = Math.max( peak, bytes( matcher.group( 3 ), matcher.group( 4 ) ) );
+						}
+					}
+				}
+				finally {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				log.debug( "Unable to read GC log [{}]", gcLog );
+			}
+		}
+		return peak;
+	}
+
+	private static long bytes(String value, String unit) {
+		return Long.parseLong( value ) << ( 10 * ( "KMG".indexOf( unit ) + 1 ) );
+	}
+
+	/**
+	 * Remove the GC logs of a previous run.
+	 *
+	 * @param gcLogDirectory The directory holding the GC logs
+	 */
+	@SuppressWarnings( {"ResultOfMethodCallIgnored"})
+	public static void clear(File gcLogDirectory) {
+		final File[] logs = gcLogDirectory.listFiles();
+		if ( logs != null ) {
+			for ( File gcLog : logs ) {
+				gcLog.delete();
+			}
+		}
+		gcLogDirectory.mkdirs();
+	}
+
+	/**
+	 * Recommend a max heap size for the node, based on its recorded runs.
+	 *
+	 * @param nodeKey The node key (its task path)
+	 *
+	 * @return The recommended size in bytes, or {@code null} if no run was recorded
+	 */
+	public Long recommendMaxHeapSize(String nodeKey) {
+		final List<Run> runs = runs( load(), nodeKey );
+		if ( runs.isEmpty() ) {
+			return null;
+		}
+		long peak = 0;
+		for ( Run run : runs ) {
+			peak = Math.max( peak, run.peak );
+		}
+		long recommended = roundUp( peak + peak * HEADROOM_PERCENT / 100 );
+		final long lastHeap = runs.get( runs.size() - 1 ).heap;
+		if ( lastHeap > 0 ) {
+			recommended = Math.min( recommended, roundUp( lastHeap + lastHeap * MAX_GROWTH_PERCENT / 100 ) );
+		}
+		return Math.max( MINIMUM_MEGABYTES * MEGABYTE, recommended );
+	}
+
+	private static long roundUp(long bytes) {
+		final long granule = GRANULARITY_MEGABYTES * MEGABYTE;
+		return ( bytes + granule - 1 ) / granule * granule;
+	}
+
+	/**
+	 * Record the peak heap usage of a run of the node.
+	 *
+	 * @param nodeKey The node key (its task path)
+	 * @param peak The peak usage in bytes
+	 * @param heap The max heap size the run used in bytes, {@code 0} if unknown
+	 */
+	public void record(String nodeKey, long peak, long heap) {
+		if ( peak <= 0 ) {
+			return;
+		}
+		synchronized ( LOCK ) {
+			final Properties properties = load();
+			final List<Run> runs = runs( properties, nodeKey );
+			runs.add( new Run( peak, heap ) );
+			while ( runs.size() > RUNS_KEPT ) {
+				runs.remove( 0 );
+			}
+			final StringBuilder value = new StringBuilder();
+			for ( Run entry : runs ) {
+				if ( value.length() > 0 ) {
+					value.append( ',' );
+				}
+				value.append( entry.peak ).append( ':' ).append( entry.heap );
+			}
+			properties.setProperty( nodeKey, value.toString() );
+
+			try {
+				file.getParentFile().mkdirs();
+				final OutputStream stream = new FileOutputStream( file );
+				try {
+					properties.store( stream, "Hibernate matrix peak heap usage after GC and max heap (bytes) of the last runs per node" );
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (IOException e) {
+				log.warn( "Unable to write heap history [" + file + "]", e );
+			}
+		}
+	}
+
+	private Properties load() {
+		final Properties properties = new Properties();
+		synchronized ( LOCK ) {
+			if ( file.exists() ) {
+				try {
+					final InputStream stream = new FileInputStream( file );
+					try {
+						properties.load( stream );
+					}
+					finally {
+						stream.close();
+					}
+				}
+				catch (IOException e) {
+					log.debug( "Unable to read heap history [{}]; ignoring it", file );
+					properties.clear();
+				}
+			}
+		}
+		return properties;
+	}
+
+	/**
+	 * Read the recorded runs of the node.  Entries without the heap of the run were recorded from the occupancy
+	 * before collections, and are ignored.
+	 */
+	private static List<Run> runs(Properties properties, String nodeKey) {
+		final List<Run> runs = new ArrayList<Run>();
+		final String value = properties.getProperty( nodeKey );
+		if ( value != null ) {
+			for ( String entry : value.split( "," ) ) {
+				final String[] fields = entry.trim().split( ":" );
+				if ( fields.length != 2 ) {
+					continue;
+				}
+				try {
+					runs.add( new Run( Long.parseLong( fields[0] ), Long.parseLong( fields[1] ) ) );
+				}
+				catch (NumberFormatException ignore) {
+				}
+			}
+		}
+		return runs;
+	}
+
+	private static class Run {
+		private final long peak;
+		private final long heap;
+
+		private Run(long peak, long heap) {
+			this.peak = peak;
+			this.heap = heap;
+		}
+	}
+}
@@ -0,0 +1,376 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Selects the test classes of a matrix node which need to run : those whose dependencies changed since they last
+ * passed against the node's profile, plus those which failed against it last time.
+ * <p/>
+ * The dependencies of a test class are the classes it statically references, transitively, within the directories of
+ * the test runtime classpath, along with the resources it names in String constants.  A change to anything outside of
+ * that - jars on the classpath, resources no class names, the profile itself (summarized by a fingerprint) - selects
+ * every test class.
+ * <p/>
+ * The state is kept per (project, profile) in a properties file : the digest of each test class's dependencies as of
+ * its last passing run, and the test classes which failed.
+ */
+public class IncrementalTestSelector {
+	private static final Logger log = Logging.getLogger( IncrementalTestSelector.class );
+
+	private static final String CLASS_FILE_SUFFIX = ".class";
+	private static final String FINGERPRINT_KEY = "fingerprint";
+	private static final String PASSED_PREFIX = "passed|";
+	private static final String FAILED_PREFIX = "failed|";
+
+	/**
+	 * The number of jar content hashes kept for the life of the daemon, see {@link #jarHash}.
+	 */
+	private static final int JAR_HASHES_KEPT = 2000;
+
+	/**
+	 * Content hashes of jars, keyed by path, length and modification time.  Least recently used entries are evicted
+	 * once {@value #JAR_HASHES_KEPT} jars are known.
+	 */
+	private static final Map<String,String> JAR_HASHES = new LinkedHashMap<String, String>( 64, 0.75f, true ) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > JAR_HASHES_KEPT;
+		}
+	};
+
+	private final File stateFile;
+
+	private final Map<String,String> classHashes = new HashMap<String, String>();
+	private final Map<String,ClassFileReferences> classReferences = new HashMap<String, ClassFileReferences>();
+	private final Map<String,String> resourceHashes = new HashMap<String, String>();
+	private final SortedSet<String> jarHashes = new TreeSet<String>();
+
+	private String fingerprint;
+	private Map<String,String> digests;
+
+	public IncrementalTestSelector(File stateFile) {
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Select the test classes to run.
+	 *
+	 * @param classpath The test runtime classpath
+	 * @param testClassNames The candidate test classes
+	 * @param profileFingerprint Summarizes the profile (its settings, its JDBC driver), selecting every test class
+	 * when it changes
+	 * @param full Whether to select every test class regardless
+	 *
+	 * @return The test classes to run
+	 */
+	public Set<String> select(
+			Iterable<File> classpath,
+			Collection<String> testClassNames,
+			String profileFingerprint,
+			boolean full) {
+		index( classpath );
+
+		final Map<String,String> referencedResources = new HashMap<String, String>();
+		digests = new HashMap<String, String>();
+		for ( String testClassName : testClassNames ) {
+			digests.put( testClassName, digest( testClassName, referencedResources ) );
+		}
+
+		// resources no test class names could be used by any of them
+		final SortedSet<String> global = new TreeSet<String>( jarHashes );
+		for ( Map.Entry<String,String> entry : resourceHashes.entrySet() ) {
+			if ( !referencedResources.containsKey( entry.getKey() ) ) {
+				global.add( entry.getKey() + '=' + entry.getValue() );
+			}
+		}
+		global.add( "profile=" + profileFingerprint );
+		fingerprint = hash( join( global ).getBytes( StandardCharsets.UTF_8 ) );
+
+		final Properties previous = loadState();
+		if ( full ) {
+			log.debug( "Full matrix run requested; selecting all test classes" );
+			return new TreeSet<String>( testClassNames );
+		}
+		if ( previous.getProperty( FINGERPRINT_KEY ) == null ) {
+			log.debug( "No incremental test state [{}]; selecting all test classes", stateFile );
+			return new TreeSet<String>( testClassNames );
+		}
+		if ( !fingerprint.equals( previous.getProperty( FINGERPRINT_KEY ) ) ) {
+			log.lifecycle( "Classpath jars, unreferenced resources or the profile changed; selecting all test classes" );
+			return new TreeSet<String>( testClassNames );
+		}
+
+		final Set<String> selected = new TreeSet<String>();
+		for ( String testClassName : testClassNames ) {
+			if ( previous.getProperty( FAILED_PREFIX + testClassName ) != null
+					|| !digests.get( testClassName ).equals( previous.getProperty( PASSED_PREFIX + testClassName ) ) ) {
+				selected.add( testClassName );
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Record the outcome of running the selected test classes.
+	 *
+	 * @param selected The test classes which were selected (and run)
+	 * @param failed The test classes which failed
+	 */
+	public void record(Set<String> selected, Set<String> failed) {
+		if ( digests == null ) {
+			return;
+		}
+		final Properties previous = loadState();
+		final Properties state = new Properties();
+		state.setProperty( FINGERPRINT_KEY, fingerprint );
+		for ( Map.Entry<String,String> entry : digests.entrySet() ) {
+			final String testClassName = entry.getKey();
+			if ( selected.contains( testClassName ) ) {
+				if ( failed.contains( testClassName ) ) {
+					state.setProperty( FAILED_PREFIX + testClassName, "true" );
+				}
+				else {
+					state.setProperty( PASSED_PREFIX + testClassName, entry.getValue() );
+				}
+			}
+			else {
+				copy( previous, state, PASSED_PREFIX + testClassName );
+				copy( previous, state, FAILED_PREFIX + testClassName );
+			}
+		}
+
+		try {
+			stateFile.getParentFile().mkdirs();
+			final OutputStream stream = new FileOutputStream( stateFile );
+			try {
+				state.store( stream, "Hibernate matrix incremental test state" );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			log.warn( "Unable to write incremental test state [" + stateFile + "]", e );
+		}
+
+		classHashes.clear();
+		classReferences.clear();
+		resourceHashes.clear();
+		jarHashes.clear();
+		digests = null;
+	}
+
+	private static void copy(Properties from, Properties to, String key) {
+		final String value = from.getProperty( key );
+		if ( value != null ) {
+			to.setProperty( key, value );
+		}
+	}
+
+	private Properties loadState() {
+		final Properties state = new Properties();
+		if ( stateFile.exists() ) {
+			try {
+				final InputStream stream = new FileInputStream( stateFile );
+				try {
+					state.load( stream );
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (IOException e) {
+				log.debug( "Unable to read incremental test state [{}]; ignoring it", stateFile );
+				state.clear();
+			}
+		}
+		return state;
+	}
+
+	private void index(Iterable<File> classpath) {
+		for ( File entry : classpath ) {
+			if ( entry.isDirectory() ) {
+				indexDirectory( entry, "" );
+			}
+			else if ( entry.isFile() ) {
+				jarHashes.add( entry.getName() + '=' + jarHash( entry ) );
+			}
+		}
+	}
+
+	private void indexDirectory(File directory, String pathPrefix) {
+		final File[] files = directory.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		for ( File file : files ) {
+			final String path = pathPrefix + file.getName();
+			if ( file.isDirectory() ) {
+				indexDirectory( file, path + '/' );
+				continue;
+			}
+
+			final byte[] bytes = read( file );
+			if ( path.endsWith( CLASS_FILE_SUFFIX ) ) {
+				final String internalName = path.substring( 0, path.length() - CLASS_FILE_SUFFIX.length() );
+				if ( classHashes.containsKey( internalName ) ) {
+					// shadowed by an earlier classpath entry
+					continue;
+				}
+				classHashes.put( internalName, hash( bytes ) );
+				try {
+					classReferences.put( internalName, ClassFileReferences.read( bytes ) );
+				}
+				catch (IOException e) {
+					log.debug( "Unable to read class file [{}]", file );
+				}
+			}
+			else if ( !resourceHashes.containsKey( path ) ) {
+				resourceHashes.put( path, hash( bytes ) );
+			}
+		}
+	}
+
+	/**
+	 * Digest the hashes of everything the test class depends on.
+	 */
+	private String digest(String testClassName, Map<String,String> referencedResources) {
+		final Map<String,String> dependencies = new TreeMap<String, String>();
+		final Deque<String> pending = new ArrayDeque<String>();
+		final Set<String> visited = new HashSet<String>();
+		pending.add( testClassName.replace( '.', '/' ) );
+		while ( !pending.isEmpty() ) {
+			final String internalName = pending.poll();
+			if ( !visited.add( internalName ) || !classHashes.containsKey( internalName ) ) {
+				continue;
+			}
+			dependencies.put( internalName, classHashes.get( internalName ) );
+
+			final ClassFileReferences references = classReferences.get( internalName );
+			if ( references == null ) {
+				continue;
+			}
+			pending.addAll( references.getClassNames() );
+
+			final int packageEnd = internalName.lastIndexOf( '/' );
+			final String packagePath = packageEnd < 0 ? "" : internalName.substring( 0, packageEnd + 1 );
+			for ( String constant : references.getStringConstants() ) {
+				final String path = resourcePath( constant, packagePath );
+				if ( path != null ) {
+					dependencies.put( path, resourceHashes.get( path ) );
+					referencedResources.put( path, resourceHashes.get( path ) );
+				}
+			}
+		}
+
+		final StringBuilder buffer = new StringBuilder();
+		for ( Map.Entry<String,String> dependency : dependencies.entrySet() ) {
+			buffer.append( dependency.getKey() ).append( '=' ).append( dependency.getValue() ).append( '\n' );
+		}
+		return hash( buffer.toString().getBytes( StandardCharsets.UTF_8 ) );
+	}
+
+	/**
+	 * Resolve a String constant to a resource, either as an absolute path or relative to the class's package (as
+	 * {@code Class#getResource} would).
+	 */
+	private String resourcePath(String constant, String packagePath) {
+		if ( constant.length() == 0 || constant.length() > 512 ) {
+			return null;
+		}
+		final String absolute = constant.startsWith( "/" ) ? constant.substring( 1 ) : constant;
+		if ( resourceHashes.containsKey( absolute ) ) {
+			return absolute;
+		}
+		if ( resourceHashes.containsKey( packagePath + constant ) ) {
+			return packagePath + constant;
+		}
+		return null;
+	}
+
+	private static String join(Collection<String> values) {
+		final StringBuilder buffer = new StringBuilder();
+		for ( String value : values ) {
+			buffer.append( value ).append( '\n' );
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * The content hash of a jar (or any file), only computed again when its path, length or modification time
+	 * changed.
+	 *
+	 * @param jar The jar
+	 *
+	 * @return The content hash
+	 */
+	static String jarHash(File jar) {
+		final String key = jar.getAbsolutePath() + '|' + jar.length() + '|' + jar.lastModified();
+		synchronized ( JAR_HASHES ) {
+			final String hash = JAR_HASHES.get( key );
+			if ( hash != null ) {
+				return hash;
+			}
+		}
+		final String hash = hash( read( jar ) );
+		synchronized ( JAR_HASHES ) {
+			JAR_HASHES.put( key, hash );
+		}
+		return hash;
+	}
+
+	private static byte[] read(File file) {
+		try {
+			return Files.readAllBytes( file.toPath() );
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to read [" + file + "]", e );
+		}
+	}
+
+	private static String hash(byte[] bytes) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+			final StringBuilder hex = new StringBuilder();
+			for ( byte b : digest.digest( bytes ) ) {
+				hex.append( String.format( "%02x", b ) );
+			}
+			return hex.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new BuildException( "SHA-1 not available", e );
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Aborts a matrix node whose tests cannot meaningfully continue for reasons unrelated to the tests themselves (see
+ * {@link NodeCircuitBreaker}).
+ */
+public class InfrastructureFailureException extends BuildException {
+	public InfrastructureFailureException(String nodeTaskPath, String reason) {
+		super( "Aborted matrix node " + nodeTaskPath + " : " + reason );
+	}
+
+	public InfrastructureFailureException(String nodeTaskPath, String reason, Throwable cause) {
+		super( "Aborted matrix node " + nodeTaskPath + " : " + reason, cause );
+	}
+}
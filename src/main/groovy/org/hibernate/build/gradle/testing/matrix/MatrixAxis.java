@@ -0,0 +1,195 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * A dimension of the test matrix besides the database profiles : the JDK running the tests, or a user-defined axis
+ * whose values set a system property of the test forks (a dialect option, for instance).  Matrix nodes combine a
+ * database profile with one value of each axis, see {@link MatrixPlanner} for which combinations are run.
+ */
+public class MatrixAxis {
+	/**
+	 * Names a system setting for the JDK axis : a comma-separated list of Java language versions (e.g. {@code 8,11}),
+	 * each run through a Gradle Java toolchain.  No JDK axis by default (the nodes use the JDK of the project's test
+	 * task).
+	 */
+	public static final String JDKS_KEY = "hibernate-matrix-jdks";
+	/**
+	 * Names a system setting for user-defined axes, separated by semicolons.  Each axis is given as
+	 * {@code name:property=value1|value2|...}, e.g. {@code batch:hibernate.jdbc.batch_size=0|25}.
+	 */
+	public static final String AXES_KEY = "hibernate-matrix-axes";
+
+	public static final String JDK_AXIS_NAME = "jdk";
+
+	/**
+	 * A value of an axis.
+	 */
+	public static class Value {
+		private final String name;
+		private final Integer javaVersion;
+		private final Map<String,String> systemProperties;
+
+		public Value(String name, Integer javaVersion, Map<String,String> systemProperties) {
+			this.name = name;
+			this.javaVersion = javaVersion;
+			this.systemProperties = systemProperties;
+		}
+
+		/**
+		 * The name of the value, as used in the names of the nodes (and their tasks).
+		 *
+		 * @return The value name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The Java language version of the toolchain running the tests, for values of the JDK axis.
+		 *
+		 * @return The Java language version, or {@code null}
+		 */
+		public Integer getJavaVersion() {
+			return javaVersion;
+		}
+
+		/**
+		 * The system properties this value sets for the test forks.
+		 *
+		 * @return The system properties
+		 */
+		public Map<String,String> getSystemProperties() {
+			return systemProperties;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final String name;
+	private final List<Value> values;
+
+	public MatrixAxis(String name, List<Value> values) {
+		this.name = name;
+		this.values = values;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Value> getValues() {
+		return values;
+	}
+
+	/**
+	 * Build the axes defined by the {@link #JDKS_KEY} and {@link #AXES_KEY} settings, JDK axis first.
+	 *
+	 * @return The axes; empty for a matrix of database profiles only
+	 */
+	public static List<MatrixAxis> fromSettings() {
+		final List<MatrixAxis> axes = new ArrayList<MatrixAxis>();
+		final String jdks = SettingsHelper.getString( JDKS_KEY, null );
+		if ( jdks != null && !jdks.trim().isEmpty() ) {
+			axes.add( jdkAxis( jdks ) );
+		}
+		final String custom = SettingsHelper.getString( AXES_KEY, null );
+		if ( custom != null && !custom.trim().isEmpty() ) {
+			axes.addAll( customAxes( custom ) );
+		}
+		final Set<String> axisNames = new HashSet<String>();
+		for ( MatrixAxis axis : axes ) {
+			if ( !axisNames.add( axis.getName() ) ) {
+				throw new BuildException( "Matrix axis [" + axis.getName() + "] is defined more than once" );
+			}
+		}
+		return axes;
+	}
+
+	/**
+	 * Check that the values of the axis have distinct names.  Value names are sanitized for use in task names, so
+	 * distinct values may end up with the same name; their nodes (and tasks) would then clash.
+	 */
+	private static MatrixAxis checkValueNames(String setting, MatrixAxis axis) {
+		final Map<String,String> specsByName = new HashMap<String, String>();
+		for ( int i = 0; i < axis.getValues().size(); i++ ) {
+			final Value value = axis.getValues().get( i );
+			final String spec = value.getJavaVersion() != null
+					? String.valueOf( value.getJavaVersion() )
+					: String.valueOf( value.getSystemProperties().values() );
+			final String clashing = specsByName.put( value.getName(), spec );
+			if ( clashing != null ) {
+				throw new BuildException(
+						"Values " + clashing + " and " + spec + " of matrix axis [" + axis.getName() + "] in setting ["
+								+ setting + "] both map to the name [" + value.getName() + "]; make them differ in "
+								+ "letters or digits"
+				);
+			}
+		}
+		return axis;
+	}
+
+	static MatrixAxis jdkAxis(String jdks) {
+		final List<Value> values = new ArrayList<Value>();
+		for ( String version : jdks.split( "," ) ) {
+			try {
+				final int javaVersion = Integer.parseInt( version.trim() );
+				values.add(
+						new Value( JDK_AXIS_NAME + javaVersion, javaVersion, Collections.<String, String>emptyMap() )
+				);
+			}
+			catch (NumberFormatException e) {
+				throw new BuildException( "Invalid Java version in setting [" + JDKS_KEY + "] : " + version, e );
+			}
+		}
+		return checkValueNames( JDKS_KEY, new MatrixAxis( JDK_AXIS_NAME, values ) );
+	}
+
+	static List<MatrixAxis> customAxes(String spec) {
+		final List<MatrixAxis> axes = new ArrayList<MatrixAxis>();
+		for ( String axisSpec : spec.split( ";" ) ) {
+			if ( axisSpec.trim().isEmpty() ) {
+				continue;
+			}
+			final int nameEnd = axisSpec.indexOf( ':' );
+			final int propertyEnd = axisSpec.indexOf( '=', nameEnd + 1 );
+			if ( nameEnd <= 0 || propertyEnd <= nameEnd + 1 || propertyEnd == axisSpec.length() - 1 ) {
+				throw new BuildException(
+						"Invalid axis in setting [" + AXES_KEY + "], expecting name:property=value1|value2 : " + axisSpec
+				);
+			}
+			final String axisName = axisSpec.substring( 0, nameEnd ).trim();
+			final String property = axisSpec.substring( nameEnd + 1, propertyEnd ).trim();
+			final List<Value> values = new ArrayList<Value>();
+			for ( String value : axisSpec.substring( propertyEnd + 1 ).split( "\\|" ) ) {
+				values.add(
+						new Value(
+								axisName + "-" + value.trim().replaceAll( "[^A-Za-z0-9]+", "-" ),
+								null,
+								Collections.singletonMap( property, value.trim() )
+						)
+				);
+			}
+			axes.add( checkValueNames( AXES_KEY, new MatrixAxis( axisName, values ) ) );
+		}
+		return axes;
+	}
+}
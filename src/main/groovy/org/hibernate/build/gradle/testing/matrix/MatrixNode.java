@@ -24,32 +24,103 @@
 package org.hibernate.build.gradle.testing.matrix;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.gradle.api.Project;
+import org.gradle.api.tasks.testing.TestResult;
 
 import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.testing.matrix.report.MatrixReportTask;
+import org.hibernate.build.gradle.util.BuildException;
 
 /**
- * A testing matrix node combines a database profile and a jdk (eventually) along with managing "db allocation"
- * information.
+ * A testing matrix node combines a database profile with one value of each additional {@link MatrixAxis} (JDK,
+ * user-defined axes), if any, along with managing "db allocation" information.
+ * <p/>
+ * A node without axis values is named after its profile; otherwise the names of the values are appended, e.g.
+ * {@code h2_jdk11_batch-25}.
  *
  * @author Steve Ebersole
  * @author Strong Liu
  */
 public class MatrixNode {
 	private final DatabaseProfile databaseProfile;
+	private final List<MatrixAxis.Value> axisValues;
+	private final String name;
 	private final File baseOutputDirectory;
 
-	@SuppressWarnings( {"ResultOfMethodCallIgnored"})
+	private volatile NodeJvmSettings jvmSettings;
+	private volatile TestResult result;
+	private volatile String infrastructureFailure;
+
 	public MatrixNode(Project project, DatabaseProfile databaseProfile) {
+		this( project, databaseProfile, Collections.<MatrixAxis.Value>emptyList() );
+	}
+
+	public MatrixNode(Project project, DatabaseProfile databaseProfile, List<MatrixAxis.Value> axisValues) {
 		this.databaseProfile = databaseProfile;
+		this.axisValues = axisValues;
+		this.name = nodeName( databaseProfile.getName(), axisValues );
 
-		this.baseOutputDirectory = new File( new File( project.getBuildDir(), "matrix" ), databaseProfile.getName() );
-		baseOutputDirectory.mkdirs();
+		this.baseOutputDirectory = new File( new File( project.getBuildDir(), "matrix" ), name );
+	}
+
+	/**
+	 * The name of the node combining the given profile and axis values.
+	 *
+	 * @param profileName The database profile name
+	 * @param axisValues The axis values
+	 *
+	 * @return The node name
+	 */
+	public static String nodeName(String profileName, List<MatrixAxis.Value> axisValues) {
+		final StringBuilder name = new StringBuilder( profileName );
+		for ( MatrixAxis.Value value : axisValues ) {
+			name.append( '_' ).append( value.getName() );
+		}
+		return name.toString();
 	}
 
     public String getName() {
-		return databaseProfile.getName();
+		return name;
+	}
+
+	public List<MatrixAxis.Value> getAxisValues() {
+		return axisValues;
+	}
+
+	/**
+	 * The Java language version the node's tests run with, as selected by its JDK axis value.
+	 *
+	 * @return The Java language version, or {@code null} to use the JDK of the project's test task
+	 */
+	public Integer getJavaVersion() {
+		Integer javaVersion = null;
+		for ( MatrixAxis.Value value : axisValues ) {
+			if ( value.getJavaVersion() != null ) {
+				javaVersion = value.getJavaVersion();
+			}
+		}
+		return javaVersion;
+	}
+
+	/**
+	 * The system properties set by the node's axis values, which take precedence over the profile's.
+	 *
+	 * @return The system properties
+	 */
+	public Map<String,String> getAxisSystemProperties() {
+		final Map<String,String> systemProperties = new LinkedHashMap<String, String>();
+		for ( MatrixAxis.Value value : axisValues ) {
+			systemProperties.putAll( value.getSystemProperties() );
+		}
+		return systemProperties;
 	}
 
 	public DatabaseProfile getDatabaseProfile() {
@@ -59,4 +130,122 @@ public class MatrixNode {
 	public File getBaseOutputDirectory() {
 		return baseOutputDirectory;
 	}
+
+	/**
+	 * The directory receiving the node's JUnit XML results.
+	 *
+	 * @return The results directory
+	 */
+	public File getResultsDirectory() {
+		return new File( baseOutputDirectory, "results" );
+	}
+
+	/**
+	 * The directory receiving the GC logs of the node's test forks, when heap usage is recorded.
+	 *
+	 * @return The GC log directory
+	 */
+	public File getGcLogDirectory() {
+		return new File( baseOutputDirectory, "gc" );
+	}
+
+	/**
+	 * The JVM settings declared by the node's database profile.  Loaded on first access.
+	 *
+	 * @return The JVM settings
+	 */
+	public NodeJvmSettings getJvmSettings() {
+		if ( jvmSettings == null ) {
+			jvmSettings = NodeJvmSettings.load( databaseProfile.getDirectory() );
+		}
+		return jvmSettings;
+	}
+
+	/**
+	 * Create the base output directory, which is done only once the node actually executes.
+	 */
+	@SuppressWarnings( {"ResultOfMethodCallIgnored"})
+	public void prepareBaseOutputDirectory() {
+		baseOutputDirectory.mkdirs();
+		new File( getResultsDirectory(), MatrixReportTask.ABORTED_MARKER_FILE ).delete();
+	}
+
+	/**
+	 * Mark the node's results as those of an aborted run, with the {@link #getInfrastructureFailure() infrastructure
+	 * failure} recorded for it : the JUnit results only cover the test classes which ran before the node was aborted
+	 * (or none at all), which the {@link MatrixReportTask matrix report} shows.
+	 */
+	public void writeAbortedMarker() {
+		final File resultsDirectory = getResultsDirectory();
+		resultsDirectory.mkdirs();
+		final File marker = new File( resultsDirectory, MatrixReportTask.ABORTED_MARKER_FILE );
+		try {
+			Files.write( marker.toPath(), String.valueOf( infrastructureFailure ).getBytes( StandardCharsets.UTF_8 ) );
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write [" + marker + "]", e );
+		}
+	}
+
+	/**
+	 * Record the overall result of running the node's tests.
+	 *
+	 * @param result The result of the root test suite
+	 */
+	public void recordResult(TestResult result) {
+		this.result = result;
+	}
+
+	/**
+	 * Record that the node could not (fully) run its tests for reasons unrelated to the tests themselves, such as its
+	 * database being unreachable.
+	 *
+	 * @param reason What went wrong
+	 */
+	public void recordInfrastructureFailure(String reason) {
+		this.infrastructureFailure = reason;
+	}
+
+	/**
+	 * The infrastructure failure recorded for the node, if any.
+	 *
+	 * @return What went wrong, or {@code null}
+	 */
+	public String getInfrastructureFailure() {
+		return infrastructureFailure;
+	}
+
+	/**
+	 * Was a result recorded for the node?
+	 *
+	 * @return {@code true} if the node's tests ran
+	 */
+	public boolean hasResult() {
+		return result != null;
+	}
+
+	/**
+	 * Describe the node's status, as recorded by {@link #recordResult} (or {@link #recordInfrastructureFailure}), in a
+	 * form suitable for logging.
+	 *
+	 * @return The status description
+	 */
+	public String describeStatus() {
+		final TestResult result = this.result;
+		final String infrastructureFailure = this.infrastructureFailure;
+		if ( infrastructureFailure != null ) {
+			return "INFRASTRUCTURE FAILURE : " + infrastructureFailure;
+		}
+		if ( result == null ) {
+			return "NOT RUN";
+		}
+		return String.format(
+				"%s (%s tests, %s failed, %s skipped) in %ss",
+				result.getResultType(),
+				result.getTestCount(),
+				result.getFailedTestCount(),
+				result.getSkippedTestCount(),
+				( result.getEndTime() - result.getStartTime() ) / 1000
+		);
+	}
 }
@@ -0,0 +1,127 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build-wide service handing out the fork budget of the matrix node tasks : the number of test forks each node may
+ * use so that the nodes running at once never ask for more test JVMs than the machine has cores.
+ * <p/>
+ * It does not make nodes run concurrently.  Gradle holds a project's lock for as long as one of its Test tasks
+ * executes, so the nodes of a single project always run one after the other, and nodes only ever overlap when they
+ * belong to different projects of a {@code --parallel} build.  The budget is therefore shared between the nodes which
+ * can actually run at once (as known once the task graph is ready) : the nodes of a single project each get the
+ * whole machine.  In {@code --parallel} builds, the number of nodes running at once across projects is additionally
+ * capped through the service's {@code maxParallelUsages}.
+ */
+public abstract class MatrixNodeScheduler implements BuildService<MatrixNodeScheduler.Params> {
+	private static final Logger log = Logging.getLogger( MatrixNodeScheduler.class );
+
+	public static final String SERVICE_NAME = "hibernateMatrixNodeScheduler";
+
+	public interface Params extends BuildServiceParameters {
+		Property<Integer> getMaxConcurrentNodes();
+
+		/**
+		 * The number of forks requested per node, if limited by the user.
+		 */
+		Property<Integer> getRequestedForks();
+
+		Property<Integer> getAvailableProcessors();
+
+		Property<Boolean> getParallel();
+	}
+
+	private final Set<String> scheduledProjectPaths = ConcurrentHashMap.newKeySet();
+	private final Set<String> runningNodeTaskPaths = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger finishedNodes = new AtomicInteger();
+	private volatile int forksPerNode;
+
+	public int getMaxConcurrentNodes() {
+		return getParameters().getMaxConcurrentNodes().get();
+	}
+
+	/**
+	 * Record that a node task of the project is scheduled.  Called for every scheduled node once the task graph is
+	 * ready, that is before any node executes.
+	 *
+	 * @param projectPath The path of the project owning the node task
+	 */
+	public void nodeScheduled(String projectPath) {
+		scheduledProjectPaths.add( projectPath );
+	}
+
+	/**
+	 * The number of nodes which can execute at once in this build.
+	 *
+	 * @return The node concurrency; always at least 1
+	 */
+	public int getNodeConcurrency() {
+		if ( !getParameters().getParallel().get() ) {
+			return 1;
+		}
+		return Math.max( 1, Math.min( getMaxConcurrentNodes(), scheduledProjectPaths.size() ) );
+	}
+
+	public int getForksPerNode() {
+		if ( forksPerNode == 0 ) {
+			forksPerNode = forkBudget(
+					getNodeConcurrency(),
+					getParameters().getRequestedForks().getOrElse( Integer.MAX_VALUE ),
+					getParameters().getAvailableProcessors().get()
+			);
+		}
+		return forksPerNode;
+	}
+
+	public void nodeStarted(String nodeTaskPath) {
+		runningNodeTaskPaths.add( nodeTaskPath );
+		log.lifecycle(
+				"Starting matrix node {} [{} of at most {} nodes running, {} fork(s) per node]",
+				nodeTaskPath,
+				runningNodeTaskPaths.size(),
+				getNodeConcurrency(),
+				getForksPerNode()
+		);
+	}
+
+	/**
+	 * Record that a node task finished, whatever its outcome (including failed, skipped, up-to-date and cached
+	 * nodes, which never started).
+	 *
+	 * @param nodeTaskPath The node task path
+	 * @param status The node status, as reported
+	 */
+	public void nodeFinished(String nodeTaskPath, String status) {
+		runningNodeTaskPaths.remove( nodeTaskPath );
+		final int finished = finishedNodes.incrementAndGet();
+		log.lifecycle( "Finished matrix node {} : {} [{} node(s) finished]", nodeTaskPath, status, finished );
+	}
+
+	/**
+	 * Determine how many forks each node may use without oversubscribing the machine.
+	 *
+	 * @param concurrentNodes The number of nodes executing at once
+	 * @param requestedForks The number of forks requested per node
+	 * @param availableProcessors The number of processors available
+	 *
+	 * @return The number of forks each node may use; always at least 1
+	 */
+	public static int forkBudget(int concurrentNodes, int requestedForks, int availableProcessors) {
+		final int perNode = Math.max( 1, availableProcessors / Math.max( 1, concurrentNodes ) );
+		return Math.max( 1, Math.min( requestedForks, perNode ) );
+	}
+}
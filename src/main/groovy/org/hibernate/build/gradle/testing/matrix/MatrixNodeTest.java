@@ -0,0 +1,107 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.testing.Test;
+
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocator;
+import org.hibernate.build.gradle.testing.matrix.metrics.MatrixMetricsService;
+
+/**
+ * The Test task type used for each {@code matrix_{profile}} node.
+ * <p/>
+ * Besides what {@link Test} itself declares, the node's database profile and anything deciding which test classes
+ * the node runs are declared as inputs, so that an unchanged node can be taken from the build cache.
+ */
+public abstract class MatrixNodeTest extends Test {
+	/**
+	 * The scheduler bounding concurrent node execution.  Declaring it here is what makes Gradle apply the
+	 * scheduler's usage limit to this task.
+	 *
+	 * @return The scheduler reference
+	 */
+	@Internal
+	public abstract Property<MatrixNodeScheduler> getScheduler();
+
+	/**
+	 * The service collecting the execution metrics of the build's matrix nodes, unless metrics are disabled.
+	 *
+	 * @return The metrics service reference
+	 */
+	@Internal
+	public abstract Property<MatrixMetricsService> getMetrics();
+
+	/**
+	 * The database allocator shared by the build's matrix nodes.  Declared so that the allocator (and the
+	 * allocations it still holds) outlives every node task.
+	 *
+	 * @return The allocator reference
+	 */
+	@Internal
+	public abstract Property<DatabaseAllocator> getAllocator();
+
+	/**
+	 * The name of the node's database profile.
+	 *
+	 * @return The profile name
+	 */
+	@Input
+	public abstract Property<String> getDatabaseProfileName();
+
+	/**
+	 * The Hibernate properties of the node's database profile.
+	 *
+	 * @return The profile's Hibernate properties, as Strings
+	 */
+	@Input
+	public abstract MapProperty<String,String> getDatabaseProfileProperties();
+
+	/**
+	 * The JDBC artifacts of the node's database profile, fingerprinted by content.
+	 *
+	 * @return The JDBC artifacts
+	 */
+	@Classpath
+	public abstract ConfigurableFileCollection getJdbcArtifacts();
+
+	/**
+	 * The files defining the node's database profile ({@code matrix.gradle}, {@code jvm.properties}), where present.
+	 *
+	 * @return The profile definition files
+	 */
+	@InputFiles
+	@PathSensitive(PathSensitivity.NONE)
+	public abstract ConfigurableFileCollection getProfileDefinitionFiles();
+
+	/**
+	 * The matrix shard this build executes, if the matrix is sharded.
+	 *
+	 * @return The shard, in {@code index/count} form
+	 */
+	@Input
+	@Optional
+	public abstract Property<String> getShard();
+
+	/**
+	 * The durations balancing the matrix shards, if any.
+	 *
+	 * @return The shard durations file
+	 */
+	@InputFiles
+	@PathSensitive(PathSensitivity.NONE)
+	public abstract ConfigurableFileCollection getShardDurations();
+}
@@ -0,0 +1,355 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.ToDoubleFunction;
+
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.SettingsHelper;
+
+/**
+ * Plans which combinations of axis values (see {@link MatrixAxis}) become matrix nodes : either all of them (the
+ * cartesian product), or a pairwise covering array, in which every pair of values of any two axes is still combined
+ * in at least one node.  Pairwise reduction keeps most of the coverage of the product (and every value of every axis
+ * is run) for a fraction of the nodes.
+ * <p/>
+ * The covering array is built greedily, each step adding the combination covering the most pairs not yet covered per
+ * unit of cost, so that cheap nodes are preferred when they provide the same coverage.  Costs are the recorded
+ * durations of the nodes; unrecorded ones are estimated from the recorded nodes sharing the same value of the first
+ * (database) axis, else from all recorded nodes.
+ * <p/>
+ * As recorded durations change from one build to the next, so would the plan, and with it the names of the nodes
+ * (and of their tasks).  A pairwise plan is therefore kept in the state directory and reused as long as the axes
+ * are unchanged (see {@link #signature}), unless re-planning is requested through {@link #REPLAN_KEY}.
+ * <p/>
+ * Combinations are expressed as indexes into the values of each axis.
+ */
+public class MatrixPlanner {
+	/**
+	 * Names a system setting selecting how combinations are planned : {@code full} (the default) or
+	 * {@code pairwise}.
+	 */
+	public static final String PLAN_KEY = "hibernate-matrix-plan";
+
+	/**
+	 * Names a system setting requesting a pairwise plan to be computed again from the recorded durations, rather than
+	 * reusing the plan kept from an earlier build.  Defaults to {@code false}.
+	 */
+	public static final String REPLAN_KEY = "hibernate-matrix-replan";
+
+	private static final int MAX_PAIRWISE_CANDIDATES = 100000;
+	private static final String SIGNATURE_KEY = "signature";
+	private static final String COMBINATIONS_KEY = "combinations";
+
+	public enum Mode {
+		FULL,
+		PAIRWISE;
+
+		/**
+		 * The mode selected by the {@link #PLAN_KEY} setting.
+		 *
+		 * @return The mode
+		 */
+		public static Mode fromSettings() {
+			final String value = SettingsHelper.getString( PLAN_KEY, "full" );
+			try {
+				return valueOf( value.toUpperCase( Locale.ROOT ) );
+			}
+			catch (IllegalArgumentException e) {
+				throw new BuildException( "Invalid value for setting [" + PLAN_KEY + "] : " + value, e );
+			}
+		}
+	}
+
+	private final Mode mode;
+
+	public MatrixPlanner(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Plan the combinations to run.
+	 *
+	 * @param axisSizes The number of values of each axis
+	 * @param recordedCost The recorded cost of a combination, {@link Double#NaN} if none is recorded (only used for
+	 * pairwise planning)
+	 *
+	 * @return The combinations, in cartesian product order
+	 */
+	public List<int[]> plan(int[] axisSizes, ToDoubleFunction<int[]> recordedCost) {
+		final List<int[]> product = product( axisSizes );
+		if ( mode == Mode.FULL || axisSizes.length < 2 ) {
+			return product;
+		}
+		if ( product.size() > MAX_PAIRWISE_CANDIDATES ) {
+			throw new BuildException(
+					"Too many matrix combinations (" + product.size() + ") for pairwise planning; reduce the axes"
+			);
+		}
+		return pairwise( axisSizes, product, estimateCosts( product, recordedCost ) );
+	}
+
+	/**
+	 * Plan the combinations to run, reusing the pairwise plan kept in the given file if made for the same axes (and
+	 * re-planning is not requested), otherwise planning them and keeping the plan for the next builds.
+	 *
+	 * @param axisSizes The number of values of each axis
+	 * @param recordedCost See {@link #plan(int[], ToDoubleFunction)}
+	 * @param planFile The file keeping the pairwise plan
+	 * @param signature The {@link #signature} of the axes
+	 *
+	 * @return The combinations, in cartesian product order
+	 */
+	public List<int[]> plan(int[] axisSizes, ToDoubleFunction<int[]> recordedCost, File planFile, String signature) {
+		if ( mode == Mode.FULL || axisSizes.length < 2 ) {
+			return plan( axisSizes, recordedCost );
+		}
+		if ( !SettingsHelper.getBoolean( REPLAN_KEY, false ) ) {
+			final List<int[]> kept = loadPlan( planFile, signature, axisSizes );
+			if ( kept != null ) {
+				return kept;
+			}
+		}
+		final List<int[]> plan = plan( axisSizes, recordedCost );
+		storePlan( planFile, signature, plan );
+		return plan;
+	}
+
+	/**
+	 * Identify the axes a plan is made for : the names of the values of each axis, in order.
+	 *
+	 * @param axisValueNames The names of the values of each axis
+	 *
+	 * @return The signature
+	 */
+	public static String signature(List<List<String>> axisValueNames) {
+		final StringBuilder signature = new StringBuilder();
+		for ( List<String> valueNames : axisValueNames ) {
+			if ( signature.length() > 0 ) {
+				signature.append( ';' );
+			}
+			signature.append( String.join( ",", valueNames ) );
+		}
+		return signature.toString();
+	}
+
+	private static List<int[]> loadPlan(File planFile, String signature, int[] axisSizes) {
+		if ( !planFile.isFile() ) {
+			return null;
+		}
+		final Properties properties = new Properties();
+		try {
+			final InputStream stream = new FileInputStream( planFile );
+			try {
+				properties.load( stream );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to read matrix plan file [" + planFile.getAbsolutePath() + "]", e );
+		}
+		if ( !signature.equals( properties.getProperty( SIGNATURE_KEY ) )
+				|| properties.getProperty( COMBINATIONS_KEY ) == null ) {
+			return null;
+		}
+
+		final List<int[]> plan = new ArrayList<int[]>();
+		for ( String entry : properties.getProperty( COMBINATIONS_KEY ).split( ";" ) ) {
+			final String[] indexes = entry.split( "," );
+			if ( indexes.length != axisSizes.length ) {
+				return null;
+			}
+			final int[] combination = new int[axisSizes.length];
+			for ( int i = 0; i < indexes.length; i++ ) {
+				try {
+					combination[i] = Integer.parseInt( indexes[i] );
+				}
+				catch (NumberFormatException e) {
+					return null;
+				}
+				if ( combination[i] < 0 || combination[i] >= axisSizes[i] ) {
+					return null;
+				}
+			}
+			plan.add( combination );
+		}
+		return plan;
+	}
+
+	private static void storePlan(File planFile, String signature, List<int[]> plan) {
+		final StringBuilder combinations = new StringBuilder();
+		for ( int[] combination : plan ) {
+			if ( combinations.length() > 0 ) {
+				combinations.append( ';' );
+			}
+			for ( int i = 0; i < combination.length; i++ ) {
+				combinations.append( i > 0 ? "," : "" ).append( combination[i] );
+			}
+		}
+		final Properties properties = new Properties();
+		properties.setProperty( SIGNATURE_KEY, signature );
+		properties.setProperty( COMBINATIONS_KEY, combinations.toString() );
+		try {
+			planFile.getParentFile().mkdirs();
+			final OutputStream stream = new FileOutputStream( planFile );
+			try {
+				properties.store( stream, "Hibernate matrix pairwise plan" );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write matrix plan file [" + planFile.getAbsolutePath() + "]", e );
+		}
+	}
+
+	/**
+	 * All combinations of the axis values.
+	 *
+	 * @param axisSizes The number of values of each axis
+	 *
+	 * @return The combinations, varying the last axis fastest
+	 */
+	public static List<int[]> product(int[] axisSizes) {
+		final List<int[]> combinations = new ArrayList<int[]>();
+		for ( int size : axisSizes ) {
+			if ( size == 0 ) {
+				return combinations;
+			}
+		}
+		final int[] current = new int[axisSizes.length];
+		while ( true ) {
+			combinations.add( current.clone() );
+			int axis = axisSizes.length - 1;
+			while ( axis >= 0 && ++current[axis] == axisSizes[axis] ) {
+				current[axis] = 0;
+				axis--;
+			}
+			if ( axis < 0 ) {
+				return combinations;
+			}
+		}
+	}
+
+	/**
+	 * The cost of each combination : as recorded, else the average recorded cost of the combinations sharing its
+	 * first axis value, else the average of all recorded costs (1 if nothing is recorded).
+	 */
+	private static double[] estimateCosts(List<int[]> combinations, ToDoubleFunction<int[]> recordedCost) {
+		final double[] costs = new double[combinations.size()];
+		final Map<Integer,double[]> totalsByFirstValue = new HashMap<Integer, double[]>();
+		double total = 0;
+		int count = 0;
+		for ( int i = 0; i < costs.length; i++ ) {
+			costs[i] = recordedCost.applyAsDouble( combinations.get( i ) );
+			if ( !Double.isNaN( costs[i] ) ) {
+				double[] firstValueTotal = totalsByFirstValue.get( combinations.get( i )[0] );
+				if ( firstValueTotal == null ) {
+					firstValueTotal = new double[2];
+					totalsByFirstValue.put( combinations.get( i )[0], firstValueTotal );
+				}
+				firstValueTotal[0] += costs[i];
+				firstValueTotal[1]++;
+				total += costs[i];
+				count++;
+			}
+		}
+		final double average = count == 0 ? 1 : total / count;
+		for ( int i = 0; i < costs.length; i++ ) {
+			if ( Double.isNaN( costs[i] ) ) {
+				final double[] firstValueTotal = totalsByFirstValue.get( combinations.get( i )[0] );
+				costs[i] = firstValueTotal == null ? average : firstValueTotal[0] / firstValueTotal[1];
+			}
+			// never free, so that coverage always weighs in
+			costs[i] = Math.max( costs[i], 1 );
+		}
+		return costs;
+	}
+
+	private static List<int[]> pairwise(int[] axisSizes, List<int[]> candidates, double[] costs) {
+		// pairs of values of axes (i, j), i < j, are numbered from pairBase[i][j]
+		final int axisCount = axisSizes.length;
+		final int[][] pairBase = new int[axisCount][axisCount];
+		int pairCount = 0;
+		for ( int i = 0; i < axisCount; i++ ) {
+			for ( int j = i + 1; j < axisCount; j++ ) {
+				pairBase[i][j] = pairCount;
+				pairCount += axisSizes[i] * axisSizes[j];
+			}
+		}
+
+		final boolean[] covered = new boolean[pairCount];
+		final boolean[] chosen = new boolean[candidates.size()];
+		int uncovered = pairCount;
+		while ( uncovered > 0 ) {
+			int best = -1;
+			int bestGain = 0;
+			double bestScore = 0;
+			for ( int c = 0; c < candidates.size(); c++ ) {
+				if ( chosen[c] ) {
+					continue;
+				}
+				final int gain = uncoveredPairs( candidates.get( c ), axisSizes, pairBase, covered, false );
+				if ( gain == 0 ) {
+					continue;
+				}
+				final double score = gain / costs[c];
+				if ( best < 0 || score > bestScore || ( score == bestScore && gain > bestGain ) ) {
+					best = c;
+					bestGain = gain;
+					bestScore = score;
+				}
+			}
+			chosen[best] = true;
+			uncovered -= uncoveredPairs( candidates.get( best ), axisSizes, pairBase, covered, true );
+		}
+
+		final List<int[]> plan = new ArrayList<int[]>();
+		for ( int c = 0; c < candidates.size(); c++ ) {
+			if ( chosen[c] ) {
+				plan.add( candidates.get( c ) );
+			}
+		}
+		return plan;
+	}
+
+	private static int uncoveredPairs(
+			int[] combination,
+			int[] axisSizes,
+			int[][] pairBase,
+			boolean[] covered,
+			boolean cover) {
+		int count = 0;
+		for ( int i = 0; i < combination.length; i++ ) {
+			for ( int j = i + 1; j < combination.length; j++ ) {
+				final int pair = pairBase[i][j] + combination[i] * axisSizes[j] + combination[j];
+				if ( !covered[pair] ) {
+					count++;
+					if ( cover ) {
+						covered[pair] = true;
+					}
+				}
+			}
+		}
+		return count;
+	}
+}
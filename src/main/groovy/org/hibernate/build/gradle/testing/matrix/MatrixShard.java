@@ -0,0 +1,72 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Identifies the slice of the matrix work a single build (CI agent) should execute, in {@code index/count} form
+ * where the index is 1-based.  E.g. {@code 3/8} is the third of eight shards.
+ */
+public class MatrixShard {
+	private final int index;
+	private final int count;
+
+	public MatrixShard(int index, int count) {
+		if ( count < 1 || index < 1 || index > count ) {
+			throw new BuildException( "Invalid matrix shard [" + index + "/" + count + "]" );
+		}
+		this.index = index;
+		this.count = count;
+	}
+
+	/**
+	 * Parse the {@code index/count} form of a shard.
+	 *
+	 * @param value The shard specification
+	 *
+	 * @return The parsed shard
+	 */
+	public static MatrixShard parse(String value) {
+		final int separatorPosition = value.indexOf( '/' );
+		if ( separatorPosition < 0 ) {
+			throw new BuildException( "Matrix shard [" + value + "] should be in the form index/count, e.g. 3/8" );
+		}
+		try {
+			return new MatrixShard(
+					Integer.parseInt( value.substring( 0, separatorPosition ).trim() ),
+					Integer.parseInt( value.substring( separatorPosition + 1 ).trim() )
+			);
+		}
+		catch (NumberFormatException e) {
+			throw new BuildException( "Matrix shard [" + value + "] should be in the form index/count, e.g. 3/8", e );
+		}
+	}
+
+	/**
+	 * The 1-based index of this shard
+	 *
+	 * @return The shard index
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * The total number of shards
+	 *
+	 * @return The shard count
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return index + "/" + count;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Deterministically splits the matrix work units - (profile, test class) pairs - across a number of shards, such
+ * that every shard has about the same amount of work.
+ * <p/>
+ * Units are weighted by their recorded duration where known.  Units without a recorded duration are weighted as
+ * the average of the known durations, or all equally when nothing is known (balancing by class count).  Units are
+ * then assigned longest first, each to the currently least loaded shard.  Given the same units and durations every
+ * agent computes the same assignment, so the shards are disjoint and together cover all the units.
+ */
+public class MatrixShardPlanner {
+	private final MatrixShard shard;
+	private final Map<String,Long> durations;
+
+	/**
+	 * Constructs a planner
+	 *
+	 * @param shard The shard to plan for
+	 * @param durations Recorded unit durations (in millis), keyed by {@link #unitKey}
+	 */
+	public MatrixShardPlanner(MatrixShard shard, Map<String,Long> durations) {
+		this.shard = shard;
+		this.durations = durations;
+	}
+
+	/**
+	 * The key identifying a unit of matrix work
+	 *
+	 * @param profileName The database profile name
+	 * @param className The test class name
+	 *
+	 * @return The unit key
+	 */
+	public static String unitKey(String profileName, String className) {
+		return profileName + '/' + className;
+	}
+
+	/**
+	 * Load recorded unit durations from a properties file mapping {@link #unitKey unit keys} to millis.
+	 *
+	 * @param file The durations file, may be {@code null}
+	 *
+	 * @return The durations; empty if the file is {@code null} or does not exist
+	 */
+	public static Map<String,Long> loadDurations(File file) {
+		if ( file == null || !file.exists() ) {
+			return Collections.emptyMap();
+		}
+
+		final Properties properties = new Properties();
+		try {
+			final InputStream stream = new FileInputStream( file );
+			try {
+				properties.load( stream );
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to read matrix durations file [" + file.getAbsolutePath() + "]", e );
+		}
+
+		final Map<String,Long> durations = new HashMap<String, Long>();
+		for ( String key : properties.stringPropertyNames() ) {
+			try {
+				durations.put( key, Long.valueOf( properties.getProperty( key ).trim() ) );
+			}
+			catch (NumberFormatException ignore) {
+				// skip the malformed entry
+			}
+		}
+		return durations;
+	}
+
+	/**
+	 * Determine the test classes this planner's shard should execute for each profile.
+	 *
+	 * @param classNamesByProfile All candidate test classes, keyed by profile name
+	 *
+	 * @return The test classes assigned to this shard, keyed by profile name (every profile is present, possibly
+	 * with an empty set)
+	 */
+	public Map<String,Set<String>> plan(Map<String,? extends Collection<String>> classNamesByProfile) {
+		final List<Unit> units = new ArrayList<Unit>();
+		long knownTotal = 0;
+		int knownCount = 0;
+		for ( Map.Entry<String,? extends Collection<String>> entry : classNamesByProfile.entrySet() ) {
+			for ( String className : entry.getValue() ) {
+				final Unit unit = new Unit( entry.getKey(), className, durations.get( unitKey( entry.getKey(), className ) ) );
+				if ( unit.weight >= 0 ) {
+					knownTotal += unit.weight;
+					knownCount++;
+				}
+				units.add( unit );
+			}
+		}
+
+		final long defaultWeight = knownCount == 0 ? 1 : Math.max( 1, knownTotal / knownCount );
+		for ( Unit unit : units ) {
+			if ( unit.weight < 0 ) {
+				unit.weight = defaultWeight;
+			}
+		}
+
+		// longest first, ties broken by key so the order (and therefore the assignment) is deterministic
+		Collections.sort( units );
+
+		final PriorityQueue<Bin> bins = new PriorityQueue<Bin>();
+		for ( int i = 1; i <= shard.getCount(); i++ ) {
+			bins.add( new Bin( i ) );
+		}
+
+		final Map<String,Set<String>> assigned = new TreeMap<String, Set<String>>();
+		for ( String profileName : classNamesByProfile.keySet() ) {
+			assigned.put( profileName, new TreeSet<String>() );
+		}
+		for ( Unit unit : units ) {
+			final Bin bin = bins.poll();
+			bin.load += unit.weight;
+			bins.add( bin );
+			if ( bin.index == shard.getIndex() ) {
+				assigned.get( unit.profileName ).add( unit.className );
+			}
+		}
+		return assigned;
+	}
+
+	private static class Unit implements Comparable<Unit> {
+		private final String profileName;
+		private final String className;
+		private final String key;
+		private long weight;
+
+		private Unit(String profileName, String className, Long duration) {
+			this.profileName = profileName;
+			this.className = className;
+			this.key = unitKey( profileName, className );
+			this.weight = duration == null ? -1 : duration;
+		}
+
+		@Override
+		public int compareTo(Unit other) {
+			if ( weight != other.weight ) {
+				return weight > other.weight ? -1 : 1;
+			}
+			return key.compareTo( other.key );
+		}
+	}
+
+	private static class Bin implements Comparable<Bin> {
+		private final int index;
+		private long load;
+
+		private Bin(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public int compareTo(Bin other) {
+			if ( load != other.load ) {
+				return load < other.load ? -1 : 1;
+			}
+			return index - other.index;
+		}
+	}
+}
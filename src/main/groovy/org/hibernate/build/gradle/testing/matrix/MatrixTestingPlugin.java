@@ -2,26 +2,55 @@ package org.hibernate.build.gradle.testing.matrix;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToDoubleFunction;
 
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.execution.TaskExecutionGraph;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 import org.gradle.api.plugins.JavaPluginConvention;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.SourceSet;
+import org.gradle.api.tasks.StopExecutionException;
+import org.gradle.api.tasks.TaskProvider;
 import org.gradle.api.tasks.testing.Test;
 import org.gradle.api.tasks.testing.TestDescriptor;
+import org.gradle.api.tasks.testing.TestResult;
+import org.gradle.jvm.toolchain.JavaLanguageVersion;
+import org.gradle.jvm.toolchain.JavaToolchainService;
 
+import org.hibernate.build.gradle.testing.database.ConnectivityCheck;
 import org.hibernate.build.gradle.testing.database.DatabaseProfile;
 import org.hibernate.build.gradle.testing.database.DatabaseProfilePlugin;
+import org.hibernate.build.gradle.testing.database.JdbcConnector;
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocation;
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocationPool;
 import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocator;
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocatorDelegate;
+import org.hibernate.build.gradle.testing.matrix.metrics.MatrixMetricsService;
+import org.hibernate.build.gradle.testing.matrix.metrics.MatrixNodeMetrics;
+import org.hibernate.build.gradle.testing.matrix.metrics.MetricsWriter;
+import org.hibernate.build.gradle.testing.matrix.report.MatrixReportTask;
+import org.hibernate.build.gradle.util.BuildException;
+import org.hibernate.build.gradle.util.MatrixStateDirectory;
+import org.hibernate.build.gradle.util.SettingsHelper;
 
 import groovy.lang.Closure;
-import groovy.lang.Reference;
 import org.codehaus.groovy.runtime.DefaultGroovyMethods;
 
 import static org.gradle.api.plugins.JavaPlugin.TEST_RUNTIME_CLASSPATH_CONFIGURATION_NAME;
@@ -41,18 +70,96 @@ public class MatrixTestingPlugin implements Plugin<Project> {
 
     public static final String MATRIX_RUNTIME_CONFIG_NAME = "matrixRuntime";
     public static final String MATRIX_TASK_NAME = MATRIX;
+    public static final String MATRIX_REPORT_TASK_NAME = "matrixReport";
+    public static final String MATRIX_SUMMARY_TASK_NAME = "matrixSummary";
     public static final String PROJECT_TEST_TASK_NAME = "test";
+    /**
+     * Prefix of the tasks running a node's tests in a warm worker JVM kept between builds, see
+     * {@link WarmMatrixNodeTask}.
+     */
+    public static final String WARM_TASK_NAME_PREFIX = "matrixWarm";
+
+    /**
+     * Names a system setting for the maximum number of matrix nodes (across all projects) allowed to execute at
+     * once.  Defaults to Gradle's max worker count.  Only nodes of different projects execute at once, and only in
+     * a {@code --parallel} build.
+     */
+    public static final String MAX_CONCURRENT_NODES_KEY = "hibernate-matrix-max-concurrent-nodes";
+    /**
+     * Names a system setting limiting the number of test forks each matrix node uses.  By default each node uses
+     * its share of the available processors among the nodes able to run at once (see {@link MatrixNodeScheduler}).
+     * The value is capped so that the forks of all concurrently running nodes do not exceed the available processors.
+     */
+    public static final String NODE_FORKS_KEY = "hibernate-matrix-node-forks";
+    /**
+     * Names a system setting selecting the shard of the matrix work this build should execute, in
+     * {@code index/count} form (e.g. {@code 3/8}).  See {@link MatrixShardPlanner}.
+     */
+    public static final String SHARD_KEY = "hibernate-matrix-shard";
+    /**
+     * Names a system setting pointing to a properties file of recorded (profile, test class) durations used to
+     * balance the shards.  Every agent must use the same file for the shards to be disjoint.
+     */
+    public static final String SHARD_DURATIONS_KEY = "hibernate-matrix-shard-durations";
+
+    /**
+     * Names a system setting enabling adaptive heap sizing : the heap of each node's forks is sized from the peak
+     * usage recorded (through GC logging) in its previous runs.  Defaults to {@code false}.  See {@link HeapHistory}.
+     */
+    public static final String ADAPTIVE_HEAP_KEY = "hibernate-matrix-adaptive-heap";
+
+    /**
+     * Names a system setting controlling whether the duration of each test class is recorded per profile, see
+     * {@link TestDurationHistory}.  Defaults to {@code true}.
+     */
+    public static final String DURATION_HISTORY_KEY = "hibernate-matrix-duration-history";
+
+    /**
+     * Names a system setting enabling the incremental matrix : each node only runs the test classes whose
+     * dependencies changed since they last passed against its profile, plus those which failed against it last time.
+     * Defaults to {@code false}.  See {@link IncrementalTestSelector}.
+     */
+    public static final String INCREMENTAL_KEY = "hibernate-matrix-incremental";
+    /**
+     * Names a system setting forcing an incremental matrix to run all test classes (still recording the outcome for
+     * later incremental runs).  Defaults to {@code false}.
+     */
+    public static final String INCREMENTAL_FULL_KEY = "hibernate-matrix-incremental-full";
+
+    /**
+     * Names a system setting controlling whether the execution metrics of the matrix nodes (allocation, reset, fork
+     * startup, test class and node durations) are collected.  Defaults to {@code true}.  Each node writes
+     * {@code metrics.json} and {@code metrics.prom} (OpenMetrics) to its output directory, and the totals of the build
+     * are written to {@code build/matrix-metrics} of the root project.
+     */
+    public static final String METRICS_KEY = "hibernate-matrix-metrics";
+
+    private static final String HEAP_HISTORY_FILE = "heap-history.properties";
+    private static final String DURATION_HISTORY_FILE = "test-durations.properties";
 
     private Project project;
     private SourceSet testSourceSet;
     private Configuration matrixRuntimeConfig;
-    private Task matrixTask;
+    private TaskProvider<Task> matrixTask;
+    private Provider<MatrixNodeScheduler> nodeScheduler;
+    private Provider<MatrixMetricsService> metricsService;
+    private List<MatrixNode> matrixNodes;
+    private MatrixShard shard;
+    private HeapHistory heapHistory;
+    private TestDurationHistory durationHistory;
+    private boolean incremental;
+    private ConnectivityCheck.Mode preflightMode;
+    private Map<String,Set<String>> shardPlan;
+    // the nodes whose profile was applied to their node task, see applyProfile
+    private final Set<String> profileAppliedNodes = ConcurrentHashMap.newKeySet();
 
     public void apply(Project project) {
         this.project = project;
 
         project.getRootProject().getPlugins().apply( DatabaseProfilePlugin.class );
-        List<MatrixNode> matrixNodes = locateMatrixNodes();
+        // still exposed for build scripts of earlier versions, for one more release
+        DatabaseAllocatorDelegate.expose( project );
+        matrixNodes = locateMatrixNodes();
         if ( matrixNodes.isEmpty() ) {
             // no db profiles defined
             return;
@@ -65,12 +172,84 @@ public class MatrixTestingPlugin implements Plugin<Project> {
                 .getSourceSets()
                 .getByName( SourceSet.TEST_SOURCE_SET_NAME );
 
-        matrixTask = prepareGroupingTask();
+        nodeScheduler = prepareNodeScheduler();
+        if ( SettingsHelper.getBoolean( METRICS_KEY, true ) ) {
+            metricsService = prepareMetricsService();
+        }
+        final String shardSpec = SettingsHelper.getString( SHARD_KEY, null );
+        if ( shardSpec != null ) {
+            shard = MatrixShard.parse( shardSpec );
+        }
+        if ( SettingsHelper.getBoolean( ADAPTIVE_HEAP_KEY, false ) ) {
+            heapHistory = new HeapHistory( MatrixStateDirectory.resolve( project, HEAP_HISTORY_FILE ) );
+        }
+        if ( SettingsHelper.getBoolean( DURATION_HISTORY_KEY, true ) ) {
+            durationHistory = new TestDurationHistory( MatrixStateDirectory.resolve( project, DURATION_HISTORY_FILE ) );
+        }
+        incremental = SettingsHelper.getBoolean( INCREMENTAL_KEY, false );
+        preflightMode = ConnectivityCheck.Mode.fromSettings();
+        // tasks are only registered here; those not requested by the build are never realized (configured)
+        final List<TaskProvider<MatrixNodeTest>> matrixNodeTasks = new ArrayList<>();
+        // nodes sharing a database profile (along other axes) share its allocation, so they run one after the other
+        final Map<String,List<TaskProvider<MatrixNodeTest>>> nodeTasksByProfile = new HashMap<>();
         for ( MatrixNode matrixNode : matrixNodes ) {
-            Task matrixNodeTask = prepareNodeTask( matrixNode );
-            matrixTask.dependsOn( matrixNodeTask );
+            final TaskProvider<MatrixNodeTest> matrixNodeTask = prepareNodeTask( matrixNode );
+            final List<TaskProvider<MatrixNodeTest>> sameProfileTasks = nodeTasksByProfile.computeIfAbsent(
+                    matrixNode.getDatabaseProfile().getName(),
+                    profileName -> new ArrayList<>()
+            );
+            if ( !sameProfileTasks.isEmpty() ) {
+                final List<TaskProvider<MatrixNodeTest>> previousTasks = new ArrayList<>( sameProfileTasks );
+                matrixNodeTask.configure( task -> task.mustRunAfter( previousTasks ) );
+            }
+            sameProfileTasks.add( matrixNodeTask );
+            matrixNodeTasks.add( matrixNodeTask );
+            prepareWarmTask( matrixNode, matrixNodeTask );
         }
+        matrixTask = prepareGroupingTask( matrixNodes, matrixNodeTasks );
+        prepareSummaryTask( matrixNodes, matrixNodeTasks );
+        prepareReportTask( matrixNodes, matrixNodeTasks );
+    }
+
+    /**
+     * Register (once per build) the service handing out the fork budget of the matrix nodes.
+     */
+    private Provider<MatrixNodeScheduler> prepareNodeScheduler() {
+        final int maxWorkerCount = project.getGradle().getStartParameter().getMaxWorkerCount();
+        final int maxConcurrentNodes = Math.max( 1, SettingsHelper.getInt( MAX_CONCURRENT_NODES_KEY, maxWorkerCount ) );
+        // 0 : no limit requested
+        final int requestedForks = SettingsHelper.getInt( NODE_FORKS_KEY, 0 );
 
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                MatrixNodeScheduler.SERVICE_NAME,
+                MatrixNodeScheduler.class,
+                spec -> {
+                    spec.getMaxParallelUsages().set( maxConcurrentNodes );
+                    spec.getParameters().getMaxConcurrentNodes().set( maxConcurrentNodes );
+                    if ( requestedForks > 0 ) {
+                        spec.getParameters().getRequestedForks().set( requestedForks );
+                    }
+                    // Gradle does not start more test forks than it has workers
+                    spec.getParameters().getAvailableProcessors().set(
+                            Math.min( maxWorkerCount, Runtime.getRuntime().availableProcessors() )
+                    );
+                    spec.getParameters().getParallel().set(
+                            project.getGradle().getStartParameter().isParallelProjectExecutionEnabled()
+                    );
+                }
+        );
+    }
+
+    /**
+     * Register (once per build) the service collecting the execution metrics of the matrix nodes.
+     */
+    private Provider<MatrixMetricsService> prepareMetricsService() {
+        final File outputDirectory = new File( project.getRootProject().getBuildDir(), "matrix-metrics" );
+        return project.getGradle().getSharedServices().registerIfAbsent(
+                MatrixMetricsService.SERVICE_NAME,
+                MatrixMetricsService.class,
+                spec -> spec.getParameters().getOutputDirectory().set( outputDirectory )
+        );
     }
 
     private List<MatrixNode> locateMatrixNodes() {
@@ -79,16 +258,115 @@ public class MatrixTestingPlugin implements Plugin<Project> {
                 .getPlugins()
                 .getAt( DatabaseProfilePlugin.class )
                 .getDatabaseProfiles();
-        if ( profiles != null ) {
+        if ( profiles == null ) {
+            return matrixNodes;
+        }
+
+        final List<MatrixAxis> axes = MatrixAxis.fromSettings();
+        if ( axes.isEmpty() ) {
 			for ( DatabaseProfile profile : profiles ) {
 				matrixNodes.add( new MatrixNode( project, profile ) );
             }
+            return matrixNodes;
+        }
 
-		}
+        // the database profiles are the first axis
+        final List<DatabaseProfile> profileList = new ArrayList<>();
+        profiles.forEach( profileList::add );
+        final int[] axisSizes = new int[axes.size() + 1];
+        axisSizes[0] = profileList.size();
+        for ( int i = 0; i < axes.size(); i++ ) {
+            axisSizes[i + 1] = axes.get( i ).getValues().size();
+        }
+
+        final MatrixPlanner.Mode planMode = MatrixPlanner.Mode.fromSettings();
+        // shards are planned by each agent on its own, so they must all plan the same nodes : from the shared shard
+        // durations (else unweighted), rather than from the agent's own history and kept plan
+        final boolean sharded = SettingsHelper.getString( SHARD_KEY, null ) != null;
+        final Map<String,Long> nodeCosts;
+        if ( planMode != MatrixPlanner.Mode.PAIRWISE ) {
+            nodeCosts = Collections.emptyMap();
+        }
+        else if ( sharded ) {
+            final String durationsFile = SettingsHelper.getString( SHARD_DURATIONS_KEY, null );
+            nodeCosts = durationsFile == null ? Collections.emptyMap() : recordedNodeCosts( new File( durationsFile ) );
+        }
+        else {
+            nodeCosts = recordedNodeCosts( MatrixStateDirectory.resolve( project, DURATION_HISTORY_FILE ) );
+        }
+        final List<List<String>> axisValueNames = new ArrayList<>();
+        final List<String> profileNames = new ArrayList<>();
+        profileList.forEach( profile -> profileNames.add( profile.getName() ) );
+        axisValueNames.add( profileNames );
+        for ( MatrixAxis axis : axes ) {
+            final List<String> valueNames = new ArrayList<>();
+            axis.getValues().forEach( value -> valueNames.add( value.getName() ) );
+            axisValueNames.add( valueNames );
+        }
+        final ToDoubleFunction<int[]> recordedCost = combination -> {
+            final Long cost = nodeCosts.get( nodeName( profileList, axes, combination ) );
+            return cost == null ? Double.NaN : cost;
+        };
+        final List<int[]> plan = sharded
+                ? new MatrixPlanner( planMode ).plan( axisSizes, recordedCost )
+                : new MatrixPlanner( planMode ).plan(
+                        axisSizes,
+                        recordedCost,
+                        MatrixStateDirectory.resolve( project, "plan/" + projectStateName() + ".properties" ),
+                        MatrixPlanner.signature( axisValueNames )
+                );
+        final Map<String,String> combinationsByNodeName = new HashMap<>();
+        for ( int[] combination : plan ) {
+            final MatrixNode node = new MatrixNode( project, profileList.get( combination[0] ), axisValues( axes, combination ) );
+            final String description = profileList.get( combination[0] ).getName() + " " + axisValues( axes, combination );
+            final String clashing = combinationsByNodeName.put( node.getName(), description );
+            if ( clashing != null ) {
+                throw new BuildException(
+                        "Matrix combinations " + clashing + " and " + description + " both map to the node name ["
+                                + node.getName() + "]; rename a profile or an axis value"
+                );
+            }
+            matrixNodes.add( node );
+        }
+        log.info(
+                "Matrix of {} planned {} : {} of {} combinations",
+                project.getPath(),
+                planMode.name().toLowerCase( Locale.ROOT ),
+                plan.size(),
+                MatrixPlanner.product( axisSizes ).size()
+        );
 
         return matrixNodes;
     }
 
+    private static List<MatrixAxis.Value> axisValues(List<MatrixAxis> axes, int[] combination) {
+        final List<MatrixAxis.Value> values = new ArrayList<>();
+        for ( int i = 0; i < axes.size(); i++ ) {
+            values.add( axes.get( i ).getValues().get( combination[i + 1] ) );
+        }
+        return values;
+    }
+
+    private static String nodeName(List<DatabaseProfile> profiles, List<MatrixAxis> axes, int[] combination) {
+        return MatrixNode.nodeName( profiles.get( combination[0] ).getName(), axisValues( axes, combination ) );
+    }
+
+    /**
+     * The recorded cost (total test class duration, in millis) of each node, from a test duration history (or shard
+     * durations) file.
+     */
+    private static Map<String,Long> recordedNodeCosts(File durationsFile) {
+        final Map<String,Long> nodeCosts = new HashMap<>();
+        final Map<String,Long> durations = new TestDurationHistory( durationsFile ).load();
+        for ( Map.Entry<String,Long> entry : durations.entrySet() ) {
+            final int nodeNameEnd = entry.getKey().indexOf( '/' );
+            if ( nodeNameEnd > 0 ) {
+                nodeCosts.merge( entry.getKey().substring( 0, nodeNameEnd ), entry.getValue(), Long::sum );
+            }
+        }
+        return nodeCosts;
+    }
+
     /**
      * Prepare runtime configuration for matrix source set.
      */
@@ -99,50 +377,354 @@ public class MatrixTestingPlugin implements Plugin<Project> {
                 .extendsFrom( project.getConfigurations().getByName( TEST_RUNTIME_CLASSPATH_CONFIGURATION_NAME ) );
     }
 
-    private Task prepareGroupingTask() {
-		Task matrixTask = project.getTasks().create( MATRIX_TASK_NAME );
-        matrixTask.setGroup( MATRIX );
-        matrixTask.setDescription( "Runs the unit tests on Database Matrix" );
-		return matrixTask;
+    private TaskProvider<Task> prepareGroupingTask(
+            final List<MatrixNode> matrixNodes,
+            final List<TaskProvider<MatrixNodeTest>> matrixNodeTasks) {
+		return project.getTasks().register( MATRIX_TASK_NAME, matrixTask -> {
+            matrixTask.setGroup( MATRIX );
+            matrixTask.setDescription( "Runs the unit tests on Database Matrix" );
+            matrixTask.dependsOn( matrixNodeTasks );
+        } );
+    }
+
+    /**
+     * Register the task summarizing the results of the nodes which were scheduled.  It finalizes every node task
+     * (rather than being an action of the grouping task, which does not run once a node failed), so that the summary
+     * is also printed when nodes failed or were aborted.
+     */
+    private void prepareSummaryTask(
+            final List<MatrixNode> matrixNodes,
+            final List<TaskProvider<MatrixNodeTest>> matrixNodeTasks) {
+        final TaskProvider<Task> summaryTask = project.getTasks().register( MATRIX_SUMMARY_TASK_NAME, task -> {
+            task.setGroup( MATRIX );
+            task.setDescription( "Summarizes the results of the matrix nodes run by the build" );
+            task.mustRunAfter( matrixNodeTasks );
+            task.doLast( new Closure<Object>( MatrixTestingPlugin.this, MatrixTestingPlugin.this ) {
+                public void doCall(Object it) {
+                    final TaskExecutionGraph graph = project.getGradle().getTaskGraph();
+                    log.lifecycle( "Matrix results for {} :", project.getPath() );
+                    for ( int i = 0; i < matrixNodes.size(); i++ ) {
+                        // by path, as the task of a node which was not scheduled is not to be realized
+                        if ( graph.hasTask( project.absoluteProjectPath( matrixNodeTasks.get( i ).getName() ) ) ) {
+                            final MatrixNode matrixNode = matrixNodes.get( i );
+                            log.lifecycle( "    {} : {}", matrixNode.getName(), describeStatus( matrixNode ) );
+                        }
+                    }
+                }
+
+                public void doCall() {
+                    doCall( null );
+                }
+
+            } );
+        } );
+        for ( TaskProvider<MatrixNodeTest> matrixNodeTask : matrixNodeTasks ) {
+            matrixNodeTask.configure( task -> task.finalizedBy( summaryTask ) );
+        }
+    }
+
+    private TaskProvider<MatrixNodeTest> prepareNodeTask(final MatrixNode node) {
+        String nodeTaskName = nodeTaskName( node );
+        log.debug( "Registering Matrix Testing task " + nodeTaskName );
+
+        return project.getTasks().register(
+                nodeTaskName,
+                MatrixNodeTest.class,
+                nodeTask -> configureNodeTask( node, nodeTask )
+        );
     }
 
-    private Task prepareNodeTask(final MatrixNode node) {
-        final Test testTask = (Test) project.getTasks().getByName( PROJECT_TEST_TASK_NAME );
+    /**
+     * Register the task running the node's tests in a warm worker JVM.  It reuses the node task's configuration,
+     * without running the node task itself.
+     */
+    private void prepareWarmTask(final MatrixNode node, final TaskProvider<MatrixNodeTest> nodeTaskProvider) {
+        project.getTasks().register(
+                WARM_TASK_NAME_PREFIX + "_" + node.getName(),
+                WarmMatrixNodeTask.class,
+                warmTask -> {
+                    // realized now, rather than while the task graph listeners are notified
+                    final MatrixNodeTest nodeTask = nodeTaskProvider.get();
+                    warmTask.setGroup( MATRIX );
+                    warmTask.setDescription(
+                            "Runs the tests against " + node.getName() + " in a worker JVM kept warm between builds"
+                    );
+                    warmTask.getNodeTask().set( nodeTask );
+                    warmTask.getDatabaseProfile().set( project.provider( node::getDatabaseProfile ) );
+                    warmTask.getAllocator().set( DatabaseAllocator.registerService( project ) );
+                    // whatever builds the classpath the warm run loads, not only the test classes
+                    warmTask.dependsOn( nodeTask.getClasspath() );
+                    warmTask.getMinHeapSize().set( project.provider( () -> node.getJvmSettings().getDeclaredMinHeapSize() ) );
+                    warmTask.getMaxHeapSize().set( project.provider( () -> node.getJvmSettings().getDeclaredMaxHeapSize() ) );
 
-        String nodeTaskName = MATRIX_TASK_NAME + "_" + node.getName();
-        log.debug( "Adding Matrix Testing task " + nodeTaskName );
+                    // the warm run uses the node task's configuration, which the node task itself only completes
+                    // as it executes
+                    warmTask.doFirst( task -> applyProfile( node, nodeTask ) );
+
+                    project.getGradle().getTaskGraph().whenReady( graph -> {
+                        if ( graph.hasTask( warmTask ) ) {
+                            final DatabaseAllocator allocator = DatabaseAllocator.locate( project );
+                            // the allocation is handed over to the pool once released, and so held between builds
+                            DatabaseAllocationPool.registerService( project ).get().keepAtLeast( 1 );
+                            allocator.retain( node.getDatabaseProfile() );
+                            graph.afterTask( task -> {
+                                if ( task == warmTask ) {
+                                    allocator.releaseReference( node.getDatabaseProfile().getName() );
+                                }
+                            } );
+                        }
+                    } );
+                }
+        );
+    }
+
+    private void prepareReportTask(
+            final List<MatrixNode> matrixNodes,
+            final List<TaskProvider<MatrixNodeTest>> matrixNodeTasks) {
+        final TaskProvider<MatrixReportTask> reportTask = project.getTasks().register(
+                MATRIX_REPORT_TASK_NAME,
+                MatrixReportTask.class,
+                task -> {
+                    task.setGroup( MATRIX );
+                    task.setDescription( "Aggregates the matrix node results into a cross-database timing report" );
+                    for ( MatrixNode matrixNode : matrixNodes ) {
+                        task.getResultsDirectories().from( matrixNode.getResultsDirectory() );
+                    }
+                    task.getRankingSize().convention( 50 );
+                    task.getOutputDirectory().convention(
+                            project.getLayout().getBuildDirectory().dir( "matrix/report" )
+                    );
+                    task.mustRunAfter( matrixNodeTasks );
+                }
+        );
+        matrixTask.configure( task -> task.finalizedBy( reportTask ) );
+    }
+
+    private static String nodeTaskName(MatrixNode node) {
+        return MATRIX_TASK_NAME + "_" + node.getName();
+    }
+
+    /**
+     * Describe the node's status, including nodes which did not execute because they were up-to-date or taken from
+     * the build cache.
+     */
+    private String describeStatus(MatrixNode node) {
+        if ( !node.hasResult() && node.getInfrastructureFailure() == null ) {
+            final Task nodeTask = project.getTasks().findByName( nodeTaskName( node ) );
+            if ( nodeTask != null && nodeTask.getState().getFailure() != null ) {
+                return "FAILED : " + nodeTask.getState().getFailure().getMessage();
+            }
+            if ( nodeTask != null && nodeTask.getState().getSkipped() && nodeTask.getState().getSkipMessage() != null ) {
+                return nodeTask.getState().getSkipMessage();
+            }
+        }
+        return node.describeStatus();
+    }
+
+    private static Map<String,String> stringValues(Map<String,Object> values) {
+        final Map<String,String> strings = new TreeMap<>();
+        for ( Map.Entry<String,Object> entry : values.entrySet() ) {
+            strings.put( entry.getKey(), String.valueOf( entry.getValue() ) );
+        }
+        return strings;
+    }
+
+    /**
+     * Configure a node task; only called if the task is realized.
+     */
+    private void configureNodeTask(final MatrixNode node, final MatrixNodeTest nodeTask) {
+        final Test testTask = project.getTasks().named( PROJECT_TEST_TASK_NAME, Test.class ).get();
+        final IncrementalTestSelector selector = incremental
+                ? new IncrementalTestSelector( MatrixStateDirectory.resolve( project, incrementalStatePath( node ) ) )
+                : null;
+        final Set<String> selectedClassNames = ConcurrentHashMap.newKeySet();
+        final Set<String> failedClassNames = ConcurrentHashMap.newKeySet();
+        final Set<String> finishedClassNames = ConcurrentHashMap.newKeySet();
 
-        final Test nodeTask = project.getTasks().create( nodeTaskName, Test.class );
         nodeTask.setGroup( MATRIX );
         nodeTask.setDescription( "Runs the tests against " + node.getName() );
 
-        nodeTask.setClasspath( node.getDatabaseProfile()
-                .getTestingRuntimeConfiguration()
+        // resolved lazily so that the profile is only built if the task is part of the build : the profile is
+        // materialized (its matrix.gradle applied) when the task graph is built and Gradle resolves the dependencies
+        // of the classpath, still at configuration time
+        nodeTask.setClasspath( project.files( (Callable<Object>) () -> node.getDatabaseProfile().getTestingRuntimeConfiguration() )
                 .plus( testSourceSet.getRuntimeClasspath() ) );
         nodeTask.setTestClassesDirs( testSourceSet.getOutput().getClassesDirs() );
         nodeTask.setIgnoreFailures( true );
+        if ( node.getJavaVersion() != null ) {
+            final JavaToolchainService toolchains = project.getExtensions().getByType( JavaToolchainService.class );
+            nodeTask.getJavaLauncher().set(
+                    toolchains.launcherFor(
+                            spec -> spec.getLanguageVersion().set( JavaLanguageVersion.of( node.getJavaVersion() ) )
+                    )
+            );
+        }
         nodeTask.setWorkingDir( node.getBaseOutputDirectory() );
         nodeTask.getReports().getHtml().setDestination( new File( node.getBaseOutputDirectory(), "reports" ) );
-        nodeTask.getReports().getJunitXml().setDestination( new File( node.getBaseOutputDirectory(), "results" ) );
+        nodeTask.getReports().getJunitXml().setDestination( node.getResultsDirectory() );
 
         nodeTask.dependsOn( testSourceSet.getClassesTaskName() );
 
-        nodeTask.getSystemProperties().putAll( node.getDatabaseProfile().getHibernateProperties() );
-        // allow the project's test task systemProperties (typically includes System.properties)
-		// to overwrite the databaseProfile's
+        // Model the profile precisely (rather than only through the system properties and classpath it ends up in),
+        // along with what decides the test classes to run, so that unchanged nodes can come from the build cache.
+        // Everything is lazy, so only the profiles of scheduled nodes get built.
+        nodeTask.getDatabaseProfileName().set( node.getDatabaseProfile().getName() );
+        nodeTask.getDatabaseProfileProperties().putAll(
+                project.provider( () -> stringValues( node.getDatabaseProfile().getHibernateProperties() ) )
+        );
+        nodeTask.getJdbcArtifacts().from(
+                (Callable<Object>) () -> node.getDatabaseProfile().getTestingRuntimeConfiguration()
+        );
+        nodeTask.getProfileDefinitionFiles().from(
+                (Callable<Object>) () -> project.files(
+                        new File( node.getDatabaseProfile().getDirectory(), "matrix.gradle" ),
+                        new File( node.getDatabaseProfile().getDirectory(), NodeJvmSettings.FILE_NAME )
+                ).filter( File::isFile )
+        );
+        if ( shard != null ) {
+            nodeTask.getShard().set( shard.toString() );
+            final String durationsFile = SettingsHelper.getString( SHARD_DURATIONS_KEY, null );
+            if ( durationsFile != null ) {
+                nodeTask.getShardDurations().from( durationsFile );
+            }
+        }
+        if ( incremental ) {
+            // the selected test classes depend on local state, so neither the outputs nor a cached result can be
+            // trusted to reflect the node's inputs
+            nodeTask.getOutputs().upToDateWhen( task -> false );
+            nodeTask.getOutputs().cacheIf( "the incremental matrix is enabled", task -> false );
+        }
+
+        // the databaseProfile's properties are added underneath these once the task executes, see applyProfile.
+        // This allows the project's test task systemProperties (typically includes System.properties) to overwrite
+        // the node's axis values, and both to overwrite the databaseProfile's
+        nodeTask.systemProperties( node.getAxisSystemProperties() );
 		DefaultGroovyMethods.invokeMethod(
 		        nodeTask.getSystemProperties(),
                 "putAll",
                 new Object[] { (testTask).getSystemProperties() } );
-//        nodeTask.jvmArgs = ['-Xms1024M', '-Xmx1024M', '-XX:MaxPermSize=512M', '-Xss4096k', '-Xverify:none', '-XX:+UseFastAccessorMethods', '-XX:+DisableExplicitGC']
-        nodeTask.setJvmArgs( new ArrayList<>( Arrays.asList( "-Xms1024M", "-Xmx1024M" ) ) );//, '-XX:MaxPermSize=512M', '-Xss4096k', '-Xverify:none', '-XX:+UseFastAccessorMethods', '-XX:+DisableExplicitGC']
-        nodeTask.setMaxHeapSize( "1024M" );
+
+        nodeTask.getScheduler().set( nodeScheduler );
+        nodeTask.getAllocator().set( DatabaseAllocator.registerService( project ) );
+        if ( metricsService != null ) {
+            nodeTask.getMetrics().set( metricsService );
+        }
+        nodeTask.setMaxParallelForks( 1 );
+        final AtomicReference<MatrixNodeMetrics> metrics = new AtomicReference<>();
+        final AtomicLong nodeStartNanos = new AtomicLong();
+        final AtomicLong testsStartNanos = new AtomicLong();
+
+        // Only the profile of a scheduled node gets built (matrix.gradle evaluated, hibernate.properties read, etc),
+        // through the classpath above.  Its database allocation is started in the background once the node starts
+        // executing (see below), or right away when pre-allocating speculatively.
+        // The node holds a reference to the allocation until it has finished (even if failed, skipped or taken from
+        // the cache), so that the allocation is released once no scheduled node of any project needs it anymore.
+        project.getGradle().getTaskGraph().whenReady( graph -> {
+            if ( graph.hasTask( nodeTask ) ) {
+                final DatabaseAllocator allocator = DatabaseAllocator.locate( project );
+                allocator.retain( node.getDatabaseProfile() );
+                if ( DatabaseAllocator.isSpeculativePreallocation() ) {
+                    allocator.preallocate( project, node.getDatabaseProfile() );
+                }
+                if ( preflightMode != ConnectivityCheck.Mode.OFF ) {
+                    allocator.preflight(
+                            node.getDatabaseProfile(),
+                            SettingsHelper.getInt( ConnectivityCheck.PREFLIGHT_TIMEOUT_KEY, 10 )
+                    );
+                }
+                nodeTask.getScheduler().get().nodeScheduled( project.getPath() );
+                // run whatever the outcome of the node, unlike its own actions
+                graph.afterTask( task -> {
+                    if ( task == nodeTask ) {
+                        allocator.releaseReference( node.getDatabaseProfile().getName() );
+                        nodeTask.getScheduler().get().nodeFinished( nodeTask.getPath(), describeStatus( node ) );
+                    }
+                } );
+            }
+        } );
+
+        // Skip the node up front when the pre-flight check found its database unreachable (a skipped node is
+        // neither up-to-date nor cached), or fail it as its first action
+        nodeTask.onlyIf( task -> {
+            final String unreachable = preflightFailure( node );
+            if ( unreachable == null || preflightMode == ConnectivityCheck.Mode.FAIL ) {
+                return true;
+            }
+            node.recordInfrastructureFailure( unreachable );
+            log.warn( "Skipping {}, its database is unreachable : {}", nodeTask.getPath(), unreachable );
+            return false;
+        } );
 
         nodeTask.doFirst( new Closure<Object>( this, this ) {
             public void doCall(Object it) {
-                DatabaseAllocator.locate( project )
-                        .getAllocation( node.getDatabaseProfile() )
-                        .prepareForExecution( nodeTask );
+                final String unreachable = preflightFailure( node );
+                if ( unreachable != null ) {
+                    node.recordInfrastructureFailure( unreachable );
+                    throw new BuildException( "Database of " + nodeTask.getPath() + " is unreachable : " + unreachable );
+                }
+                nodeStartNanos.set( System.nanoTime() );
+                applyProfile( node, nodeTask );
+                if ( nodeTask.getMetrics().isPresent() ) {
+                    metrics.set( nodeTask.getMetrics().get().startNode( nodeTask.getPath(), node.getName() ) );
+                }
+                node.prepareBaseOutputDirectory();
+                Set<String> classNames = null;
+                if ( shard != null ) {
+                    classNames = shardPlan().get( node.getName() );
+                    log.lifecycle( "{} test classes for {} in matrix shard {}", classNames.size(), node.getName(), shard );
+                }
+                if ( selector != null ) {
+                    final Set<String> candidates = classNames != null
+                            ? classNames
+                            : TestClassScanner.scan( testSourceSet.getOutput().getClassesDirs() );
+                    classNames = selector.select(
+                            nodeTask.getClasspath(),
+                            candidates,
+                            profileFingerprint( node ),
+                            SettingsHelper.getBoolean( INCREMENTAL_FULL_KEY, false )
+                    );
+                    selectedClassNames.addAll( classNames );
+                    log.lifecycle(
+                            "{} of {} test classes for {} selected by the incremental matrix",
+                            classNames.size(),
+                            candidates.size(),
+                            node.getName()
+                    );
+                }
+                if ( classNames != null ) {
+                    applyTestClassSelection( node, nodeTask, classNames );
+                }
+
+                // past the up-to-date and cache checks, and with test classes left to run once selected
+                final long allocationStartNanos = System.nanoTime();
+                DatabaseAllocator.locate( project ).preallocate( project, node.getDatabaseProfile() );
+                final DatabaseAllocation allocation = DatabaseAllocator.locate( project )
+                        .getAllocation( project, node.getDatabaseProfile() );
+                recordSince( metrics, MatrixNodeMetrics.Phase.ALLOCATION, allocationStartNanos );
+                final long prepareStartNanos = System.nanoTime();
+                allocation.prepareForExecution( nodeTask );
+                recordSince( metrics, MatrixNodeMetrics.Phase.PREPARE, prepareStartNanos );
+                checkAllocatedDatabase( node, nodeTask, allocation );
+
+                final MatrixNodeScheduler scheduler = nodeTask.getScheduler().get();
+                if ( isForkIsolated( allocation, node.getDatabaseProfile() ) ) {
+                    final int forks = node.getJvmSettings().limitForks( scheduler.getForksPerNode() );
+                    nodeTask.setMaxParallelForks(
+                            durationHistory == null ? forks : suggestForks( node, forks, classNames )
+                    );
+                }
+                else if ( scheduler.getForksPerNode() > 1 ) {
+                    log.info(
+                            "Database allocation for {} does not isolate test forks; running with a single fork",
+                            node.getName()
+                    );
+                }
+                if ( heapHistory != null ) {
+                    HeapHistory.clear( node.getGcLogDirectory() );
+                    nodeTask.jvmArgs( HeapHistory.gcLogArgument( node.getGcLogDirectory(), nodeTask.getJavaVersion() ) );
+                }
+                scheduler.nodeStarted( nodeTask.getPath() );
+                testsStartNanos.set( System.nanoTime() );
             }
 
             public void doCall() {
@@ -151,23 +733,371 @@ public class MatrixTestingPlugin implements Plugin<Project> {
 
         } );
 
+        // When a test worker (fork) starts, give fork-isolated allocations the chance to create its database.
+        nodeTask.beforeSuite( new Closure<Object>( this, this ) {
+            public void doCall(Object it) {
+                final TestDescriptor suite = (TestDescriptor) it;
+                if ( TestWorkers.isWorkerSuite( suite ) ) {
+                    recordSince( metrics, MatrixNodeMetrics.Phase.FORK_STARTUP, testsStartNanos.get() );
+                    DatabaseAllocator.locate( project )
+                            .getAllocation( project, node.getDatabaseProfile() )
+                            .prepareFork( TestWorkers.workerId( suite ) );
+                }
+            }
+
+        } );
+
+        // Abort the node once its database looks gone, rather than have every remaining test class fail slowly (see
+        // NodeCircuitBreaker).  Connection errors are collected per test class as its tests fail.
+        final NodeCircuitBreaker circuitBreaker = new NodeCircuitBreaker(
+                SettingsHelper.getInt( NodeCircuitBreaker.CIRCUIT_BREAKER_KEY, 5 )
+        );
+        final Set<String> connectionFailedClassNames = ConcurrentHashMap.newKeySet();
+        nodeTask.afterTest( new Closure<Object>( this, this ) {
+            public void doCall(TestDescriptor test, TestResult result) {
+                if ( circuitBreaker.isEnabled()
+                        && result.getResultType() == TestResult.ResultType.FAILURE
+                        && test.getClassName() != null
+                        && hasConnectionFailure( result ) ) {
+                    connectionFailedClassNames.add( test.getClassName() );
+                }
+            }
+
+        } );
+
         // After each test *class* (not method), call afterTestClass.  For most/all DatabaseAllocations, this should
-        // erase the entire database.
-        final Reference<String> testClassName = new Reference<>( "" );
+        // erase the entire database (of the fork running the class).  Forks run classes concurrently, so the
+        // current class is tracked per worker.
+        final Map<String,String> testClassNameByWorker = new ConcurrentHashMap<>();
         nodeTask.beforeTest( new Closure<Object>( this, this ) {
             public void doCall(Object it) {
                 // Unfortunately, have to do it this way.  Our only options are afterTest (after each method) and
                 // afterTestSuite.
                 final TestDescriptor testDescriptor = (TestDescriptor) it;
-                if ( ! testClassName.get().equals( testDescriptor.getClassName() ) ) {
-                    testClassName.set( testDescriptor.getClassName() );
-                    DatabaseAllocator.locate( project ).getAllocation( node.getDatabaseProfile() ).beforeTestClass();
+                final String workerId = TestWorkers.workerId( testDescriptor );
+                final String previousClassName = testClassNameByWorker.put(
+                        workerId == null ? "" : workerId,
+                        testDescriptor.getClassName()
+                );
+                if ( ! testDescriptor.getClassName().equals( previousClassName ) ) {
+                    final String tripReason = circuitBreaker.getTripReason();
+                    if ( tripReason != null ) {
+                        node.recordInfrastructureFailure( tripReason );
+                        throw new InfrastructureFailureException( nodeTask.getPath(), tripReason );
+                    }
+
+                    final long resetStartNanos = System.nanoTime();
+                    final DatabaseAllocation allocation = DatabaseAllocator.locate( project )
+                            .getAllocation( project, node.getDatabaseProfile() );
+                    try {
+                        if ( workerId == null ) {
+                            allocation.beforeTestClass();
+                        }
+                        else {
+                            allocation.beforeTestClass( workerId );
+                        }
+                    }
+                    catch (RuntimeException e) {
+                        if ( !circuitBreaker.isEnabled() ) {
+                            throw e;
+                        }
+                        final String reason = "resetting the database before " + testDescriptor.getClassName()
+                                + " failed : " + e.getMessage();
+                        circuitBreaker.trip( reason );
+                        node.recordInfrastructureFailure( reason );
+                        throw new InfrastructureFailureException( nodeTask.getPath(), reason, e );
+                    }
+                    recordSince( metrics, MatrixNodeMetrics.Phase.RESET, resetStartNanos );
                 }
 
             }
 
         } );
 
-        return nodeTask;
+        // Record how long each test class took, for the duration history
+        final Map<String,Long> classDurations = new ConcurrentHashMap<>();
+        nodeTask.afterSuite( new Closure<Object>( this, this ) {
+            public void doCall(TestDescriptor suite, TestResult result) {
+                if ( suite.getParent() == null ) {
+                    node.recordResult( result );
+                }
+                else if ( TestWorkers.isWorkerSuite( suite ) ) {
+                    DatabaseAllocator.locate( project )
+                            .getAllocation( project, node.getDatabaseProfile() )
+                            .forkFinished( TestWorkers.workerId( suite ) );
+                }
+                else if ( suite.getClassName() != null ) {
+                    if ( metrics.get() != null ) {
+                        metrics.get().record(
+                                MatrixNodeMetrics.Phase.TEST_CLASS,
+                                result.getEndTime() - result.getStartTime()
+                        );
+                    }
+                    if ( durationHistory != null ) {
+                        classDurations.put( suite.getClassName(), result.getEndTime() - result.getStartTime() );
+                    }
+                    finishedClassNames.add( topLevelClassName( suite.getClassName() ) );
+                    if ( result.getResultType() == TestResult.ResultType.FAILURE ) {
+                        failedClassNames.add( topLevelClassName( suite.getClassName() ) );
+                    }
+                    // class-level failures (e.g. building the SessionFactory) are only reported on the class suite
+                    final boolean connectionFailure = connectionFailedClassNames.remove( suite.getClassName() )
+                            || result.getResultType() == TestResult.ResultType.FAILURE && hasConnectionFailure( result );
+                    circuitBreaker.classFinished( suite.getClassName(), connectionFailure );
+                }
+            }
+
+        } );
+
+        // Bookkeeping of the node's run, done after the node whatever its outcome (unlike its own actions, which an
+        // aborted node does not get to), but only if it started executing
+        project.getGradle().getTaskGraph().afterTask( task -> {
+            if ( task != nodeTask ) {
+                return;
+            }
+            if ( node.getInfrastructureFailure() != null ) {
+                node.writeAbortedMarker();
+            }
+            final long startNanos = nodeStartNanos.getAndSet( 0 );
+            if ( startNanos == 0 ) {
+                return;
+            }
+            if ( heapHistory != null ) {
+                final long peak = HeapHistory.peakUsage( node.getGcLogDirectory() );
+                log.info( "Peak heap usage after GC of {} : {}M", nodeTask.getPath(), peak / ( 1024 * 1024 ) );
+                heapHistory.record(
+                        nodeTask.getPath(),
+                        peak,
+                        nodeTask.getMaxHeapSize() == null
+                                ? 0
+                                : NodeJvmSettings.toBytes( null, "maxHeapSize", nodeTask.getMaxHeapSize() )
+                );
+            }
+            if ( durationHistory != null ) {
+                durationHistory.record( node.getName(), classDurations );
+                classDurations.clear();
+            }
+            if ( selector != null ) {
+                if ( task.getState().getFailure() != null ) {
+                    // the classes which did not get to run are left to be selected again
+                    selectedClassNames.retainAll( finishedClassNames );
+                }
+                selector.record( selectedClassNames, failedClassNames );
+                selectedClassNames.clear();
+                failedClassNames.clear();
+            }
+            finishedClassNames.clear();
+            final MatrixNodeMetrics nodeMetrics = metrics.getAndSet( null );
+            if ( nodeMetrics != null ) {
+                nodeMetrics.recordSince( MatrixNodeMetrics.Phase.NODE, startNanos );
+                MetricsWriter.write(
+                        node.getBaseOutputDirectory(),
+                        "metrics",
+                        Collections.singletonList( nodeMetrics )
+                );
+            }
+        } );
+    }
+
+    private static boolean hasConnectionFailure(TestResult result) {
+        for ( Throwable failure : result.getExceptions() ) {
+            if ( NodeCircuitBreaker.isConnectionFailure( failure ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check the database obtained from a provider, now that its connection settings are known (the pre-flight check
+     * only connects to the profiles used with their own settings).  Databases living in the test forks are not
+     * checked, as they do not exist before the forks do.
+     */
+    private void checkAllocatedDatabase(MatrixNode node, Test nodeTask, DatabaseAllocation allocation) {
+        final DatabaseAllocator allocator = DatabaseAllocator.locate( project );
+        if ( preflightMode == ConnectivityCheck.Mode.OFF
+                || allocation.isForkIsolated()
+                || !allocator.isProviderAllocated( node.getDatabaseProfile() ) ) {
+            return;
+        }
+        final String unreachable = ConnectivityCheck.check(
+                node.getDatabaseProfile().getName(),
+                nodeTask.getSystemProperties(),
+                JdbcConnector.buildDriverClassLoader( node.getDatabaseProfile() ),
+                SettingsHelper.getInt( ConnectivityCheck.PREFLIGHT_TIMEOUT_KEY, 10 )
+        );
+        if ( unreachable == null ) {
+            return;
+        }
+        node.recordInfrastructureFailure( unreachable );
+        if ( preflightMode == ConnectivityCheck.Mode.FAIL ) {
+            throw new BuildException( "Allocated database of " + nodeTask.getPath() + " is unreachable : " + unreachable );
+        }
+        log.warn( "Skipping {}, its allocated database is unreachable : {}", nodeTask.getPath(), unreachable );
+        throw new StopExecutionException();
+    }
+
+    private String preflightFailure(MatrixNode node) {
+        if ( preflightMode == ConnectivityCheck.Mode.OFF ) {
+            return null;
+        }
+        return DatabaseAllocator.locate( project ).awaitPreflight( node.getDatabaseProfile() );
+    }
+
+    private static void recordSince(
+            AtomicReference<MatrixNodeMetrics> metrics,
+            MatrixNodeMetrics.Phase phase,
+            long startNanos) {
+        final MatrixNodeMetrics nodeMetrics = metrics.get();
+        if ( nodeMetrics != null ) {
+            nodeMetrics.recordSince( phase, startNanos );
+        }
+    }
+
+    /**
+     * Apply the profile to the node task : its Hibernate properties, without overriding those already set on the
+     * task, and its JVM settings.  Done once, as the node (or warm) task starts executing, rather than when the task
+     * graph is ready; what of the profile affects the outcome is modelled by the task's inputs, see
+     * {@link MatrixNodeTest#getDatabaseProfileProperties()}.
+     */
+    private void applyProfile(MatrixNode node, Test nodeTask) {
+        if ( !profileAppliedNodes.add( node.getName() ) ) {
+            return;
+        }
+        final Map<String,Object> systemProperties = new LinkedHashMap<>( node.getDatabaseProfile().getHibernateProperties() );
+        systemProperties.putAll( nodeTask.getSystemProperties() );
+        nodeTask.setSystemProperties( systemProperties );
+
+        node.getJvmSettings().applyTo(
+                nodeTask,
+                heapHistory == null ? null : heapHistory.recommendMaxHeapSize( nodeTask.getPath() )
+        );
+    }
+
+    /**
+     * Restrict the node task to the given test classes (those assigned to this build's shard and/or selected by the
+     * incremental matrix), skipping the node entirely when there are none.
+     */
+    private void applyTestClassSelection(MatrixNode node, Test nodeTask, Set<String> classNames) {
+        if ( classNames.isEmpty() ) {
+            log.lifecycle( "No test classes to run for {}", node.getName() );
+            throw new StopExecutionException();
+        }
+
+        for ( String className : classNames ) {
+            nodeTask.getFilter().includeTestsMatching( className );
+            nodeTask.getFilter().includeTestsMatching( className + "$*" );
+        }
+        nodeTask.getFilter().setFailOnNoMatchingTests( false );
+    }
+
+    private String incrementalStatePath(MatrixNode node) {
+        return "incremental/" + projectStateName() + "/" + node.getName() + ".properties";
+    }
+
+    /**
+     * The name under which the project's own state is kept in the state directory.
+     */
+    private String projectStateName() {
+        return project.getPath().equals( ":" ) ? "root" : project.getPath().substring( 1 ).replace( ':', '_' );
+    }
+
+    /**
+     * Summarize what of the profile affects test outcomes : its Hibernate properties and the content of its JDBC
+     * artifacts.
+     */
+    private static String profileFingerprint(MatrixNode node) {
+        final StringBuilder buffer = new StringBuilder();
+        buffer.append( new TreeMap<>( node.getDatabaseProfile().getHibernateProperties() ) );
+        buffer.append( node.getAxisValues() );
+        for ( File file : node.getDatabaseProfile().getTestingRuntimeConfiguration() ) {
+            buffer.append( '|' ).append( file.getName() );
+            if ( file.isFile() ) {
+                // a rebuilt snapshot driver often keeps its name and length
+                buffer.append( ':' ).append( IncrementalTestSelector.jarHash( file ) );
+            }
+        }
+        return buffer.toString();
+    }
+
+    private static String topLevelClassName(String className) {
+        final int nestedStart = className.indexOf( '$' );
+        return nestedStart < 0 ? className : className.substring( 0, nestedStart );
+    }
+
+    /**
+     * Size the node's forks from the duration history.  Gradle hands test classes to the forks itself, so the classes
+     * are neither ordered nor placed on particular forks from here; what the duration history does allow is avoiding
+     * forks which would not shorten the run (e.g. when a single class dominates).
+     */
+    private int suggestForks(MatrixNode node, int forks, Set<String> selectedClassNames) {
+        if ( forks <= 1 ) {
+            return forks;
+        }
+        // Gradle offers no way to order the classes, so model how it distributes them
+        final List<String> classNames = TestClassScanner.scanTestsInDiscoveryOrder(
+                testSourceSet.getOutput().getClassesDirs(),
+                testSourceSet.getRuntimeClasspath()
+        );
+        if ( selectedClassNames != null ) {
+            classNames.retainAll( selectedClassNames );
+        }
+        final int suggested = TestDurationHistory.suggestForks(
+                node.getName(),
+                classNames,
+                durationHistory.load(),
+                forks
+        );
+        if ( suggested < forks ) {
+            log.lifecycle(
+                    "Recorded test durations for {} show {} of {} forks give the same run time; using {}",
+                    node.getName(),
+                    suggested,
+                    forks,
+                    suggested
+            );
+        }
+        return suggested;
+    }
+
+    /**
+     * The shard plan covers all of this project's nodes, so it is computed once, when the first node executes (the
+     * test classes are compiled by then).  Only actual test classes are planned, so that abstract bases and helpers
+     * do not weigh in.
+     */
+    private synchronized Map<String,Set<String>> shardPlan() {
+        if ( shardPlan == null ) {
+            final Set<String> classNames = TestClassScanner.scanTests(
+                    testSourceSet.getOutput().getClassesDirs(),
+                    testSourceSet.getRuntimeClasspath()
+            );
+            final Map<String,Set<String>> classNamesByProfile = new LinkedHashMap<>();
+            for ( MatrixNode matrixNode : matrixNodes ) {
+                classNamesByProfile.put( matrixNode.getName(), classNames );
+            }
+
+            final String durationsFile = SettingsHelper.getString( SHARD_DURATIONS_KEY, null );
+            shardPlan = new MatrixShardPlanner(
+                    shard,
+                    MatrixShardPlanner.loadDurations( durationsFile == null ? null : new File( durationsFile ) )
+            ).plan( classNamesByProfile );
+        }
+        return shardPlan;
+    }
+
+    /**
+     * Can the node safely run more than one fork?  Either the allocation isolates forks itself, or the profile's own
+     * connection settings already reference the test worker.
+     */
+    private static boolean isForkIsolated(DatabaseAllocation allocation, DatabaseProfile profile) {
+        if ( allocation.isForkIsolated() ) {
+            return true;
+        }
+        for ( Object value : profile.getHibernateProperties().values() ) {
+            if ( value != null && value.toString().contains( DatabaseAllocation.WORKER_PLACEHOLDER ) ) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,138 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Circuit breaker of a matrix node : trips once the database looks gone, that is after a number of consecutive test
+ * classes failed on connection errors, or when resetting the database before a test class failed.  The node is then
+ * aborted rather than grinding through its remaining test classes (which its {@code ignoreFailures} would otherwise
+ * have it do).
+ * <p/>
+ * With several forks, classes finish concurrently; "consecutive" is in order of completion.
+ */
+public class NodeCircuitBreaker {
+	/**
+	 * Names a system setting for the number of consecutive test classes failing on database connection errors which
+	 * aborts a matrix node.  Defaults to 5; 0 disables the circuit breaker.
+	 */
+	public static final String CIRCUIT_BREAKER_KEY = "hibernate-matrix-circuit-breaker";
+
+	/**
+	 * SQLState class of connection exceptions.
+	 */
+	private static final String CONNECTION_SQL_STATE_CLASS = "08";
+
+	private static final List<String> CONNECTION_EXCEPTION_NAMES = Arrays.asList(
+			"java.net.ConnectException",
+			"java.net.NoRouteToHostException",
+			"java.net.SocketException",
+			"java.net.SocketTimeoutException",
+			"java.net.UnknownHostException",
+			"java.sql.SQLNonTransientConnectionException",
+			"java.sql.SQLTransientConnectionException",
+			"org.hibernate.exception.JDBCConnectionException"
+	);
+
+	private static final int MAX_CAUSE_DEPTH = 32;
+
+	private final int threshold;
+
+	private int consecutiveFailures;
+	private String tripReason;
+
+	public NodeCircuitBreaker(int threshold) {
+		this.threshold = threshold;
+	}
+
+	public boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * Record the outcome of a test class.
+	 *
+	 * @param className The test class name
+	 * @param connectionFailure Did the class fail on a connection error (see {@link #isConnectionFailure})?
+	 */
+	public synchronized void classFinished(String className, boolean connectionFailure) {
+		if ( !isEnabled() || tripReason != null ) {
+			return;
+		}
+		if ( !connectionFailure ) {
+			consecutiveFailures = 0;
+			return;
+		}
+		consecutiveFailures++;
+		if ( consecutiveFailures >= threshold ) {
+			tripReason = consecutiveFailures + " consecutive test classes failed on database connection errors (last : "
+					+ className + ")";
+		}
+	}
+
+	/**
+	 * Trip the breaker, unless already tripped.
+	 *
+	 * @param reason Why
+	 */
+	public synchronized void trip(String reason) {
+		if ( tripReason == null ) {
+			tripReason = reason;
+		}
+	}
+
+	/**
+	 * Why the breaker tripped.
+	 *
+	 * @return The reason, or {@code null} if the breaker did not trip
+	 */
+	public synchronized String getTripReason() {
+		return tripReason;
+	}
+
+	/**
+	 * Is the failure (or any of its causes) a database connection error?  Failures reported by the test workers
+	 * may stand in for exception types unknown to the build, so types are recognized by name.
+	 *
+	 * @param failure The failure of a test (or test class)
+	 *
+	 * @return {@code true} for a connection error
+	 */
+	public static boolean isConnectionFailure(Throwable failure) {
+		Throwable current = failure;
+		for ( int depth = 0; current != null && depth < MAX_CAUSE_DEPTH; depth++ ) {
+			if ( current instanceof SQLException ) {
+				final String sqlState = ( (SQLException) current ).getSQLState();
+				if ( sqlState != null && sqlState.startsWith( CONNECTION_SQL_STATE_CLASS ) ) {
+					return true;
+				}
+			}
+			if ( CONNECTION_EXCEPTION_NAMES.contains( current.getClass().getName() )
+					|| CONNECTION_EXCEPTION_NAMES.contains( describedClassName( current ) ) ) {
+				return true;
+			}
+			if ( current.getCause() == current ) {
+				break;
+			}
+			current = current.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * The class name a failure describes itself with, which is the original exception type for the placeholders
+	 * Gradle substitutes for exception types unknown to the build.
+	 */
+	private static String describedClassName(Throwable failure) {
+		final String description = failure.toString();
+		final int end = description.indexOf( ':' );
+		return end < 0 ? description : description.substring( 0, end );
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.gradle.api.tasks.testing.Test;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * The JVM settings of a matrix node's test forks, as declared by an optional {@code jvm.properties} file in the
+ * database profile directory.  Understood keys are:<ul>
+ *     <li>{@code jvmArgs} - additional JVM arguments, separated by whitespace</li>
+ *     <li>{@code minHeapSize} and {@code maxHeapSize} - heap sizes, e.g. {@code 512M} or {@code 2g}</li>
+ *     <li>{@code gc} - the collector: {@code serial}, {@code parallel}, {@code g1}, {@code z}, {@code shenandoah},
+ *     or a JVM flag selecting one</li>
+ *     <li>{@code maxParallelForks} - an upper bound for the node's number of forks</li>
+ *     <li>{@code forkEvery} - the number of test classes after which a fork is replaced</li>
+ * </ul>
+ * Anything not declared keeps the plugin's default.
+ */
+public class NodeJvmSettings {
+	public static final String FILE_NAME = "jvm.properties";
+
+	public static final String DEFAULT_HEAP_SIZE = "1024M";
+
+	private static final Map<String,String> GC_FLAGS;
+
+	static {
+		GC_FLAGS = new HashMap<String, String>();
+		GC_FLAGS.put( "serial", "-XX:+UseSerialGC" );
+		GC_FLAGS.put( "parallel", "-XX:+UseParallelGC" );
+		GC_FLAGS.put( "g1", "-XX:+UseG1GC" );
+		GC_FLAGS.put( "z", "-XX:+UseZGC" );
+		GC_FLAGS.put( "shenandoah", "-XX:+UseShenandoahGC" );
+	}
+
+	private final File file;
+	private final List<String> jvmArgs;
+	private final String minHeapSize;
+	private final String maxHeapSize;
+	private final String gcFlag;
+	private final Integer maxParallelForks;
+	private final Long forkEvery;
+
+	private NodeJvmSettings(
+			File file,
+			List<String> jvmArgs,
+			String minHeapSize,
+			String maxHeapSize,
+			String gcFlag,
+			Integer maxParallelForks,
+			Long forkEvery) {
+		this.file = file;
+		this.jvmArgs = jvmArgs;
+		this.minHeapSize = minHeapSize;
+		this.maxHeapSize = maxHeapSize;
+		this.gcFlag = gcFlag;
+		this.maxParallelForks = maxParallelForks;
+		this.forkEvery = forkEvery;
+	}
+
+	/**
+	 * Load the settings declared in the given profile directory.
+	 *
+	 * @param profileDirectory The profile directory
+	 *
+	 * @return The settings; defaults only if the profile does not declare any
+	 */
+	public static NodeJvmSettings load(File profileDirectory) {
+		final File file = new File( profileDirectory, FILE_NAME );
+		final Properties properties = new Properties();
+		if ( file.exists() ) {
+			try {
+				final InputStream stream = new FileInputStream( file );
+				try {
+					properties.load( stream );
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (IOException e) {
+				throw new BuildException( "Unable to read JVM settings [" + file + "]", e );
+			}
+		}
+
+		final List<String> jvmArgs = new ArrayList<String>();
+		final String jvmArgsValue = properties.getProperty( "jvmArgs", "" ).trim();
+		if ( jvmArgsValue.length() > 0 ) {
+			Collections.addAll( jvmArgs, jvmArgsValue.split( "\\s+" ) );
+		}
+
+		final Long maxParallelForks = number( file, properties, "maxParallelForks" );
+		return new NodeJvmSettings(
+				file,
+				jvmArgs,
+				heapSize( file, properties, "minHeapSize" ),
+				heapSize( file, properties, "maxHeapSize" ),
+				gcFlag( file, properties.getProperty( "gc" ) ),
+				maxParallelForks == null ? null : Math.max( 1, maxParallelForks.intValue() ),
+				number( file, properties, "forkEvery" )
+		);
+	}
+
+	private static String heapSize(File file, Properties properties, String key) {
+		final String value = properties.getProperty( key );
+		if ( value == null ) {
+			return null;
+		}
+		toBytes( file, key, value.trim() );
+		return value.trim();
+	}
+
+	private static String gcFlag(File file, String value) {
+		if ( value == null ) {
+			return null;
+		}
+		if ( value.trim().startsWith( "-" ) ) {
+			return value.trim();
+		}
+		final String flag = GC_FLAGS.get( value.trim().toLowerCase( Locale.ROOT ) );
+		if ( flag == null ) {
+			throw new BuildException( "Unknown garbage collector [" + value + "] in [" + file + "]" );
+		}
+		return flag;
+	}
+
+	private static Long number(File file, Properties properties, String key) {
+		final String value = properties.getProperty( key );
+		if ( value == null ) {
+			return null;
+		}
+		try {
+			return Long.valueOf( value.trim() );
+		}
+		catch (NumberFormatException e) {
+			throw new BuildException( "Invalid value [" + value + "] for [" + key + "] in [" + file + "]", e );
+		}
+	}
+
+	/**
+	 * Convert a JVM memory size ({@code 512M}, {@code 2g}, {@code 1048576}...) to bytes.
+	 */
+	static long toBytes(File file, String key, String value) {
+		if ( value.length() > 0 ) {
+			final int unit = "kmg".indexOf( Character.toLowerCase( value.charAt( value.length() - 1 ) ) );
+			final String digits = unit < 0 ? value : value.substring( 0, value.length() - 1 );
+			try {
+				return Long.parseLong( digits ) << ( 10 * ( unit + 1 ) );
+			}
+			catch (NumberFormatException ignore) {
+			}
+		}
+		throw new BuildException( "Invalid memory size [" + value + "] for [" + key + "] in [" + file + "]" );
+	}
+
+	/**
+	 * Apply the settings to the node task.  The heap sizes default to {@link #DEFAULT_HEAP_SIZE}.
+	 *
+	 * @param nodeTask The node task
+	 * @param recommendedMaxHeapSize The heap size recommended by {@link HeapHistory}, if any; limited by the
+	 * declared {@code maxHeapSize}
+	 */
+	public void applyTo(Test nodeTask, Long recommendedMaxHeapSize) {
+		String maxHeap = maxHeapSize == null ? DEFAULT_HEAP_SIZE : maxHeapSize;
+		String minHeap = minHeapSize == null ? DEFAULT_HEAP_SIZE : minHeapSize;
+		if ( recommendedMaxHeapSize != null ) {
+			final long recommendedMegabytes = recommendedMaxHeapSize / ( 1024 * 1024 );
+			if ( maxHeapSize == null || recommendedMaxHeapSize < toBytes( file, "maxHeapSize", maxHeapSize ) ) {
+				maxHeap = recommendedMegabytes + "M";
+			}
+			if ( toBytes( file, "minHeapSize", minHeap ) > toBytes( file, "maxHeapSize", maxHeap ) ) {
+				minHeap = maxHeap;
+			}
+		}
+		nodeTask.setMinHeapSize( minHeap );
+		nodeTask.setMaxHeapSize( maxHeap );
+
+		final List<String> args = new ArrayList<String>();
+		if ( gcFlag != null ) {
+			args.add( gcFlag );
+		}
+		args.addAll( jvmArgs );
+		nodeTask.jvmArgs( args );
+
+		if ( forkEvery != null ) {
+			nodeTask.setForkEvery( forkEvery );
+		}
+	}
+
+	/**
+	 * The declared minimum heap size, regardless of any recommendation.
+	 *
+	 * @return The minimum heap size; {@link #DEFAULT_HEAP_SIZE} if not declared
+	 */
+	public String getDeclaredMinHeapSize() {
+		return minHeapSize == null ? DEFAULT_HEAP_SIZE : minHeapSize;
+	}
+
+	/**
+	 * The declared maximum heap size, regardless of any recommendation.
+	 *
+	 * @return The maximum heap size; {@link #DEFAULT_HEAP_SIZE} if not declared
+	 */
+	public String getDeclaredMaxHeapSize() {
+		return maxHeapSize == null ? DEFAULT_HEAP_SIZE : maxHeapSize;
+	}
+
+	/**
+	 * Limit the number of forks the node may use.
+	 *
+	 * @param forks The number of forks the node would otherwise use
+	 *
+	 * @return The number of forks to use
+	 */
+	public int limitForks(int forks) {
+		return maxParallelForks == null ? forks : Math.min( forks, maxParallelForks );
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Tells test classes apart from the other classes of the test class directories (abstract bases, helpers, entities),
+ * the way Gradle's own test detection does : a test class is concrete, and either extends JUnit 3's
+ * {@code TestCase}, is annotated with {@code @RunWith}, or declares test methods, possibly through its superclasses.
+ * Superclasses are read from the classpath the tests run with.
+ * <p/>
+ * Only annotations declared directly are recognized (not composed JUnit 5 annotations).
+ */
+public class TestClassDetector implements Closeable {
+	private static final Logger log = Logging.getLogger( TestClassDetector.class );
+
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int ACC_INTERFACE = 0x0200;
+	private static final int ACC_ABSTRACT = 0x0400;
+
+	private static final String JUNIT3_TEST_CASE = "junit/framework/TestCase";
+	private static final String OBJECT = "java/lang/Object";
+	private static final String ANNOTATIONS_ATTRIBUTE = "RuntimeVisibleAnnotations";
+
+	private static final Set<String> TEST_ANNOTATIONS = new HashSet<String>(
+			Arrays.asList(
+					"Lorg/junit/Test;",
+					"Lorg/junit/runner/RunWith;",
+					"Lorg/junit/jupiter/api/Test;",
+					"Lorg/junit/jupiter/api/RepeatedTest;",
+					"Lorg/junit/jupiter/api/TestFactory;",
+					"Lorg/junit/jupiter/api/TestTemplate;",
+					"Lorg/junit/jupiter/params/ParameterizedTest;",
+					"Lorg/testng/annotations/Test;"
+			)
+	);
+
+	private final List<File> classpath;
+	private final Map<File,JarFile> jars = new HashMap<File, JarFile>();
+	private final Map<String,ClassInfo> classInfos = new HashMap<String, ClassInfo>();
+	private final Map<String,Boolean> testHierarchies = new HashMap<String, Boolean>();
+
+	/**
+	 * Constructs a detector.
+	 *
+	 * @param classpath The class directories holding the candidate classes, followed by the classpath the tests run
+	 * with (where superclasses are looked up)
+	 */
+	public TestClassDetector(Iterable<File> classpath) {
+		this.classpath = new ArrayList<File>();
+		for ( File file : classpath ) {
+			this.classpath.add( file );
+		}
+	}
+
+	/**
+	 * Is the class a test class?  Classes which cannot be read are assumed to be, so that no test is ever lost.
+	 *
+	 * @param className The fully qualified class name
+	 *
+	 * @return {@code true} for a test class
+	 */
+	public boolean isTestClass(String className) {
+		final String internalName = className.replace( '.', '/' );
+		final ClassInfo info = classInfo( internalName );
+		if ( info == null ) {
+			return true;
+		}
+		return info.concrete && isTestHierarchy( internalName );
+	}
+
+	/**
+	 * Does the class, or one of its superclasses, carry the markers of a test?
+	 */
+	private boolean isTestHierarchy(String internalName) {
+		final Boolean known = testHierarchies.get( internalName );
+		if ( known != null ) {
+			return known;
+		}
+		boolean test = false;
+		final ClassInfo info = classInfo( internalName );
+		if ( info != null ) {
+			test = info.testMarkers
+					|| JUNIT3_TEST_CASE.equals( info.superName )
+					|| info.superName != null && !OBJECT.equals( info.superName ) && isTestHierarchy( info.superName );
+		}
+		testHierarchies.put( internalName, test );
+		return test;
+	}
+
+	private ClassInfo classInfo(String internalName) {
+		if ( classInfos.containsKey( internalName ) ) {
+			return classInfos.get( internalName );
+		}
+		ClassInfo info = null;
+		try {
+			final InputStream stream = openClassFile( internalName + ".class" );
+			if ( stream != null ) {
+				try {
+					info = read( stream );
+				}
+				finally {
+					stream.close();
+				}
+			}
+		}
+		catch (IOException e) {
+			log.debug( "Unable to read class file of {} : {}", internalName, e.getMessage() );
+		}
+		classInfos.put( internalName, info );
+		return info;
+	}
+
+	private InputStream openClassFile(String path) throws IOException {
+		for ( File entry : classpath ) {
+			if ( entry.isDirectory() ) {
+				final File classFile = new File( entry, path );
+				if ( classFile.isFile() ) {
+					return new FileInputStream( classFile );
+				}
+			}
+			else if ( entry.isFile() && entry.getName().endsWith( ".jar" ) ) {
+				JarFile jar = jars.get( entry );
+				if ( jar == null ) {
+					jar = new JarFile( entry );
+					jars.put( entry, jar );
+				}
+				final ZipEntry classFile = jar.getEntry( path );
+				if ( classFile != null ) {
+					return jar.getInputStream( classFile );
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void close() {
+		for ( JarFile jar : jars.values() ) {
+			try {
+				jar.close();
+			}
+			catch (IOException ignore) {
+			}
+		}
+		jars.clear();
+	}
+
+	private static class ClassInfo {
+		private boolean concrete;
+		private String superName;
+		private boolean testMarkers;
+	}
+
+	private static ClassInfo read(InputStream stream) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[8192];
+		int read;
+		while ( ( read = stream.read( buffer ) ) >= 0 ) {
+			bytes.write( buffer, 0, read );
+		}
+		// skipping is reliable on an in-memory stream
+		final DataInputStream input = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+		if ( input.readInt() != MAGIC ) {
+			throw new IOException( "Not a class file" );
+		}
+		// minor and major version
+		input.skipBytes( 4 );
+
+		final int count = input.readUnsignedShort();
+		final String[] utf8 = new String[count];
+		final int[] classIndexes = new int[count];
+		for ( int i = 1; i < count; i++ ) {
+			final int tag = input.readUnsignedByte();
+			switch ( tag ) {
+				case 1:
+					utf8[i] = input.readUTF();
+					break;
+				case 7:
+					classIndexes[i] = input.readUnsignedShort();
+					break;
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					input.skipBytes( 2 );
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					input.skipBytes( 4 );
+					break;
+				case 5:
+				case 6:
+					// longs and doubles take two entries
+					input.skipBytes( 8 );
+					i++;
+					break;
+				case 15:
+					input.skipBytes( 3 );
+					break;
+				default:
+					throw new IOException( "Unknown constant pool tag " + tag );
+			}
+		}
+
+		final ClassInfo info = new ClassInfo();
+		final int access = input.readUnsignedShort();
+		info.concrete = ( access & ( ACC_INTERFACE | ACC_ABSTRACT ) ) == 0;
+		// this class
+		input.skipBytes( 2 );
+		final int superIndex = input.readUnsignedShort();
+		info.superName = superIndex == 0 ? null : utf8[classIndexes[superIndex]];
+		input.skipBytes( 2 * input.readUnsignedShort() );
+
+		// fields, then methods : access, name and descriptor, then attributes
+		for ( int members = 0; members < 2; members++ ) {
+			final int memberCount = input.readUnsignedShort();
+			for ( int i = 0; i < memberCount; i++ ) {
+				input.skipBytes( 6 );
+				info.testMarkers |= readAttributes( input, utf8 );
+			}
+		}
+		info.testMarkers |= readAttributes( input, utf8 );
+		return info;
+	}
+
+	/**
+	 * Read a list of attributes.
+	 *
+	 * @return Whether one of the attributes holds a test annotation
+	 */
+	private static boolean readAttributes(DataInputStream input, String[] utf8) throws IOException {
+		boolean testAnnotation = false;
+		final int attributeCount = input.readUnsignedShort();
+		for ( int i = 0; i < attributeCount; i++ ) {
+			final String name = utf8[input.readUnsignedShort()];
+			final int length = input.readInt();
+			if ( ANNOTATIONS_ATTRIBUTE.equals( name ) ) {
+				final int annotationCount = input.readUnsignedShort();
+				for ( int a = 0; a < annotationCount; a++ ) {
+					testAnnotation |= TEST_ANNOTATIONS.contains( readAnnotation( input, utf8 ) );
+				}
+			}
+			else {
+				input.skipBytes( length );
+			}
+		}
+		return testAnnotation;
+	}
+
+	/**
+	 * Read an annotation.
+	 *
+	 * @return The annotation type descriptor
+	 */
+	private static String readAnnotation(DataInputStream input, String[] utf8) throws IOException {
+		final String type = utf8[input.readUnsignedShort()];
+		final int pairCount = input.readUnsignedShort();
+		for ( int i = 0; i < pairCount; i++ ) {
+			// element name
+			input.skipBytes( 2 );
+			skipElementValue( input, utf8 );
+		}
+		return type;
+	}
+
+	private static void skipElementValue(DataInputStream input, String[] utf8) throws IOException {
+		final int tag = input.readUnsignedByte();
+		switch ( tag ) {
+			case 'e':
+				input.skipBytes( 4 );
+				break;
+			case '@':
+				readAnnotation( input, utf8 );
+				break;
+			case '[':
+				final int valueCount = input.readUnsignedShort();
+				for ( int i = 0; i < valueCount; i++ ) {
+					skipElementValue( input, utf8 );
+				}
+				break;
+			default:
+				// constants and classes
+				input.skipBytes( 2 );
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Locates the candidate test classes in a set of class directories : every top-level class is a candidate, and
+ * classes which turn out not to be tests are simply never matched.  Where the candidates are weighed against each
+ * other (sharding, fork sizing), {@link #scanTests} narrows them down to the actual test classes.
+ */
+public final class TestClassScanner {
+	private static final String CLASS_FILE_SUFFIX = ".class";
+
+	private TestClassScanner() {
+	}
+
+	/**
+	 * Scan the given class directories.
+	 *
+	 * @param classesDirs The class directories
+	 *
+	 * @return The names of the top-level classes found, sorted
+	 */
+	public static SortedSet<String> scan(Iterable<File> classesDirs) {
+		final TreeSet<String> classNames = new TreeSet<String>();
+		for ( File classesDir : classesDirs ) {
+			if ( classesDir.isDirectory() ) {
+				scan( classesDir, "", classNames );
+			}
+		}
+		return classNames;
+	}
+
+	/**
+	 * Scan the given class directories for test classes, see {@link TestClassDetector}.
+	 *
+	 * @param classesDirs The class directories
+	 * @param classpath The classpath the tests run with
+	 *
+	 * @return The names of the top-level test classes found, sorted
+	 */
+	public static SortedSet<String> scanTests(Iterable<File> classesDirs, Iterable<File> classpath) {
+		return filterTests( scan( classesDirs ), classesDirs, classpath );
+	}
+
+	/**
+	 * Scan the given class directories for test classes, see {@link TestClassDetector}, listing them in the order
+	 * Gradle discovers them : walking the directories depth first, in the order the file system lists their entries.
+	 * That is the order in which Gradle hands the classes out to the test forks.
+	 *
+	 * @param classesDirs The class directories
+	 * @param classpath The classpath the tests run with
+	 *
+	 * @return The names of the top-level test classes found, in discovery order
+	 */
+	public static List<String> scanTestsInDiscoveryOrder(Iterable<File> classesDirs, Iterable<File> classpath) {
+		final LinkedHashSet<String> classNames = new LinkedHashSet<String>();
+		for ( File classesDir : classesDirs ) {
+			if ( classesDir.isDirectory() ) {
+				scan( classesDir, "", classNames );
+			}
+		}
+		return new ArrayList<String>( filterTests( classNames, classesDirs, classpath ) );
+	}
+
+	private static <T extends Collection<String>> T filterTests(
+			T classNames,
+			Iterable<File> classesDirs,
+			Iterable<File> classpath) {
+		final List<File> detectionClasspath = new ArrayList<File>();
+		for ( File classesDir : classesDirs ) {
+			detectionClasspath.add( classesDir );
+		}
+		for ( File entry : classpath ) {
+			detectionClasspath.add( entry );
+		}
+		final TestClassDetector detector = new TestClassDetector( detectionClasspath );
+		try {
+			classNames.removeIf( className -> !detector.isTestClass( className ) );
+		}
+		finally {
+			detector.close();
+		}
+		return classNames;
+	}
+
+	private static void scan(File directory, String packagePrefix, Collection<String> classNames) {
+		final File[] files = directory.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		for ( File file : files ) {
+			final String fileName = file.getName();
+			if ( file.isDirectory() ) {
+				scan( file, packagePrefix + fileName + '.', classNames );
+			}
+			else if ( fileName.endsWith( CLASS_FILE_SUFFIX ) && fileName.indexOf( '$' ) < 0 ) {
+				final String simpleName = fileName.substring( 0, fileName.length() - CLASS_FILE_SUFFIX.length() );
+				if ( !"package-info".equals( simpleName ) && !"module-info".equals( simpleName ) ) {
+					classNames.add( packagePrefix + simpleName );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+/**
+ * Persisted history of the duration of each (profile, test class) unit of matrix work.  The file uses the format
+ * read by {@link MatrixShardPlanner#loadDurations}, so it can be published and used to balance shards.
+ * <p/>
+ * Each new sample is averaged with the recorded duration, smoothing out noisy runs.
+ */
+public class TestDurationHistory {
+	private static final Logger log = Logging.getLogger( TestDurationHistory.class );
+
+	/**
+	 * A fork count is only chosen over a larger one if its estimated run time is within this many percent.
+	 */
+	private static final int FORK_TOLERANCE_PERCENT = 5;
+
+	private static final Object LOCK = new Object();
+
+	private final File file;
+
+	public TestDurationHistory(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Load the recorded durations.
+	 *
+	 * @return The durations (in millis) keyed by {@link MatrixShardPlanner#unitKey}
+	 */
+	public Map<String,Long> load() {
+		synchronized ( LOCK ) {
+			return MatrixShardPlanner.loadDurations( file );
+		}
+	}
+
+	/**
+	 * Record the durations of a node run.
+	 *
+	 * @param profileName The node's profile name
+	 * @param samples The measured durations (in millis), keyed by test class name
+	 */
+	public void record(String profileName, Map<String,Long> samples) {
+		if ( samples.isEmpty() ) {
+			return;
+		}
+		synchronized ( LOCK ) {
+			final Properties properties = new Properties();
+			for ( Map.Entry<String,Long> entry : MatrixShardPlanner.loadDurations( file ).entrySet() ) {
+				properties.setProperty( entry.getKey(), entry.getValue().toString() );
+			}
+			for ( Map.Entry<String,Long> sample : samples.entrySet() ) {
+				final String key = MatrixShardPlanner.unitKey( profileName, sample.getKey() );
+				final String previous = properties.getProperty( key );
+				final long duration = previous == null
+						? sample.getValue()
+						: ( Long.parseLong( previous ) + sample.getValue() ) / 2;
+				properties.setProperty( key, Long.toString( duration ) );
+			}
+
+			try {
+				file.getParentFile().mkdirs();
+				final OutputStream stream = new FileOutputStream( file );
+				try {
+					properties.store( stream, "Hibernate matrix test class durations (millis)" );
+				}
+				finally {
+					stream.close();
+				}
+			}
+			catch (IOException e) {
+				log.warn( "Unable to write test duration history [" + file + "]", e );
+			}
+		}
+	}
+
+	/**
+	 * Determine how many forks are worth using to run the given classes, estimating the run time for each fork
+	 * count the way Gradle distributes the classes : in discovery order, round-robin over the forks, each fork then
+	 * running its share one class after the other.  Classes without a recorded duration are weighted as the average of
+	 * those with one.
+	 *
+	 * @param profileName The node's profile name
+	 * @param classNames The test classes to run, in the order Gradle discovers them (see
+	 * {@link TestClassScanner#scanTestsInDiscoveryOrder})
+	 * @param durations The recorded durations
+	 * @param maxForks The number of forks available
+	 *
+	 * @return The smallest fork count whose estimated run time is (about) as short as using all forks; {@code
+	 * maxForks} if no duration is recorded for the classes
+	 */
+	public static int suggestForks(
+			String profileName,
+			List<String> classNames,
+			Map<String,Long> durations,
+			int maxForks) {
+		final List<Long> weights = new ArrayList<Long>();
+		long knownTotal = 0;
+		int knownCount = 0;
+		for ( String className : classNames ) {
+			final Long duration = durations.get( MatrixShardPlanner.unitKey( profileName, className ) );
+			weights.add( duration );
+			if ( duration != null ) {
+				knownTotal += duration;
+				knownCount++;
+			}
+		}
+		if ( knownCount == 0 || maxForks <= 1 ) {
+			return maxForks;
+		}
+
+		final long defaultWeight = Math.max( 1, knownTotal / knownCount );
+		for ( int i = 0; i < weights.size(); i++ ) {
+			if ( weights.get( i ) == null ) {
+				weights.set( i, defaultWeight );
+			}
+		}
+
+		final long best = estimateRunTime( weights, maxForks );
+		for ( int forks = 1; forks < maxForks; forks++ ) {
+			if ( estimateRunTime( weights, forks ) * 100 <= best * ( 100 + FORK_TOLERANCE_PERCENT ) ) {
+				return forks;
+			}
+		}
+		return maxForks;
+	}
+
+	private static long estimateRunTime(List<Long> weightsInDiscoveryOrder, int forks) {
+		final long[] loads = new long[forks];
+		long runTime = 0;
+		for ( int i = 0; i < weightsInDiscoveryOrder.size(); i++ ) {
+			final int fork = i % forks;
+			loads[fork] += weightsInDiscoveryOrder.get( i );
+			runTime = Math.max( runTime, loads[fork] );
+		}
+		return runTime;
+	}
+}
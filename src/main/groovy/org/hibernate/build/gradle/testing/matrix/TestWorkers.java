@@ -0,0 +1,52 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import org.gradle.api.tasks.testing.TestDescriptor;
+
+/**
+ * Helper for relating test events back to the Gradle test worker (fork) which produced them.
+ */
+public final class TestWorkers {
+	/**
+	 * The name Gradle gives to the suite representing each test worker, followed by the worker id.  The same id is
+	 * exposed to the worker itself as the {@code org.gradle.test.worker} system property.
+	 */
+	private static final String WORKER_SUITE_PREFIX = "Gradle Test Executor ";
+
+	private TestWorkers() {
+	}
+
+	/**
+	 * Is the descriptor the suite representing a test worker?
+	 *
+	 * @param descriptor The test descriptor
+	 *
+	 * @return {@code true} if the descriptor represents a test worker
+	 */
+	public static boolean isWorkerSuite(TestDescriptor descriptor) {
+		return descriptor.getName() != null && descriptor.getName().startsWith( WORKER_SUITE_PREFIX );
+	}
+
+	/**
+	 * Determine the id of the test worker executing the described test.
+	 *
+	 * @param descriptor The test (or suite) descriptor
+	 *
+	 * @return The worker id, or {@code null} if it could not be determined
+	 */
+	public static String workerId(TestDescriptor descriptor) {
+		TestDescriptor current = descriptor;
+		while ( current != null ) {
+			if ( isWorkerSuite( current ) ) {
+				return current.getName().substring( WORKER_SUITE_PREFIX.length() ).trim();
+			}
+			current = current.getParent();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Pattern;
+import javax.inject.Inject;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.Project;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.options.Option;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutionException;
+import org.gradle.workers.WorkerExecutor;
+
+import org.hibernate.build.gradle.testing.database.DatabaseProfile;
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocation;
+import org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocator;
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Runs the tests of a matrix node in a warm worker JVM which outlives the build, for the edit-test loop against one
+ * or two databases.  Registered as {@code matrixWarm_{profile}} next to each {@code matrix_{profile}} node, whose
+ * configuration (classpath, JVM settings, system properties) it reuses; only the heap is the profile's declared one
+ * rather than the node's adapted one (see {@link #getMaxHeapSize()}).
+ * <p/>
+ * Each test class is run through the Worker API in process isolation (see {@link WarmTestClassAction}).  Gradle
+ * keeps such worker daemons alive in the build daemon and reuses them for later builds as long as their classpath
+ * and JVM settings are unchanged, so the JVM startup along with loading the JDBC driver and the libraries is only
+ * paid by the first run.  What the worker's classpath holds is therefore limited to what does not change between
+ * runs : the jars outside of the projects' build directories.  The classes built by the projects are reloaded for
+ * every run.
+ * <p/>
+ * The database allocation is held between builds through the {@link
+ * org.hibernate.build.gradle.testing.database.alloc.DatabaseAllocationPool}.  As for any long-lived JVM, static state
+ * of the libraries (Hibernate reading its settings from the system properties once, for instance) carries over from
+ * one run to the next.
+ * <p/>
+ * Only JUnit 4 tests are supported, and no test reports are written; failures are listed by the task.
+ */
+public abstract class WarmMatrixNodeTask extends DefaultTask {
+	/**
+	 * The id under which the warm worker is known to the allocation, standing for the Gradle test worker id.
+	 */
+	public static final String WORKER_ID = "warm";
+
+	private static final String WORKER_ID_PROPERTY = "org.gradle.test.worker";
+
+	/**
+	 * The node task whose configuration is run warm.
+	 *
+	 * @return The node task reference
+	 */
+	@Internal
+	public abstract Property<MatrixNodeTest> getNodeTask();
+
+	@Internal
+	public abstract Property<DatabaseProfile> getDatabaseProfile();
+
+	/**
+	 * The database allocator shared by the build's matrix nodes, see {@link MatrixNodeTest#getAllocator()}.
+	 *
+	 * @return The allocator reference
+	 */
+	@Internal
+	public abstract Property<DatabaseAllocator> getAllocator();
+
+	/**
+	 * The heap sizes of the warm worker.  Unlike the node task's, they are not adapted from one run to the next : the
+	 * worker is only reused by a later build while its JVM settings are unchanged.
+	 *
+	 * @return The minimum heap size
+	 */
+	@Input
+	public abstract Property<String> getMinHeapSize();
+
+	/**
+	 * See {@link #getMinHeapSize()}.
+	 *
+	 * @return The maximum heap size
+	 */
+	@Input
+	public abstract Property<String> getMaxHeapSize();
+
+	/**
+	 * Restricts the run to the test classes matching this pattern (either the fully qualified or the simple class
+	 * name; {@code *} matches anything).
+	 *
+	 * @return The test class name pattern
+	 */
+	@Input
+	@Optional
+	@Option(option = "tests", description = "Runs only the test classes matching the given name pattern.")
+	public abstract Property<String> getTestNamePattern();
+
+	@Inject
+	protected abstract WorkerExecutor getWorkerExecutor();
+
+	@TaskAction
+	public void run() {
+		final MatrixNodeTest nodeTask = getNodeTask().get();
+		final DatabaseProfile profile = getDatabaseProfile().get();
+
+		final DatabaseAllocation allocation = DatabaseAllocator.locate( getProject() ).getAllocation( getProject(), profile );
+		allocation.prepareForExecution( nodeTask );
+		allocation.prepareFork( WORKER_ID );
+		final Map<String,String> systemProperties = new TreeMap<String, String>();
+		for ( Map.Entry<String,Object> entry : nodeTask.getSystemProperties().entrySet() ) {
+			systemProperties.put( entry.getKey(), String.valueOf( entry.getValue() ) );
+		}
+		systemProperties.put( WORKER_ID_PROPERTY, WORKER_ID );
+
+		final List<File> libraries = new ArrayList<File>();
+		final List<File> reloaded = new ArrayList<File>();
+		for ( File file : nodeTask.getClasspath() ) {
+			( isBuiltByProjects( file ) ? reloaded : libraries ).add( file );
+		}
+
+		final WorkQueue queue = getWorkerExecutor().processIsolation(
+				spec -> {
+					spec.getClasspath().from( libraries );
+					spec.forkOptions(
+							fork -> {
+								fork.setExecutable(
+									nodeTask.getJavaLauncher().isPresent()
+											? nodeTask.getJavaLauncher().get().getExecutablePath().getAsFile().getAbsolutePath()
+											: nodeTask.getExecutable()
+							);
+								fork.setMinHeapSize( getMinHeapSize().get() );
+								fork.setMaxHeapSize( getMaxHeapSize().get() );
+								fork.jvmArgs( nodeTask.getJvmArgs() );
+								fork.setWorkingDir( nodeTask.getWorkingDir() );
+							}
+					);
+				}
+		);
+
+		final String runId = UUID.randomUUID().toString();
+		final Pattern pattern = getTestNamePattern().isPresent() ? namePattern( getTestNamePattern().get() ) : null;
+		final List<String> failedClassNames = new ArrayList<String>();
+		int classCount = 0;
+		for ( String className : TestClassScanner.scan( nodeTask.getTestClassesDirs() ) ) {
+			if ( pattern != null && !matches( pattern, className ) ) {
+				continue;
+			}
+			classCount++;
+			// classes run one at a time, so that the database is reset before each of them, as for the node task
+			allocation.beforeTestClassStarts( WORKER_ID );
+			queue.submit(
+					WarmTestClassAction.class,
+					params -> {
+						params.getRunId().set( runId );
+						params.getReloadedClasspath().from( reloaded );
+						params.getSystemProperties().putAll( systemProperties );
+						params.getClassName().set( className );
+					}
+			);
+			try {
+				queue.await();
+			}
+			catch (WorkerExecutionException e) {
+				getLogger().lifecycle( "{}", rootMessage( e ) );
+				failedClassNames.add( className );
+			}
+		}
+
+		if ( !failedClassNames.isEmpty() ) {
+			throw new BuildException(
+					failedClassNames.size() + " of " + classCount + " test classes failed against "
+							+ profile.getName() + " : " + failedClassNames
+			);
+		}
+		getLogger().lifecycle( "{} test classes run against {}", classCount, profile.getName() );
+	}
+
+	/**
+	 * Is the classpath entry produced by the build (class directories, project jars), as opposed to a library
+	 * resolved from a repository or a profile's JDBC directory?
+	 */
+	private boolean isBuiltByProjects(File file) {
+		if ( file.isDirectory() ) {
+			return true;
+		}
+		for ( Project project : getProject().getRootProject().getAllprojects() ) {
+			if ( file.toPath().startsWith( project.getBuildDir().toPath() ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Pattern namePattern(String namePattern) {
+		final String[] parts = namePattern.split( "\\*", -1 );
+		final StringBuilder regex = new StringBuilder();
+		for ( int i = 0; i < parts.length; i++ ) {
+			if ( i > 0 ) {
+				regex.append( ".*" );
+			}
+			regex.append( Pattern.quote( parts[i] ) );
+		}
+		return Pattern.compile( regex.toString() );
+	}
+
+	private static boolean matches(Pattern pattern, String className) {
+		final String simpleName = className.substring( className.lastIndexOf( '.' ) + 1 );
+		return pattern.matcher( className ).matches() || pattern.matcher( simpleName ).matches();
+	}
+
+	private static String rootMessage(Throwable failure) {
+		Throwable current = failure;
+		while ( current.getCause() != null && current.getCause() != current ) {
+			current = current.getCause();
+		}
+		return current.getMessage();
+	}
+}
@@ -0,0 +1,194 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Runs one JUnit 4 test class inside a warm, long-lived worker JVM (see {@link WarmMatrixNodeTask}).
+ * <p/>
+ * The worker's own classpath holds the libraries (JDBC driver, Hibernate's dependencies, JUnit), which thus stay
+ * loaded for as long as Gradle keeps the worker alive.  The classes built by the project (test classes included) are
+ * loaded on top of those by a classloader created afresh for each run of the warm task, so that changes are picked
+ * up; all test classes of a run share that classloader.
+ */
+public abstract class WarmTestClassAction implements WorkAction<WarmTestClassAction.Params> {
+	private static final Logger log = Logging.getLogger( WarmTestClassAction.class );
+
+	private static final String JUNIT_CORE = "org.junit.runner.JUnitCore";
+	private static final String JUNIT_TEST = "org.junit.Test";
+	private static final String JUNIT_RUN_WITH = "org.junit.runner.RunWith";
+
+	public interface Params extends WorkParameters {
+		/**
+		 * Identifies the run of the warm task; a new run gets a new classloader for the reloaded classpath.
+		 */
+		Property<String> getRunId();
+
+		ConfigurableFileCollection getReloadedClasspath();
+
+		MapProperty<String,String> getSystemProperties();
+
+		Property<String> getClassName();
+	}
+
+	private static String currentRunId;
+	private static URLClassLoader currentClassLoader;
+
+	@Override
+	public void execute() {
+		final Params params = getParameters();
+		// the worker outlives the run : what it sets is undone afterwards, so that a later run (possibly against
+		// another profile) does not see it
+		final Map<String,String> previousProperties = new HashMap<String, String>();
+		for ( Map.Entry<String,String> entry : params.getSystemProperties().get().entrySet() ) {
+			previousProperties.put( entry.getKey(), System.setProperty( entry.getKey(), entry.getValue() ) );
+		}
+
+		final Thread thread = Thread.currentThread();
+		final ClassLoader previousContextClassLoader = thread.getContextClassLoader();
+		try {
+			final ClassLoader classLoader = classLoader( params.getRunId().get(), params.getReloadedClasspath() );
+			thread.setContextClassLoader( classLoader );
+			run( classLoader, params.getClassName().get() );
+		}
+		finally {
+			thread.setContextClassLoader( previousContextClassLoader );
+			for ( Map.Entry<String,String> entry : previousProperties.entrySet() ) {
+				if ( entry.getValue() == null ) {
+					System.clearProperty( entry.getKey() );
+				}
+				else {
+					System.setProperty( entry.getKey(), entry.getValue() );
+				}
+			}
+		}
+	}
+
+	private static synchronized ClassLoader classLoader(String runId, Iterable<File> reloadedClasspath) {
+		if ( !runId.equals( currentRunId ) ) {
+			if ( currentClassLoader != null ) {
+				try {
+					currentClassLoader.close();
+				}
+				catch (IOException e) {
+					log.debug( "Unable to close the test classloader of the previous run", e );
+				}
+			}
+			final List<URL> urls = new ArrayList<URL>();
+			for ( File file : reloadedClasspath ) {
+				try {
+					urls.add( file.toURI().toURL() );
+				}
+				catch (MalformedURLException e) {
+					throw new BuildException( "Unable to add [" + file + "] to the test classloader", e );
+				}
+			}
+			currentClassLoader = new URLClassLoader(
+					urls.toArray( new URL[0] ),
+					WarmTestClassAction.class.getClassLoader()
+			);
+			currentRunId = runId;
+		}
+		return currentClassLoader;
+	}
+
+	private static void run(ClassLoader classLoader, String className) {
+		final Class<?> testClass;
+		try {
+			testClass = Class.forName( className, false, classLoader );
+		}
+		catch (ClassNotFoundException | LinkageError e) {
+			throw new BuildException( "Unable to load test class [" + className + "]", e );
+		}
+		if ( !isTestClass( classLoader, testClass ) ) {
+			log.debug( "Skipping [{}], not a JUnit 4 test class", className );
+			return;
+		}
+
+		try {
+			final Class<?> junitCore = classLoader.loadClass( JUNIT_CORE );
+			final Object result = junitCore.getMethod( "runClasses", Class[].class )
+					.invoke( null, (Object) new Class[] { testClass } );
+			final int runCount = (Integer) result.getClass().getMethod( "getRunCount" ).invoke( result );
+			final int ignoreCount = (Integer) result.getClass().getMethod( "getIgnoreCount" ).invoke( result );
+			final List<?> failures = (List<?>) result.getClass().getMethod( "getFailures" ).invoke( result );
+			if ( failures.isEmpty() ) {
+				log.lifecycle( "{} : {} test(s) passed, {} ignored", className, runCount, ignoreCount );
+				return;
+			}
+
+			final StringBuilder message = new StringBuilder()
+					.append( className ).append( " : " )
+					.append( failures.size() ).append( " of " ).append( runCount ).append( " test(s) failed" );
+			for ( Object failure : failures ) {
+				message.append( System.lineSeparator() ).append( "    " ).append( failure );
+				log.info( "{}", failure.getClass().getMethod( "getTrace" ).invoke( failure ) );
+			}
+			throw new BuildException( message.toString() );
+		}
+		catch (ClassNotFoundException e) {
+			throw new BuildException( "JUnit 4 is not on the test runtime classpath", e );
+		}
+		catch (NoSuchMethodException | IllegalAccessException e) {
+			throw new BuildException( "Unsupported JUnit version on the test runtime classpath", e );
+		}
+		catch (InvocationTargetException e) {
+			throw new BuildException( "Unable to run test class [" + className + "]", e.getCause() );
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean isTestClass(ClassLoader classLoader, Class<?> candidate) {
+		if ( candidate.isInterface() || Modifier.isAbstract( candidate.getModifiers() ) ) {
+			return false;
+		}
+		try {
+			final Class<? extends java.lang.annotation.Annotation> runWith =
+					(Class<? extends java.lang.annotation.Annotation>) classLoader.loadClass( JUNIT_RUN_WITH );
+			if ( candidate.isAnnotationPresent( runWith ) ) {
+				return true;
+			}
+			final Class<? extends java.lang.annotation.Annotation> test =
+					(Class<? extends java.lang.annotation.Annotation>) classLoader.loadClass( JUNIT_TEST );
+			for ( Method method : candidate.getMethods() ) {
+				if ( method.isAnnotationPresent( test ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+		catch (ClassNotFoundException e) {
+			throw new BuildException( "JUnit 4 is not on the test runtime classpath", e );
+		}
+		catch (LinkageError e) {
+			log.debug( "Unable to inspect [{}] : {}", candidate.getName(), e.toString() );
+			return false;
+		}
+	}
+}
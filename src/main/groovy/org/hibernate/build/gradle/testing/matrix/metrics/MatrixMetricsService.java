@@ -0,0 +1,64 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.metrics;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+/**
+ * Build-wide service collecting the metrics of every matrix node run in the build, across projects.  When the build
+ * finishes (and the service is closed) they are written to {@code matrix-metrics.json} and {@code matrix-metrics.prom}
+ * in the configured directory.
+ */
+public abstract class MatrixMetricsService implements BuildService<MatrixMetricsService.Params>, AutoCloseable {
+	private static final Logger log = Logging.getLogger( MatrixMetricsService.class );
+
+	public static final String SERVICE_NAME = "hibernateMatrixMetrics";
+
+	public interface Params extends BuildServiceParameters {
+		DirectoryProperty getOutputDirectory();
+	}
+
+	private final Map<String,MatrixNodeMetrics> nodes = new TreeMap<String, MatrixNodeMetrics>();
+
+	/**
+	 * Start collecting the metrics of a node run.
+	 *
+	 * @param nodePath The node task path
+	 * @param profileName The node's profile name
+	 *
+	 * @return The node's metrics
+	 */
+	public synchronized MatrixNodeMetrics startNode(String nodePath, String profileName) {
+		final MatrixNodeMetrics metrics = new MatrixNodeMetrics( nodePath, profileName );
+		nodes.put( nodePath, metrics );
+		return metrics;
+	}
+
+	@Override
+	public void close() {
+		final List<MatrixNodeMetrics> collected;
+		synchronized ( this ) {
+			collected = new ArrayList<MatrixNodeMetrics>( nodes.values() );
+		}
+		if ( collected.isEmpty() ) {
+			return;
+		}
+		final File directory = getParameters().getOutputDirectory().get().getAsFile();
+		MetricsWriter.write( directory, "matrix-metrics", collected );
+		log.lifecycle( "Matrix metrics for {} node(s) written to {}", collected.size(), directory );
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The execution metrics of one matrix node run, one histogram per {@link Phase}.
+ */
+public class MatrixNodeMetrics {
+	/**
+	 * The measured phases of a node run.
+	 */
+	public enum Phase {
+		/**
+		 * Obtaining the database allocation ({@code DatabaseAllocator#getAllocation}).
+		 */
+		ALLOCATION( "allocation" ),
+		/**
+		 * Preparing the allocation for the node ({@code DatabaseAllocation#prepareForExecution}).
+		 */
+		PREPARE( "prepare" ),
+		/**
+		 * Resetting the database before a test class ({@code DatabaseAllocation#beforeTestClass}).
+		 */
+		RESET( "reset" ),
+		/**
+		 * From the start of the node's tests to a test fork reporting in.
+		 */
+		FORK_STARTUP( "fork_startup" ),
+		/**
+		 * Running a test class.
+		 */
+		TEST_CLASS( "test_class" ),
+		/**
+		 * The whole node run.
+		 */
+		NODE( "node" );
+
+		private final String metricName;
+
+		Phase(String metricName) {
+			this.metricName = metricName;
+		}
+
+		public String getMetricName() {
+			return metricName;
+		}
+	}
+
+	private final String nodePath;
+	private final String profileName;
+	private final Map<Phase,MetricHistogram> histograms;
+
+	public MatrixNodeMetrics(String nodePath, String profileName) {
+		this.nodePath = nodePath;
+		this.profileName = profileName;
+		final Map<Phase,MetricHistogram> histograms = new LinkedHashMap<Phase, MetricHistogram>();
+		for ( Phase phase : Phase.values() ) {
+			histograms.put( phase, new MetricHistogram() );
+		}
+		this.histograms = Collections.unmodifiableMap( histograms );
+	}
+
+	public String getNodePath() {
+		return nodePath;
+	}
+
+	public String getProfileName() {
+		return profileName;
+	}
+
+	/**
+	 * Record the duration of a phase.
+	 *
+	 * @param phase The phase
+	 * @param millis The duration, in millis
+	 */
+	public void record(Phase phase, long millis) {
+		histograms.get( phase ).record( millis );
+	}
+
+	/**
+	 * Record the duration of a phase, measured from the given start.
+	 *
+	 * @param phase The phase
+	 * @param startNanos The start of the phase, as per {@link System#nanoTime()}
+	 */
+	public void recordSince(Phase phase, long startNanos) {
+		record( phase, ( System.nanoTime() - startNanos ) / 1_000_000 );
+	}
+
+	public Map<Phase,MetricHistogram> getHistograms() {
+		return histograms;
+	}
+}
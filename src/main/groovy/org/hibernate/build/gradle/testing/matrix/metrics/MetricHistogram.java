@@ -0,0 +1,117 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, with fixed buckets.  Recording a value is a few uncontended additions, so it
+ * can be used from test listeners without slowing down the delivery of test events.
+ */
+public class MetricHistogram {
+	/**
+	 * Upper bounds (inclusive, in millis) of the buckets; a last, unbounded bucket follows.
+	 */
+	static final long[] BUCKET_BOUNDS = {
+			1, 2, 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000, 300_000, 1_800_000
+	};
+
+	private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+	public MetricHistogram() {
+		for ( int i = 0; i < buckets.length; i++ ) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record a duration.
+	 *
+	 * @param millis The duration, in millis
+	 */
+	public void record(long millis) {
+		final long value = Math.max( 0, millis );
+		int bucket = 0;
+		while ( bucket < BUCKET_BOUNDS.length && value > BUCKET_BOUNDS[bucket] ) {
+			bucket++;
+		}
+		buckets[bucket].increment();
+		count.increment();
+		sum.add( value );
+		max.accumulate( value );
+	}
+
+	/**
+	 * Add everything recorded by another histogram to this one.
+	 *
+	 * @param other The other histogram
+	 */
+	public void merge(MetricHistogram other) {
+		for ( int i = 0; i < buckets.length; i++ ) {
+			buckets[i].add( other.buckets[i].sum() );
+		}
+		count.add( other.getCount() );
+		sum.add( other.getSumMillis() );
+		max.accumulate( other.getMaxMillis() );
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSumMillis() {
+		return sum.sum();
+	}
+
+	public long getMaxMillis() {
+		return max.get();
+	}
+
+	/**
+	 * The number of recorded values falling in each bucket (not cumulative).
+	 *
+	 * @return The bucket counts; one more than {@link #BUCKET_BOUNDS}
+	 */
+	public long[] getBucketCounts() {
+		final long[] counts = new long[buckets.length];
+		for ( int i = 0; i < buckets.length; i++ ) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	/**
+	 * Estimate a quantile as the upper bound of the bucket it falls in (capped by the max recorded value).
+	 *
+	 * @param quantile The quantile, between 0 and 1
+	 *
+	 * @return The estimate, in millis
+	 */
+	public long estimateQuantile(double quantile) {
+		final long[] counts = getBucketCounts();
+		long total = 0;
+		for ( long bucketCount : counts ) {
+			total += bucketCount;
+		}
+		if ( total == 0 ) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil( quantile * total );
+		long seen = 0;
+		for ( int i = 0; i < counts.length; i++ ) {
+			seen += counts[i];
+			if ( seen >= rank && counts[i] > 0 ) {
+				return i < BUCKET_BOUNDS.length ? Math.min( BUCKET_BOUNDS[i], getMaxMillis() ) : getMaxMillis();
+			}
+		}
+		return getMaxMillis();
+	}
+}
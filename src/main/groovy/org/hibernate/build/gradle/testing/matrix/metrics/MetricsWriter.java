@@ -0,0 +1,148 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Writes matrix node metrics as JSON and in the OpenMetrics text format.
+ */
+public class MetricsWriter {
+	private static final String METRIC_PREFIX = "hibernate_matrix_";
+
+	private MetricsWriter() {
+	}
+
+	/**
+	 * Write the metrics of the given nodes, along with the totals across them, as {@code {baseName}.json} and
+	 * {@code {baseName}.prom}.
+	 *
+	 * @param directory The directory to write to
+	 * @param baseName The base name of the files
+	 * @param nodes The node metrics
+	 */
+	public static void write(File directory, String baseName, Collection<MatrixNodeMetrics> nodes) {
+		directory.mkdirs();
+		writeJson( new File( directory, baseName + ".json" ), nodes );
+		writeOpenMetrics( new File( directory, baseName + ".prom" ), nodes );
+	}
+
+	private static void writeJson(File file, Collection<MatrixNodeMetrics> nodes) {
+		final StringBuilder json = new StringBuilder( "{\n  \"nodes\": [" );
+		boolean first = true;
+		for ( MatrixNodeMetrics node : nodes ) {
+			json.append( first ? "\n" : ",\n" );
+			first = false;
+			json.append( "    { \"node\": " ).append( quote( node.getNodePath() ) )
+					.append( ", \"profile\": " ).append( quote( node.getProfileName() ) )
+					.append( ", \"phases\": " );
+			appendPhases( json, node.getHistograms(), "      " );
+			json.append( " }" );
+		}
+		json.append( "\n  ],\n  \"totals\": " );
+		appendPhases( json, totals( nodes ).getHistograms(), "    " );
+		json.append( "\n}\n" );
+		write( file, json );
+	}
+
+	private static void appendPhases(
+			StringBuilder json,
+			Map<MatrixNodeMetrics.Phase,MetricHistogram> histograms,
+			String indent) {
+		json.append( '{' );
+		boolean first = true;
+		for ( Map.Entry<MatrixNodeMetrics.Phase,MetricHistogram> entry : histograms.entrySet() ) {
+			final MetricHistogram histogram = entry.getValue();
+			json.append( first ? "\n" : ",\n" ).append( indent ).append( "  " );
+			first = false;
+			json.append( quote( entry.getKey().getMetricName() ) ).append( ": { " )
+					.append( "\"count\": " ).append( histogram.getCount() )
+					.append( ", \"sum_ms\": " ).append( histogram.getSumMillis() )
+					.append( ", \"max_ms\": " ).append( histogram.getMaxMillis() )
+					.append( ", \"mean_ms\": " ).append(
+							histogram.getCount() == 0 ? 0 : histogram.getSumMillis() / histogram.getCount()
+					)
+					.append( ", \"p50_ms\": " ).append( histogram.estimateQuantile( 0.5 ) )
+					.append( ", \"p95_ms\": " ).append( histogram.estimateQuantile( 0.95 ) )
+					.append( ", \"p99_ms\": " ).append( histogram.estimateQuantile( 0.99 ) )
+					.append( " }" );
+		}
+		json.append( '\n' ).append( indent ).append( '}' );
+	}
+
+	private static void writeOpenMetrics(File file, Collection<MatrixNodeMetrics> nodes) {
+		final StringBuilder text = new StringBuilder();
+		for ( MatrixNodeMetrics.Phase phase : MatrixNodeMetrics.Phase.values() ) {
+			final String name = METRIC_PREFIX + phase.getMetricName() + "_seconds";
+			text.append( "# TYPE " ).append( name ).append( " histogram\n" );
+			text.append( "# UNIT " ).append( name ).append( " seconds\n" );
+			for ( MatrixNodeMetrics node : nodes ) {
+				final String labels = "node=" + quote( node.getNodePath() ) + ",profile=" + quote( node.getProfileName() );
+				final MetricHistogram histogram = node.getHistograms().get( phase );
+				final long[] counts = histogram.getBucketCounts();
+				long cumulative = 0;
+				for ( int i = 0; i < counts.length; i++ ) {
+					cumulative += counts[i];
+					final String bound = i < MetricHistogram.BUCKET_BOUNDS.length
+							? seconds( MetricHistogram.BUCKET_BOUNDS[i] )
+							: "+Inf";
+					text.append( name ).append( "_bucket{" ).append( labels )
+							.append( ",le=\"" ).append( bound ).append( "\"} " ).append( cumulative ).append( '\n' );
+				}
+				text.append( name ).append( "_count{" ).append( labels ).append( "} " )
+						.append( histogram.getCount() ).append( '\n' );
+				text.append( name ).append( "_sum{" ).append( labels ).append( "} " )
+						.append( seconds( histogram.getSumMillis() ) ).append( '\n' );
+			}
+		}
+		text.append( "# EOF\n" );
+		write( file, text );
+	}
+
+	private static MatrixNodeMetrics totals(Collection<MatrixNodeMetrics> nodes) {
+		final MatrixNodeMetrics totals = new MatrixNodeMetrics( "", "" );
+		for ( MatrixNodeMetrics node : nodes ) {
+			for ( Map.Entry<MatrixNodeMetrics.Phase,MetricHistogram> entry : node.getHistograms().entrySet() ) {
+				totals.getHistograms().get( entry.getKey() ).merge( entry.getValue() );
+			}
+		}
+		return totals;
+	}
+
+	private static String seconds(long millis) {
+		return String.format( Locale.ROOT, "%.3f", millis / 1000d );
+	}
+
+	private static String quote(String value) {
+		return '"' + value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" ) + '"';
+	}
+
+	private static void write(File file, CharSequence content) {
+		try {
+			final Writer writer = new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 );
+			try {
+				writer.append( content );
+			}
+			finally {
+				writer.close();
+			}
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write matrix metrics [" + file + "]", e );
+		}
+	}
+}
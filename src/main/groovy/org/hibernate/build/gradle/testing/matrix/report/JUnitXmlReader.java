@@ -0,0 +1,114 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.report;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Streams the test cases out of JUnit XML result files, without building a DOM.  Captured output and failure
+ * details are skipped, so memory use does not depend on the size of the files.
+ */
+public class JUnitXmlReader {
+	/**
+	 * Receives the test cases read.
+	 */
+	public interface TestCaseConsumer {
+		void testCase(String profileName, String className, String testName, long millis, TestOutcome outcome);
+	}
+
+	private final XMLInputFactory factory;
+
+	public JUnitXmlReader() {
+		factory = XMLInputFactory.newInstance();
+		factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+		factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+		factory.setProperty( XMLInputFactory.IS_COALESCING, false );
+	}
+
+	/**
+	 * Read the test cases of a result file.
+	 *
+	 * @param file The result file
+	 * @param profileName The profile the results belong to
+	 * @param consumer Receives the test cases
+	 */
+	public void read(File file, String profileName, TestCaseConsumer consumer) {
+		try {
+			final InputStream stream = new BufferedInputStream( new FileInputStream( file ) );
+			try {
+				final XMLStreamReader reader = factory.createXMLStreamReader( stream );
+				try {
+					read( reader, profileName, consumer );
+				}
+				finally {
+					reader.close();
+				}
+			}
+			finally {
+				stream.close();
+			}
+		}
+		catch (IOException | XMLStreamException e) {
+			throw new BuildException( "Unable to read test results [" + file + "]", e );
+		}
+	}
+
+	private void read(XMLStreamReader reader, String profileName, TestCaseConsumer consumer) throws XMLStreamException {
+		String className = null;
+		String testName = null;
+		long millis = 0;
+		TestOutcome outcome = null;
+		while ( reader.hasNext() ) {
+			final int event = reader.next();
+			if ( event == XMLStreamReader.START_ELEMENT ) {
+				final String element = reader.getLocalName();
+				if ( "testcase".equals( element ) ) {
+					className = reader.getAttributeValue( null, "classname" );
+					testName = reader.getAttributeValue( null, "name" );
+					millis = millis( reader.getAttributeValue( null, "time" ) );
+					outcome = TestOutcome.PASSED;
+				}
+				else if ( testName != null ) {
+					if ( "failure".equals( element ) || "error".equals( element ) ) {
+						outcome = TestOutcome.FAILED;
+					}
+					else if ( "skipped".equals( element ) && outcome != TestOutcome.FAILED ) {
+						outcome = TestOutcome.SKIPPED;
+					}
+				}
+			}
+			else if ( event == XMLStreamReader.END_ELEMENT && "testcase".equals( reader.getLocalName() ) ) {
+				if ( className != null && testName != null ) {
+					consumer.testCase( profileName, className, testName, millis, outcome );
+				}
+				className = null;
+				testName = null;
+			}
+		}
+	}
+
+	private static long millis(String seconds) {
+		if ( seconds == null || seconds.length() == 0 ) {
+			return 0;
+		}
+		try {
+			return Math.round( Double.parseDouble( seconds.replace( ",", "" ) ) * 1000 );
+		}
+		catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Aggregates the JUnit XML results of all matrix nodes into a single timing report : a test class by database table
+ * of outcomes and durations, plus the slowest and most database-skewed test cases, as {@code matrix-timings.html}
+ * and {@code matrix-timings.json}.
+ * <p/>
+ * Each results directory is expected at {@code .../{profile}/results}, as laid out by the matrix nodes.  A node
+ * which was aborted leaves an {@link #ABORTED_MARKER_FILE} next to whatever results it got to write, and the report
+ * shows it as aborted rather than as (partly) passed.
+ */
+@CacheableTask
+public abstract class MatrixReportTask extends DefaultTask {
+	/**
+	 * Names the file marking the results of an aborted matrix node; it holds why the node was aborted.
+	 */
+	public static final String ABORTED_MARKER_FILE = "matrix-node-aborted.txt";
+
+	/**
+	 * The results directories of the matrix nodes.
+	 *
+	 * @return The results directories
+	 */
+	@InputFiles
+	@PathSensitive(PathSensitivity.RELATIVE)
+	public abstract ConfigurableFileCollection getResultsDirectories();
+
+	/**
+	 * The number of test cases listed in each ranking.
+	 *
+	 * @return The ranking size
+	 */
+	@Input
+	public abstract Property<Integer> getRankingSize();
+
+	@OutputDirectory
+	public abstract DirectoryProperty getOutputDirectory();
+
+	@TaskAction
+	public void generate() {
+		final List<File> resultsDirectories = new ArrayList<File>();
+		final List<String> profileNames = new ArrayList<String>();
+		for ( File resultsDirectory : getResultsDirectories() ) {
+			if ( resultsDirectory.isDirectory() ) {
+				resultsDirectories.add( resultsDirectory );
+				profileNames.add( resultsDirectory.getParentFile().getName() );
+			}
+		}
+
+		final MatrixTimings timings = new MatrixTimings( profileNames, getRankingSize().get() );
+		final JUnitXmlReader reader = new JUnitXmlReader();
+		for ( int i = 0; i < resultsDirectories.size(); i++ ) {
+			final File abortedMarker = new File( resultsDirectories.get( i ), ABORTED_MARKER_FILE );
+			if ( abortedMarker.isFile() ) {
+				timings.profileAborted( profileNames.get( i ), readReason( abortedMarker ) );
+			}
+			final File[] resultFiles = resultsDirectories.get( i ).listFiles();
+			if ( resultFiles == null ) {
+				continue;
+			}
+			Arrays.sort( resultFiles );
+			for ( File resultFile : resultFiles ) {
+				if ( resultFile.isFile() && resultFile.getName().endsWith( ".xml" ) ) {
+					reader.read( resultFile, profileNames.get( i ), timings );
+				}
+			}
+		}
+
+		final File outputDirectory = getOutputDirectory().get().getAsFile();
+		final MatrixReportWriter writer = new MatrixReportWriter( timings );
+		writer.writeJson( new File( outputDirectory, "matrix-timings.json" ) );
+		writer.writeHtml( new File( outputDirectory, "matrix-timings.html" ) );
+		getLogger().lifecycle(
+				"Matrix timing report for {} test classes : {}",
+				timings.getClasses().size(),
+				new File( outputDirectory, "matrix-timings.html" ).toURI()
+		);
+	}
+
+	private static String readReason(File abortedMarker) {
+		try {
+			return new String( Files.readAllBytes( abortedMarker.toPath() ), StandardCharsets.UTF_8 ).trim();
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to read [" + abortedMarker + "]", e );
+		}
+	}
+}
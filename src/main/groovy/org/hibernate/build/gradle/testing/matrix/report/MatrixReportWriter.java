@@ -0,0 +1,250 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.hibernate.build.gradle.util.BuildException;
+
+/**
+ * Writes {@link MatrixTimings} as JSON and as a (self-contained) HTML page.  Both are streamed straight to the file.
+ */
+public class MatrixReportWriter {
+	private final MatrixTimings timings;
+
+	public MatrixReportWriter(MatrixTimings timings) {
+		this.timings = timings;
+	}
+
+	public void writeJson(File file) {
+		final Writer out = open( file );
+		try {
+			final List<String> profiles = timings.getProfileNames();
+			out.write( "{\n  \"profiles\": [" );
+			for ( int i = 0; i < profiles.size(); i++ ) {
+				out.write( ( i > 0 ? ", " : "" ) + json( profiles.get( i ) ) );
+			}
+			out.write( "],\n  \"aborted\": {" );
+			boolean firstAborted = true;
+			for ( int i = 0; i < profiles.size(); i++ ) {
+				if ( timings.getAbortReason( i ) != null ) {
+					out.write(
+							( firstAborted ? " " : ", " ) + json( profiles.get( i ) ) + ": "
+									+ json( timings.getAbortReason( i ) )
+					);
+					firstAborted = false;
+				}
+			}
+			out.write( " },\n  \"classes\": [" );
+			boolean first = true;
+			for ( Map.Entry<String,MatrixTimings.ClassTimings> entry : timings.getClasses().entrySet() ) {
+				out.write( ( first ? "\n" : ",\n" ) + "    { \"name\": " + json( entry.getKey() ) + ", \"results\": {" );
+				first = false;
+				boolean firstResult = true;
+				for ( int i = 0; i < profiles.size(); i++ ) {
+					final MatrixTimings.ClassTimings classTimings = entry.getValue();
+					if ( !classTimings.ran( i ) ) {
+						if ( timings.getAbortReason( i ) != null ) {
+							out.write(
+									( firstResult ? " " : ", " ) + json( profiles.get( i ) )
+											+ ": { \"outcome\": " + json( TestOutcome.ABORTED.name() ) + " }"
+							);
+							firstResult = false;
+						}
+						continue;
+					}
+					out.write(
+							( firstResult ? " " : ", " ) + json( profiles.get( i ) )
+									+ ": { \"outcome\": " + json( classTimings.getOutcome( i ).name() )
+									+ ", \"tests\": " + classTimings.getTests( i )
+									+ ", \"failed\": " + classTimings.getFailed( i )
+									+ ", \"skipped\": " + classTimings.getSkipped( i )
+									+ ", \"duration\": " + seconds( classTimings.getMillis( i ) ) + " }"
+					);
+					firstResult = false;
+				}
+				out.write( " } }" );
+			}
+			out.write( "\n  ],\n  \"slowest\": [" );
+			first = true;
+			for ( MatrixTimings.TestTiming timing : timings.getSlowest() ) {
+				out.write(
+						( first ? "\n" : ",\n" ) + "    { \"class\": " + json( timing.getClassName() )
+								+ ", \"test\": " + json( timing.getTestName() )
+								+ ", \"profile\": " + json( timing.getProfileName() )
+								+ ", \"duration\": " + seconds( timing.getMillis() ) + " }"
+				);
+				first = false;
+			}
+			out.write( "\n  ],\n  \"skewed\": [" );
+			first = true;
+			for ( MatrixTimings.TestSkew skew : timings.getMostSkewed() ) {
+				out.write(
+						( first ? "\n" : ",\n" ) + "    { \"class\": " + json( skew.getClassName() )
+								+ ", \"test\": " + json( skew.getTestName() )
+								+ ", \"fastest\": { \"profile\": " + json( skew.getFastestProfileName() )
+								+ ", \"duration\": " + seconds( skew.getFastestMillis() ) + " }"
+								+ ", \"slowest\": { \"profile\": " + json( skew.getSlowestProfileName() )
+								+ ", \"duration\": " + seconds( skew.getSlowestMillis() ) + " }"
+								+ ", \"spread\": " + seconds( skew.getSpreadMillis() ) + " }"
+				);
+				first = false;
+			}
+			out.write( "\n  ]\n}\n" );
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write matrix report [" + file + "]", e );
+		}
+		finally {
+			close( out );
+		}
+	}
+
+	public void writeHtml(File file) {
+		final Writer out = open( file );
+		try {
+			final List<String> profiles = timings.getProfileNames();
+			out.write( "<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n<title>Matrix test timings</title>\n" );
+			out.write( "<style>\n" );
+			out.write( "body { font-family: sans-serif; font-size: 13px; }\n" );
+			out.write( "table { border-collapse: collapse; margin-bottom: 2em; }\n" );
+			out.write( "th, td { border: 1px solid #ccc; padding: 2px 6px; text-align: right; }\n" );
+			out.write( "th:first-child, td:first-child { text-align: left; }\n" );
+			out.write( ".PASSED { background: #e6f4e6; } .FAILED { background: #f8d7d7; } .SKIPPED { background: #f4f0d8; }"
+					+ " .ABORTED { background: #e0e0e0; }\n" );
+			out.write( "</style>\n</head>\n<body>\n" );
+
+			out.write( "<h1>Slowest tests</h1>\n<table>\n<tr><th>Test</th><th>Profile</th><th>Duration (s)</th></tr>\n" );
+			for ( MatrixTimings.TestTiming timing : timings.getSlowest() ) {
+				out.write(
+						"<tr><td>" + html( timing.getClassName() + "." + timing.getTestName() ) + "</td><td>"
+								+ html( timing.getProfileName() ) + "</td><td>" + seconds( timing.getMillis() )
+								+ "</td></tr>\n"
+				);
+			}
+			out.write( "</table>\n" );
+
+			out.write( "<h1>Most database-skewed tests</h1>\n<table>\n" );
+			out.write( "<tr><th>Test</th><th>Fastest</th><th>(s)</th><th>Slowest</th><th>(s)</th><th>Spread (s)</th></tr>\n" );
+			for ( MatrixTimings.TestSkew skew : timings.getMostSkewed() ) {
+				out.write(
+						"<tr><td>" + html( skew.getClassName() + "." + skew.getTestName() ) + "</td><td>"
+								+ html( skew.getFastestProfileName() ) + "</td><td>" + seconds( skew.getFastestMillis() )
+								+ "</td><td>" + html( skew.getSlowestProfileName() ) + "</td><td>"
+								+ seconds( skew.getSlowestMillis() ) + "</td><td>" + seconds( skew.getSpreadMillis() )
+								+ "</td></tr>\n"
+				);
+			}
+			out.write( "</table>\n" );
+
+			out.write( "<h1>Test classes by database</h1>\n<table>\n<tr><th>Class</th>" );
+			for ( int i = 0; i < profiles.size(); i++ ) {
+				final String abortReason = timings.getAbortReason( i );
+				out.write(
+						abortReason == null
+								? "<th>" + html( profiles.get( i ) ) + "</th>"
+								: "<th class=\"ABORTED\" title=\"" + html( abortReason ) + "\">"
+										+ html( profiles.get( i ) ) + " (aborted)</th>"
+				);
+			}
+			out.write( "</tr>\n" );
+			for ( Map.Entry<String,MatrixTimings.ClassTimings> entry : timings.getClasses().entrySet() ) {
+				final MatrixTimings.ClassTimings classTimings = entry.getValue();
+				out.write( "<tr><td>" + html( entry.getKey() ) + "</td>" );
+				for ( int i = 0; i < profiles.size(); i++ ) {
+					if ( !classTimings.ran( i ) ) {
+						out.write( timings.getAbortReason( i ) == null ? "<td></td>" : "<td class=\"ABORTED\">aborted</td>" );
+						continue;
+					}
+					final TestOutcome outcome = classTimings.getOutcome( i );
+					out.write(
+							"<td class=\"" + outcome.name() + "\" title=\"" + classTimings.getTests( i ) + " tests, "
+									+ classTimings.getFailed( i ) + " failed, " + classTimings.getSkipped( i )
+									+ " skipped\">" + seconds( classTimings.getMillis( i ) ) + "</td>"
+					);
+				}
+				out.write( "</tr>\n" );
+			}
+			out.write( "</table>\n</body>\n</html>\n" );
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write matrix report [" + file + "]", e );
+		}
+		finally {
+			close( out );
+		}
+	}
+
+	private static Writer open(File file) {
+		try {
+			return new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) );
+		}
+		catch (IOException e) {
+			throw new BuildException( "Unable to write matrix report [" + file + "]", e );
+		}
+	}
+
+	private static void close(Writer out) {
+		try {
+			out.close();
+		}
+		catch (IOException ignore) {
+		}
+	}
+
+	private static String seconds(long millis) {
+		return String.format( Locale.ROOT, "%.3f", millis / 1000d );
+	}
+
+	private static String json(String value) {
+		final StringBuilder buffer = new StringBuilder( value.length() + 2 ).append( '"' );
+		for ( int i = 0; i < value.length(); i++ ) {
+			final char c = value.charAt( i );
+			switch ( c ) {
+				case '"':
+					buffer.append( "\\\"" );
+					break;
+				case '\\':
+					buffer.append( "\\\\" );
+					break;
+				case '\n':
+					buffer.append( "\\n" );
+					break;
+				case '\r':
+					buffer.append( "\\r" );
+					break;
+				case '\t':
+					buffer.append( "\\t" );
+					break;
+				default:
+					if ( c < 0x20 ) {
+						buffer.append( String.format( "\\u%04x", (int) c ) );
+					}
+					else {
+						buffer.append( c );
+					}
+			}
+		}
+		return buffer.append( '"' ).toString();
+	}
+
+	private static String html(String value) {
+		return value.replace( "&", "&amp;" )
+				.replace( "<", "&lt;" )
+				.replace( ">", "&gt;" )
+				.replace( "\"", "&quot;" );
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.report;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Aggregates test case timings across the matrix profiles : per test class and profile (outcome, counts, total
+ * duration), and the test cases which are slowest or whose duration differs most between profiles.
+ * <p/>
+ * Only compact per test class / test case arrays are kept; the rankings are bounded to the requested size, so memory
+ * stays proportional to the number of distinct tests rather than to the size of the results.
+ */
+public class MatrixTimings implements JUnitXmlReader.TestCaseConsumer {
+	private final List<String> profileNames;
+	private final Map<String,Integer> profileIndexes = new HashMap<String, Integer>();
+	private final int rankingSize;
+
+	private final SortedMap<String,ClassTimings> classes = new TreeMap<String, ClassTimings>();
+	private final Map<String,Map<String,long[]>> testMillis = new HashMap<String, Map<String, long[]>>();
+	private final PriorityQueue<TestTiming> slowest = new PriorityQueue<TestTiming>( 16, TestTiming.BY_MILLIS );
+	private final String[] abortReasons;
+
+	public MatrixTimings(List<String> profileNames, int rankingSize) {
+		this.profileNames = profileNames;
+		this.rankingSize = rankingSize;
+		this.abortReasons = new String[profileNames.size()];
+		for ( int i = 0; i < profileNames.size(); i++ ) {
+			profileIndexes.put( profileNames.get( i ), i );
+		}
+	}
+
+	@Override
+	public void testCase(String profileName, String className, String testName, long millis, TestOutcome outcome) {
+		final int profile = profileIndexes.get( profileName );
+
+		ClassTimings classTimings = classes.get( className );
+		if ( classTimings == null ) {
+			classTimings = new ClassTimings( profileNames.size() );
+			classes.put( className, classTimings );
+		}
+		classTimings.add( profile, millis, outcome );
+
+		Map<String,long[]> classTests = testMillis.get( className );
+		if ( classTests == null ) {
+			classTests = new HashMap<String, long[]>();
+			testMillis.put( className, classTests );
+		}
+		long[] millisByProfile = classTests.get( testName );
+		if ( millisByProfile == null ) {
+			millisByProfile = new long[profileNames.size()];
+			Arrays.fill( millisByProfile, -1 );
+			classTests.put( testName, millisByProfile );
+		}
+		millisByProfile[profile] = Math.max( 0, millisByProfile[profile] ) + millis;
+
+		offer( slowest, new TestTiming( className, testName, profileName, millis ) );
+	}
+
+	/**
+	 * Record that the node of a profile was aborted, so that its results only cover the test classes which ran before.
+	 *
+	 * @param profileName The profile
+	 * @param reason Why the node was aborted
+	 */
+	public void profileAborted(String profileName, String reason) {
+		abortReasons[profileIndexes.get( profileName )] = reason;
+	}
+
+	/**
+	 * Why the node of a profile was aborted.
+	 *
+	 * @param profile The index of the profile
+	 *
+	 * @return The reason, or {@code null} if the node was not aborted
+	 */
+	public String getAbortReason(int profile) {
+		return abortReasons[profile];
+	}
+
+	private <T> void offer(PriorityQueue<T> ranking, T entry) {
+		ranking.add( entry );
+		if ( ranking.size() > rankingSize ) {
+			ranking.poll();
+		}
+	}
+
+	public List<String> getProfileNames() {
+		return profileNames;
+	}
+
+	/**
+	 * The per profile timings of each test class, sorted by class name.
+	 *
+	 * @return The class timings
+	 */
+	public SortedMap<String,ClassTimings> getClasses() {
+		return classes;
+	}
+
+	/**
+	 * The slowest test case runs, slowest first.
+	 *
+	 * @return The slowest runs
+	 */
+	public List<TestTiming> getSlowest() {
+		final List<TestTiming> ranked = new ArrayList<TestTiming>( slowest );
+		Collections.sort( ranked, Collections.reverseOrder( TestTiming.BY_MILLIS ) );
+		return ranked;
+	}
+
+	/**
+	 * The test cases whose duration differs most between the profiles they ran against, most skewed first.
+	 *
+	 * @return The most skewed test cases
+	 */
+	public List<TestSkew> getMostSkewed() {
+		final PriorityQueue<TestSkew> skewed = new PriorityQueue<TestSkew>( 16, TestSkew.BY_SPREAD );
+		for ( Map.Entry<String,Map<String,long[]>> classEntry : testMillis.entrySet() ) {
+			for ( Map.Entry<String,long[]> testEntry : classEntry.getValue().entrySet() ) {
+				final long[] millisByProfile = testEntry.getValue();
+				int fastest = -1;
+				int slowestIndex = -1;
+				for ( int i = 0; i < millisByProfile.length; i++ ) {
+					if ( millisByProfile[i] < 0 ) {
+						continue;
+					}
+					if ( fastest < 0 || millisByProfile[i] < millisByProfile[fastest] ) {
+						fastest = i;
+					}
+					if ( slowestIndex < 0 || millisByProfile[i] > millisByProfile[slowestIndex] ) {
+						slowestIndex = i;
+					}
+				}
+				if ( fastest >= 0 && fastest != slowestIndex ) {
+					offer(
+							skewed,
+							new TestSkew(
+									classEntry.getKey(),
+									testEntry.getKey(),
+									profileNames.get( fastest ),
+									millisByProfile[fastest],
+									profileNames.get( slowestIndex ),
+									millisByProfile[slowestIndex]
+							)
+					);
+				}
+			}
+		}
+		final List<TestSkew> ranked = new ArrayList<TestSkew>( skewed );
+		Collections.sort( ranked, Collections.reverseOrder( TestSkew.BY_SPREAD ) );
+		return ranked;
+	}
+
+	/**
+	 * The results of one test class, per profile.
+	 */
+	public static class ClassTimings {
+		private final int[] tests;
+		private final int[] failed;
+		private final int[] skipped;
+		private final long[] millis;
+
+		private ClassTimings(int profileCount) {
+			tests = new int[profileCount];
+			failed = new int[profileCount];
+			skipped = new int[profileCount];
+			millis = new long[profileCount];
+		}
+
+		private void add(int profile, long testMillis, TestOutcome outcome) {
+			tests[profile]++;
+			millis[profile] += testMillis;
+			if ( outcome == TestOutcome.FAILED ) {
+				failed[profile]++;
+			}
+			else if ( outcome == TestOutcome.SKIPPED ) {
+				skipped[profile]++;
+			}
+		}
+
+		public boolean ran(int profile) {
+			return tests[profile] > 0;
+		}
+
+		public int getTests(int profile) {
+			return tests[profile];
+		}
+
+		public int getFailed(int profile) {
+			return failed[profile];
+		}
+
+		public int getSkipped(int profile) {
+			return skipped[profile];
+		}
+
+		public long getMillis(int profile) {
+			return millis[profile];
+		}
+
+		public TestOutcome getOutcome(int profile) {
+			if ( failed[profile] > 0 ) {
+				return TestOutcome.FAILED;
+			}
+			return skipped[profile] == tests[profile] ? TestOutcome.SKIPPED : TestOutcome.PASSED;
+		}
+	}
+
+	/**
+	 * The duration of a test case against one profile.
+	 */
+	public static class TestTiming {
+		private static final Comparator<TestTiming> BY_MILLIS = new Comparator<TestTiming>() {
+			@Override
+			public int compare(TestTiming first, TestTiming second) {
+				return Long.compare( first.millis, second.millis );
+			}
+		};
+
+		private final String className;
+		private final String testName;
+		private final String profileName;
+		private final long millis;
+
+		private TestTiming(String className, String testName, String profileName, long millis) {
+			this.className = className;
+			this.testName = testName;
+			this.profileName = profileName;
+			this.millis = millis;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public String getTestName() {
+			return testName;
+		}
+
+		public String getProfileName() {
+			return profileName;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+	}
+
+	/**
+	 * The fastest and slowest durations of a test case across the profiles.
+	 */
+	public static class TestSkew {
+		private static final Comparator<TestSkew> BY_SPREAD = new Comparator<TestSkew>() {
+			@Override
+			public int compare(TestSkew first, TestSkew second) {
+				return Long.compare( first.getSpreadMillis(), second.getSpreadMillis() );
+			}
+		};
+
+		private final String className;
+		private final String testName;
+		private final String fastestProfileName;
+		private final long fastestMillis;
+		private final String slowestProfileName;
+		private final long slowestMillis;
+
+		private TestSkew(
+				String className,
+				String testName,
+				String fastestProfileName,
+				long fastestMillis,
+				String slowestProfileName,
+				long slowestMillis) {
+			this.className = className;
+			this.testName = testName;
+			this.fastestProfileName = fastestProfileName;
+			this.fastestMillis = fastestMillis;
+			this.slowestProfileName = slowestProfileName;
+			this.slowestMillis = slowestMillis;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public String getTestName() {
+			return testName;
+		}
+
+		public String getFastestProfileName() {
+			return fastestProfileName;
+		}
+
+		public long getFastestMillis() {
+			return fastestMillis;
+		}
+
+		public String getSlowestProfileName() {
+			return slowestProfileName;
+		}
+
+		public long getSlowestMillis() {
+			return slowestMillis;
+		}
+
+		public long getSpreadMillis() {
+			return slowestMillis - fastestMillis;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.matrix.report;
+
+/**
+ * Outcome of a test case, in order of increasing severity.
+ */
+public enum TestOutcome {
+	PASSED,
+	SKIPPED,
+	FAILED,
+	/**
+	 * Did not run (or not fully), the matrix node having been aborted.
+	 */
+	ABORTED
+}
@@ -0,0 +1,49 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.util;
+
+import java.io.File;
+
+import org.gradle.api.Project;
+
+/**
+ * Locates the directory in which the matrix plugins keep state between builds (indexes, histories, etc).  It lives
+ * under the project cache directory ({@code .gradle} by default) so that it survives {@code clean}.
+ */
+public final class MatrixStateDirectory {
+	private static final String DIRECTORY_NAME = "hibernate-matrix";
+
+	private MatrixStateDirectory() {
+	}
+
+	/**
+	 * Locate the state directory for the build the project belongs to.
+	 *
+	 * @param project Any project of the build
+	 *
+	 * @return The state directory (which may not exist yet)
+	 */
+	public static File locate(Project project) {
+		File projectCacheDir = project.getGradle().getStartParameter().getProjectCacheDir();
+		if ( projectCacheDir == null ) {
+			projectCacheDir = new File( project.getRootProject().getProjectDir(), ".gradle" );
+		}
+		return new File( projectCacheDir, DIRECTORY_NAME );
+	}
+
+	/**
+	 * Resolve a file within the state directory.
+	 *
+	 * @param project Any project of the build
+	 * @param path The path of the file relative to the state directory
+	 *
+	 * @return The file (which may not exist yet)
+	 */
+	public static File resolve(Project project, String path) {
+		return new File( locate( project ), path );
+	}
+}
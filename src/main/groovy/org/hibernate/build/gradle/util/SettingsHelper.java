@@ -0,0 +1,44 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.util;
+
+/**
+ * Helper for reading the {@code hibernate-matrix-*} system settings used to control the plugins.
+ */
+public final class SettingsHelper {
+	private SettingsHelper() {
+	}
+
+	public static String getString(String key, String defaultValue) {
+		final String value = System.getProperty( key );
+		if ( value == null || value.trim().length() == 0 ) {
+			return defaultValue;
+		}
+		return value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		final String value = getString( key, null );
+		if ( value == null ) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt( value );
+		}
+		catch (NumberFormatException e) {
+			throw new BuildException( "Invalid integer value for setting [" + key + "] : " + value, e );
+		}
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		final String value = getString( key, null );
+		if ( value == null ) {
+			return defaultValue;
+		}
+		return Boolean.parseBoolean( value );
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises {@link RestAllocatorClient} and {@link RestDatabaseAllocation} against a {@link StubAllocatorServer}.
+ */
+public class RestAllocatorClientTest {
+	private static final long TIMEOUT_SECONDS = 10;
+
+	private StubAllocatorServer server;
+	private RestAllocatorClient client;
+
+	@Before
+	public void startServer() throws Exception {
+		server = new StubAllocatorServer();
+		client = new RestAllocatorClient( server.getBaseUrl(), "test", 2, 5000, 2 );
+	}
+
+	@After
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void allocateReadsTheConnectionSettings() throws Exception {
+		final RestAllocatorClient.Lease lease = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		assertEquals( "db1", lease.getId() );
+		assertEquals( "jdbc:stub://db1", lease.getHibernateProperties().get( "hibernate.connection.url" ) );
+		assertEquals( "test", lease.getHibernateProperties().get( "hibernate.connection.username" ) );
+		final String form = server.getRequests( "POST", "/allocations" ).get( 0 ).body;
+		assertTrue( form, form.contains( "profile=h2" ) );
+		assertTrue( form, form.contains( "requester=test" ) );
+		assertTrue( form, form.contains( "expiry=60" ) );
+	}
+
+	@Test
+	public void retriesServerErrorsWithTheSameIdempotencyKey() throws Exception {
+		server.failNext( 503 );
+		server.failNext( 429 );
+
+		final RestAllocatorClient.Lease lease = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		final List<StubAllocatorServer.Request> attempts = server.getRequests( "POST", "/allocations" );
+		assertEquals( 3, attempts.size() );
+		assertNotNull( attempts.get( 0 ).idempotencyKey );
+		assertTrue( attempts.get( 0 ).idempotencyKey.startsWith( "test-" ) );
+		for ( StubAllocatorServer.Request attempt : attempts ) {
+			assertEquals( attempts.get( 0 ).idempotencyKey, attempt.idempotencyKey );
+		}
+		assertEquals( "db1", lease.getId() );
+	}
+
+	@Test
+	public void retryOfAProcessedRequestDoesNotAllocateAgain() throws Exception {
+		server.failNextAfterProcessing( 503 );
+
+		final RestAllocatorClient.Lease lease = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		assertEquals( 2, server.getRequests( "POST", "/allocations" ).size() );
+		assertEquals( 1, server.getLiveAllocationCount() );
+		assertEquals( "db1", lease.getId() );
+	}
+
+	@Test
+	public void distinctRequestsAllocateDistinctDatabases() throws Exception {
+		final RestAllocatorClient.Lease first = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+		final RestAllocatorClient.Lease second = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		// distinct requests get distinct keys, hence distinct databases
+		final List<StubAllocatorServer.Request> requests = server.getRequests( "POST", "/allocations" );
+		assertNotEquals( requests.get( 0 ).idempotencyKey, requests.get( 1 ).idempotencyKey );
+		assertNotEquals( first.getId(), second.getId() );
+	}
+
+	@Test
+	public void givesUpAfterTheConfiguredRetries() throws Exception {
+		server.failNext( 500 );
+		server.failNext( 500 );
+		server.failNext( 500 );
+
+		assertFailure( client.allocate( "h2", 60 ) );
+		assertEquals( 3, server.getRequests( "POST", "/allocations" ).size() );
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws Exception {
+		server.failNext( 400 );
+
+		assertFailure( client.allocate( "h2", 60 ) );
+		assertEquals( 1, server.getRequests( "POST", "/allocations" ).size() );
+	}
+
+	@Test
+	public void renewReadsTheNewExpiry() throws Exception {
+		final RestAllocatorClient.Lease lease = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		final long expiresAt = client.renew( lease.getId(), 30 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		assertEquals( 4102444800000L, expiresAt );
+		final String form = server.getRequests( "POST", "/renew" ).get( 0 ).body;
+		assertTrue( form, form.contains( "expiry=30" ) );
+	}
+
+	@Test
+	public void heldAllocationsAreRenewedInTheBackground() throws Exception {
+		// a lifetime of 0 minutes makes the allocation renew (at half its lifetime) right away
+		final RestDatabaseAllocation allocation = new RestDatabaseAllocation(
+				"h2",
+				client,
+				client.allocate( "h2", 0 ),
+				0,
+				TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS )
+		);
+
+		assertTrue( server.awaitRequest( "POST", "/renew", TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS ) ) );
+		allocation.release();
+		final int renewals = server.getRequests( "POST", "/renew" ).size();
+		Thread.sleep( 100 );
+		// renewal stops once released (allowing for one already in flight)
+		assertTrue( server.getRequests( "POST", "/renew" ).size() <= renewals + 1 );
+	}
+
+	@Test
+	public void releaseFreesTheAllocation() throws Exception {
+		final RestDatabaseAllocation allocation = new RestDatabaseAllocation(
+				"h2",
+				client,
+				client.allocate( "h2", 60 ),
+				60,
+				TimeUnit.SECONDS.toMillis( TIMEOUT_SECONDS )
+		);
+		assertEquals( "rest:db1@" + server.getBaseUrl(), awaitReclaimKey( allocation ) );
+		assertTrue( server.isAllocated( "db1" ) );
+
+		allocation.release();
+
+		assertFalse( server.isAllocated( "db1" ) );
+		assertEquals( 1, server.getRequests( "DELETE", "/allocations/db1" ).size() );
+	}
+
+	@Test
+	public void releaseOfAnUnknownAllocationSucceeds() throws Exception {
+		// the service answers 404 for an allocation already released (or expired)
+		client.release( "unknown" ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		assertEquals( 1, server.getRequests( "DELETE", "/allocations/unknown" ).size() );
+	}
+
+	@Test
+	public void releaseIsRetriedOnServerErrors() throws Exception {
+		final RestAllocatorClient.Lease lease = client.allocate( "h2", 60 ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+		server.failNext( 502 );
+
+		client.release( lease.getId() ).get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+
+		assertEquals( 2, server.getRequests( "DELETE", "/allocations/" + lease.getId() ).size() );
+		assertFalse( server.isAllocated( lease.getId() ) );
+	}
+
+	private static String awaitReclaimKey(RestDatabaseAllocation allocation) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos( TIMEOUT_SECONDS );
+		while ( allocation.getReclaimKey() == null && System.nanoTime() < deadline ) {
+			Thread.sleep( 10 );
+		}
+		return allocation.getReclaimKey();
+	}
+
+	private static void assertFailure(CompletableFuture<?> future) throws Exception {
+		try {
+			future.get( TIMEOUT_SECONDS, TimeUnit.SECONDS );
+			fail( "Expected the request to fail" );
+		}
+		catch (ExecutionException expected) {
+		}
+	}
+}
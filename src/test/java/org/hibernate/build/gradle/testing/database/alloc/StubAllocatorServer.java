@@ -0,0 +1,208 @@
+/*
+ * Hibernate, Relational Persistence for Idiomatic Java
+ *
+ * License: GNU Lesser General Public License (LGPL), version 2.1 or later.
+ * See the lgpl.txt file in the root directory or <http://www.gnu.org/licenses/lgpl-2.1.html>.
+ */
+package org.hibernate.build.gradle.testing.database.alloc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for a REST allocator service, speaking the protocol described on {@link RestAllocatorClient}.  It
+ * records every request, and answers with the statuses queued through {@link #failNext} or
+ * {@link #failNextAfterProcessing} before answering normally.  Allocations are keyed by their
+ * {@code Idempotency-Key}, as a real service is expected to.
+ */
+class StubAllocatorServer implements AutoCloseable {
+
+	/**
+	 * A request received by the stub.
+	 */
+	static class Request {
+		final String method;
+		final String path;
+		final String idempotencyKey;
+		final String body;
+
+		private Request(String method, String path, String idempotencyKey, String body) {
+			this.method = method;
+			this.path = path;
+			this.idempotencyKey = idempotencyKey;
+			this.body = body;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final AtomicInteger allocationCount = new AtomicInteger();
+	private final Deque<Integer> failures = new ConcurrentLinkedDeque<Integer>();
+	private final Deque<Integer> failuresAfterProcessing = new ConcurrentLinkedDeque<Integer>();
+	private final List<Request> requests = new ArrayList<Request>();
+	private final ConcurrentHashMap<String,String> allocationIdsByKey = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<String,Boolean> liveAllocationIds = new ConcurrentHashMap<String, Boolean>();
+
+	StubAllocatorServer() throws IOException {
+		server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+		server.createContext( "/allocations", this::handle );
+		server.setExecutor( executor );
+		server.start();
+	}
+
+	String getBaseUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Answer the next request with the given status, without processing it.
+	 */
+	void failNext(int status) {
+		failures.add( status );
+	}
+
+	/**
+	 * Process the next request, but answer it with the given status (as when the response is lost).
+	 */
+	void failNextAfterProcessing(int status) {
+		failuresAfterProcessing.add( status );
+	}
+
+	int getLiveAllocationCount() {
+		return liveAllocationIds.size();
+	}
+
+	synchronized List<Request> getRequests(String method, String pathSuffix) {
+		final List<Request> matching = new ArrayList<Request>();
+		for ( Request request : requests ) {
+			if ( request.method.equals( method ) && request.path.endsWith( pathSuffix ) ) {
+				matching.add( request );
+			}
+		}
+		return matching;
+	}
+
+	boolean isAllocated(String id) {
+		return liveAllocationIds.containsKey( id );
+	}
+
+	/**
+	 * Wait until a request matching the method and path suffix was received.
+	 */
+	boolean awaitRequest(String method, String pathSuffix, long timeoutMillis) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+		while ( getRequests( method, pathSuffix ).isEmpty() ) {
+			if ( System.nanoTime() > deadline ) {
+				return false;
+			}
+			Thread.sleep( 10 );
+		}
+		return true;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		final String method = exchange.getRequestMethod();
+		final String path = exchange.getRequestURI().getPath();
+		synchronized ( this ) {
+			requests.add(
+					new Request(
+							method,
+							path,
+							exchange.getRequestHeaders().getFirst( "Idempotency-Key" ),
+							read( exchange.getRequestBody() )
+					)
+			);
+		}
+
+		final Integer failure = failures.poll();
+		if ( failure != null ) {
+			respond( exchange, failure, "injected failure" );
+			return;
+		}
+
+		// "/allocations" gives [""], "/allocations/{id}" ["", id] and "/allocations/{id}/{action}" ["", id, action]
+		final String[] segments = path.substring( "/allocations".length() ).split( "/" );
+		if ( "POST".equals( method ) && segments.length == 1 ) {
+			final String key = exchange.getRequestHeaders().getFirst( "Idempotency-Key" );
+			final String id = allocationIdsByKey.computeIfAbsent(
+					key == null ? "no-key-" + System.nanoTime() : key,
+					k -> "db" + allocationCount.incrementAndGet()
+			);
+			liveAllocationIds.put( id, Boolean.TRUE );
+			final Integer failureAfterProcessing = failuresAfterProcessing.poll();
+			if ( failureAfterProcessing != null ) {
+				respond( exchange, failureAfterProcessing, "injected failure" );
+				return;
+			}
+			respond(
+					exchange,
+					200,
+					"id=" + id + "\nhibernate.connection.url=jdbc:stub://" + id + "\nhibernate.connection.username=test\n"
+			);
+		}
+		else if ( "POST".equals( method ) && segments.length == 3 && isLive( segments[1] ) ) {
+			respond( exchange, 200, "renew".equals( segments[2] ) ? "expires=4102444800000\n" : "" );
+		}
+		else if ( "DELETE".equals( method ) && segments.length == 2 && isLive( segments[1] ) ) {
+			liveAllocationIds.remove( segments[1] );
+			respond( exchange, 204, null );
+		}
+		else {
+			respond( exchange, 404, "no such allocation" );
+		}
+	}
+
+	private boolean isLive(String id) {
+		return liveAllocationIds.containsKey( id );
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		if ( body == null ) {
+			exchange.sendResponseHeaders( status, -1 );
+			exchange.close();
+			return;
+		}
+		final byte[] bytes = body.getBytes( StandardCharsets.UTF_8 );
+		exchange.sendResponseHeaders( status, bytes.length == 0 ? -1 : bytes.length );
+		final OutputStream output = exchange.getResponseBody();
+		try {
+			output.write( bytes );
+		}
+		finally {
+			output.close();
+		}
+	}
+
+	private static String read(InputStream stream) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[4096];
+		int read;
+		while ( ( read = stream.read( buffer ) ) != -1 ) {
+			bytes.write( buffer, 0, read );
+		}
+		return new String( bytes.toByteArray(), StandardCharsets.UTF_8 );
+	}
+
+	@Override
+	public void close() {
+		server.stop( 0 );
+		executor.shutdownNow();
+	}
+}